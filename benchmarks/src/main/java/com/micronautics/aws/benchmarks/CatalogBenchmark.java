@@ -0,0 +1,90 @@
+package com.micronautics.aws.benchmarks;
+
+import com.micronautics.aws.CompactListing;
+import com.micronautics.aws.MirrorRoot;
+import com.micronautics.aws.Model;
+import com.micronautics.aws.RemoteCatalog;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/** Lookups in the catalog of a listed bucket, as made for every local file by Main.compareS3FileAge(), which delegates
+ * to MirrorRoot.model.compareAge(). Keys are looked up in random order, so the catalog does not stay in cache.
+ * The 10M-entry catalog needs a heap of about 3 GB: add <code>-jvmArgs -Xmx4G</code>. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class CatalogBenchmark {
+    @Param({ "10000", "1000000", "10000000" })
+    public int size;
+
+    private String[] keys;
+    /** Local files that the keys are compared with; compareAge() reads their size and last-modified time */
+    private File[] files;
+    private File directory;
+
+    /** Random position in keys, one per thread */
+    @State(Scope.Thread)
+    public static class Cursor {
+        private long state = System.nanoTime() | 1;
+
+        int next(int bound) {
+            state ^= state << 13;
+            state ^= state >>> 7;
+            state ^= state << 17;
+            return (int) ((state >>> 1) % bound);
+        }
+    }
+
+    @Setup
+    public void setUp() throws IOException {
+        keys = Synthetic.keys(size);
+        RemoteCatalog catalog = new RemoteCatalog(new CompactListing(size));
+        for (int i=0; i<size; i++)
+            catalog.put(keys[i], Synthetic.size(i), Synthetic.time - i * 1000L, Synthetic.eTag(i));
+        Model.catalog = catalog;
+        Model.s3ObjectDataFetched = true;
+        Model.syncIndex = null;
+        Model.hashCache = null;
+        directory = Files.createTempDirectory("catalogBenchmark").toFile();
+        files = new File[64];
+        for (int i=0; i<files.length; i++) {
+            files[i] = new File(directory, "file" + i);
+            Files.write(files[i].toPath(), new byte[(int) Synthetic.size(i)]);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        Model.catalog = new RemoteCatalog();
+        Model.s3ObjectDataFetched = false;
+        Synthetic.delete(directory);
+    }
+
+    @Benchmark
+    public CompactListing.Entry lookup(Cursor cursor) {
+        return Model.catalog.get(keys[cursor.next(size)]);
+    }
+
+    @Benchmark
+    public boolean lookupMissing(Cursor cursor) {
+        return Model.catalog.contains(keys[cursor.next(size)] + "x");
+    }
+
+    @Benchmark
+    public int compareAge(Cursor cursor) {
+        int i = cursor.next(size);
+        return MirrorRoot.model.compareAge(files[i & (files.length - 1)], keys[i]);
+    }
+}
@@ -0,0 +1,37 @@
+package com.micronautics.aws.benchmarks;
+
+import com.micronautics.aws.Compression;
+import com.micronautics.aws.S3;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/** Chooses the content type of each uploaded key, as S3.setContentType() does, and whether it is compressed */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ContentTypeBenchmark {
+    private String[] keys;
+    private int next = 0;
+
+    @Setup
+    public void setUp() {
+        keys = new String[1 << 16];
+        for (int i=0; i<keys.length; i++)
+            keys[i] = Synthetic.key(i);
+    }
+
+    private String nextKey() { return keys[next++ & (keys.length - 1)]; }
+
+    @Benchmark
+    public String contentType() { return S3.contentType(nextKey()); }
+
+    @Benchmark
+    public boolean compressible() { return Compression.isCompressible(nextKey()); }
+}
@@ -0,0 +1,84 @@
+package com.micronautics.aws.benchmarks;
+
+import com.micronautics.aws.Debouncer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** Event storms, as DirectoryWatcher reports them to its Debouncer when a large tree is copied, checked out or
+ * deleted: many threads reporting events for paths that are already waiting to settle, and many paths settling at
+ * once. */
+@State(Scope.Benchmark)
+public class DebouncerBenchmark {
+    @Param({ "10000", "1000000" })
+    public int paths;
+
+    private String[] keys;
+    /** Nothing settles during a measurement, so every event after the first for a path updates its Activity */
+    private Debouncer<String> waiting;
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        int next = (int) System.nanoTime();
+    }
+
+    @Setup
+    public void setUp() {
+        keys = new String[paths];
+        for (int i=0; i<paths; i++)
+            keys[i] = Synthetic.key(i);
+        waiting = new Debouncer<>("waiting", TimeUnit.HOURS.toMillis(1), 0, new Debouncer.Handler<String>() {
+            @Override
+            public void settled(List<Debouncer.Activity<String>> activities) { }
+        });
+        for (String key : keys)
+            waiting.touch(key);
+    }
+
+    @TearDown
+    public void tearDown() { waiting.stop(); }
+
+    @Benchmark
+    @Threads(4)
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public void touch(Cursor cursor) {
+        waiting.touch(keys[(cursor.next++ & Integer.MAX_VALUE) % paths]);
+    }
+
+    /** Reports one event for every path and waits until they have all settled and been handled */
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public int settle() throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(1);
+        final AtomicInteger settled = new AtomicInteger();
+        Debouncer<String> debouncer = new Debouncer<>("settle", 1, 10, new Debouncer.Handler<String>() {
+            @Override
+            public void settled(List<Debouncer.Activity<String>> activities) {
+                if (settled.addAndGet(activities.size())==paths)
+                    done.countDown();
+            }
+        });
+        try {
+            for (String key : keys)
+                debouncer.touch(key);
+            done.await();
+        } finally {
+            debouncer.stop();
+        }
+        return settled.get();
+    }
+}
@@ -0,0 +1,47 @@
+package com.micronautics.aws.benchmarks;
+
+import com.micronautics.aws.IgnoreMatcher;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/** Matches the names of directory entries against the default ignore patterns, with IgnoreMatcher and, for
+ * comparison, by trying each pattern in turn as the walkers did before IgnoreMatcher. One name in ten is ignored. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class IgnoreMatcherBenchmark {
+    private String[] names;
+    private IgnoreMatcher ignores;
+    private List<Pattern> patterns;
+    private int next = 0;
+
+    @Setup
+    public void setUp() {
+        names = Synthetic.names(1 << 16);
+        patterns = Synthetic.ignoredPatterns();
+        ignores = new IgnoreMatcher(patterns);
+    }
+
+    private String nextName() { return names[next++ & (names.length - 1)]; }
+
+    @Benchmark
+    public boolean matcher() { return ignores.matches(nextName()); }
+
+    @Benchmark
+    public boolean eachPattern() {
+        String name = nextName();
+        for (Pattern pattern : patterns)
+            if (pattern.matcher(name).matches())
+                return true;
+        return false;
+    }
+}
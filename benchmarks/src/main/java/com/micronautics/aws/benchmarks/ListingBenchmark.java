@@ -0,0 +1,94 @@
+package com.micronautics.aws.benchmarks;
+
+import com.amazonaws.services.s3.model.ListObjectsRequest;
+import com.amazonaws.services.s3.model.ObjectListing;
+import com.micronautics.aws.CompactListing;
+import com.micronautics.aws.ListingClient;
+import com.micronautics.aws.ParallelLister;
+import com.micronautics.aws.RemoteCatalog;
+import com.micronautics.aws.SyncIndex;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/** Handling of the pages of a bucket listing, as S3.getListing() receives them: building the CompactListing and the
+ * RemoteCatalog, and reconciling the sync index with the listing. The pages are built in advance and served from
+ * memory, 1000 objects per page, so only the client side is measured.
+ * Listings of 10M objects need a heap of about 6 GB: add <code>-p size=10000000 -jvmArgs -Xmx8G</code>. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ListingBenchmark {
+    private static final String bucketName = "bucket";
+
+    @Param({ "10000", "1000000" })
+    public int size;
+
+    /** Pages keyed by the marker that requests them; the first page has no marker */
+    private final Map<String, ObjectListing> pages = new HashMap<>();
+    private RemoteCatalog catalog;
+    private SyncIndex syncIndex;
+    private File directory;
+
+    private final ListingClient client = new ListingClient() {
+        @Override
+        public ObjectListing listObjects(ListObjectsRequest listObjectsRequest) {
+            return pages.get(listObjectsRequest.getMarker());
+        }
+    };
+
+    @Setup
+    public void setUp() throws IOException {
+        String[] keys = Synthetic.keys(size);
+        String marker = null;
+        for (int first=0; first<size; first+=1000) {
+            ObjectListing page = new ObjectListing();
+            page.setBucketName(bucketName);
+            int last = Math.min(size, first + 1000);
+            for (int i=first; i<last; i++)
+                page.getObjectSummaries().add(Synthetic.summary(bucketName, keys[i], i));
+            page.setTruncated(last<size);
+            pages.put(marker, page);
+            marker = keys[last - 1];
+        }
+        catalog = new RemoteCatalog(new ParallelLister(client, 1).list(bucketName, null));
+        directory = Files.createTempDirectory("listingBenchmark").toFile();
+        File file = new File(directory, "file");
+        Files.write(file.toPath(), new byte[1024]);
+        syncIndex = SyncIndex.load(directory, bucketName);
+        for (int i=0; i<size; i++)
+            syncIndex.put(keys[i], file, Synthetic.eTag(i), Synthetic.time);
+    }
+
+    @TearDown
+    public void tearDown() { Synthetic.delete(directory); }
+
+    @Benchmark
+    public CompactListing list() {
+        return new ParallelLister(client, 1).list(bucketName, null);
+    }
+
+    @Benchmark
+    public RemoteCatalog catalog() {
+        return new RemoteCatalog(new ParallelLister(client, 1).list(bucketName, null));
+    }
+
+    @Benchmark
+    public SyncIndex syncIndexListed() {
+        syncIndex.listed(catalog);
+        return syncIndex;
+    }
+}
@@ -0,0 +1,99 @@
+package com.micronautics.aws.benchmarks;
+
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/** Deterministic synthetic keys, listings and directory trees, shaped like a mirrored web site: 100 entries per
+ * directory, two levels of directories, and a mix of page, style, script and image extensions. */
+public class Synthetic {
+    /** Last-modified time of the newest synthetic object */
+    public static final long time = 1350000000000L;
+
+    private static final String[] extensions = { ".html", ".css", ".js", ".png", ".jpg", ".txt", ".json", ".pdf" };
+
+    /** The patterns of AWS.defaultIgnores and AWS.stateFileIgnores, which every .s3 file starts with */
+    private static final String[] ignores = { ".*~", ".*.aws", ".*.git", ".*.s3", ".*.svn", ".*.swp", ".*.tmp", "cvs",
+            "\\.s3index(\\.tmp)?", "\\.s3journal", "\\..+\\.s3part", "\\.s3failed(\\.tmp)?" };
+
+    private Synthetic() { }
+
+    /** @return relative path of synthetic entry i */
+    public static String key(int i) {
+        return String.format("dir%04d/sub%02d/file%07d%s", i / 10000, (i / 100) % 100, i, extensions[i % extensions.length]);
+    }
+
+    /** @return count keys, in the order S3 lists them */
+    public static String[] keys(int count) {
+        String[] keys = new String[count];
+        for (int i=0; i<count; i++)
+            keys[i] = key(i);
+        Arrays.sort(keys);
+        return keys;
+    }
+
+    public static long size(int i) { return 1024 + (i * 7919L) % 65536; }
+
+    public static String eTag(int i) { return String.format("\"%032x\"", i * 0x9E3779B97F4A7C15L); }
+
+    public static S3ObjectSummary summary(String bucketName, String key, int i) {
+        S3ObjectSummary summary = new S3ObjectSummary();
+        summary.setBucketName(bucketName);
+        summary.setKey(key);
+        summary.setSize(size(i));
+        summary.setLastModified(new Date(time - i * 1000L));
+        summary.setETag(eTag(i));
+        return summary;
+    }
+
+    public static List<Pattern> ignoredPatterns() {
+        List<Pattern> patterns = new ArrayList<>();
+        for (String ignore : ignores)
+            patterns.add(Pattern.compile(ignore));
+        return patterns;
+    }
+
+    /** @return names of directory entries, one in ten of which is ignored by ignoredPatterns() */
+    public static String[] names(int count) {
+        String[] ignored = { "file.html~", ".git", ".index.html.s3part", "notes.swp", ".s3index", "cvs", "x.tmp", ".s3", "y.aws", ".svn" };
+        String[] names = new String[count];
+        for (int i=0; i<count; i++)
+            names[i] = i % 10==9 ? ignored[(i / 10) % ignored.length] : "file" + i + extensions[i % extensions.length];
+        return names;
+    }
+
+    /** Creates a tree of files entries in root, with an ignored backup file beside one file in ten and an ignored .git
+     * directory in each top-level directory */
+    public static void tree(Path root, int files) throws IOException {
+        byte[] content = "<html><body>synthetic</body></html>".getBytes("UTF-8");
+        for (int i=0; i<files; i++) {
+            Path file = root.resolve(key(i));
+            if (i % 100==0)
+                Files.createDirectories(file.getParent());
+            Files.write(file, content);
+            if (i % 10==0)
+                Files.write(file.resolveSibling(file.getFileName() + "~"), content);
+            if (i % 10000==0) {
+                Path git = root.resolve(key(i)).getParent().getParent().resolve(".git");
+                Files.createDirectories(git);
+                Files.write(git.resolve("HEAD"), content);
+            }
+        }
+    }
+
+    public static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children!=null)
+            for (File child : children)
+                delete(child);
+        file.delete();
+    }
+}
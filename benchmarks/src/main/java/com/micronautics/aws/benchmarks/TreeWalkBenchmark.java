@@ -0,0 +1,62 @@
+package com.micronautics.aws.benchmarks;
+
+import com.micronautics.aws.IgnoreMatcher;
+import com.micronautics.aws.ParallelTreeWalk;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** Walks a synthetic tree the way Uploader walks the tree it uploads, with the default ignore patterns, on one thread
+ * and on one thread per processor core. The tree is created on disk once per trial, so after the first iteration it
+ * is served from the operating system's cache and the walk itself is measured. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class TreeWalkBenchmark {
+    @Param({ "10000", "100000" })
+    public int files;
+
+    /** Number of walking threads; 0 for one per processor core */
+    @Param({ "1", "0" })
+    public int workers;
+
+    private Path root;
+    private IgnoreMatcher ignores;
+
+    @Setup
+    public void setUp() throws IOException {
+        root = Files.createTempDirectory("treeWalkBenchmark");
+        Synthetic.tree(root, files);
+        ignores = new IgnoreMatcher(Synthetic.ignoredPatterns());
+    }
+
+    @TearDown
+    public void tearDown() { Synthetic.delete(root.toFile()); }
+
+    @Benchmark
+    public long walk() {
+        final AtomicLong bytes = new AtomicLong();
+        int parallelism = workers>0 ? workers : Runtime.getRuntime().availableProcessors();
+        new ParallelTreeWalk(ignores, parallelism).walk(root, new ParallelTreeWalk.Visitor() {
+            @Override
+            public boolean preVisitDirectory(String key, Path directory) { return true; }
+
+            @Override
+            public void visitFile(String key, Path file, BasicFileAttributes attributes) { bytes.addAndGet(attributes.size()); }
+        });
+        return bytes.get();
+    }
+}
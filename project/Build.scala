@@ -0,0 +1,26 @@
+import sbt._
+import Keys._
+
+/** The settings of the awsmirror project itself are in build.sbt; this file only adds the benchmarks project.
+  *
+  * Benchmarks are written in Java and use JMH, whose annotation processor generates the benchmark harness when javac
+  * compiles them. Run them all with {{{sbt "benchmarks/run"}}}, or pass JMH options, for example
+  * {{{sbt "benchmarks/run -f 1 -wi 3 -i 5 -p size=10000 Catalog"}}} */
+object AwsMirrorBuild extends Build {
+  val jmhVersion = "1.21"
+
+  lazy val awsmirror = Project("awsmirror", file("."))
+
+  lazy val benchmarks = Project("benchmarks", file("benchmarks")) dependsOn(awsmirror) settings(
+    name := "awsmirror-benchmarks",
+    crossPaths := false,
+    scalaVersion := "2.9.2",
+    javacOptions ++= Seq("-source", "1.7", "-target", "1.7"),
+    libraryDependencies ++= Seq(
+      "org.openjdk.jmh" % "jmh-core"                 % jmhVersion,
+      "org.openjdk.jmh" % "jmh-generator-annprocess" % jmhVersion
+    ),
+    mainClass in (Compile, run) := Some("org.openjdk.jmh.Main"),
+    fork in run := true
+  )
+}
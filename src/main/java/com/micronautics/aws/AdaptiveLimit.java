@@ -0,0 +1,73 @@
+package com.micronautics.aws;
+
+import com.amazonaws.AmazonClientException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/** Limits the number of S3 requests in flight, adapting the limit to throttling by additive increase and
+ * multiplicative decrease (AIMD).
+ *
+ * The limit starts at its maximum. Each throttled request halves it, but only once per decreaseInterval, because the
+ * requests that were already in flight when S3 started throttling fail together and describe one overload, not
+ * several. Each successful request raises the limit by 1/limit, so it grows by about one for each limit's worth of
+ * successes and returns to its maximum once S3 stops throttling. */
+public class AdaptiveLimit {
+    private static final Logger logger = LoggerFactory.getLogger(AdaptiveLimit.class);
+    private final int maximum;
+    private final long decreaseInterval;
+    private double limit;
+    private int inFlight = 0;
+    private long lastDecrease = 0;
+    private long throttled = 0;
+
+    public AdaptiveLimit(int maximum, long decreaseInterval) {
+        this.maximum = Math.max(1, maximum);
+        this.decreaseInterval = decreaseInterval;
+        this.limit = this.maximum;
+    }
+
+    /** Blocks until another request may be sent */
+    public synchronized void acquire() {
+        while (inFlight>=(int) limit)
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new AmazonClientException("Interrupted while waiting to send a request", e);
+            }
+        inFlight++;
+    }
+
+    /** Ends a request that completed */
+    public synchronized void succeeded() {
+        limit = Math.min(maximum, limit + 1.0 / limit);
+        release();
+    }
+
+    /** Ends a request that S3 throttled */
+    public synchronized void throttled() {
+        throttled++;
+        long now = System.currentTimeMillis();
+        if (now - lastDecrease>=decreaseInterval) {
+            lastDecrease = now;
+            limit = Math.max(1.0, limit / 2.0);
+            logger.info("S3 is throttling requests; sending at most " + (int) limit + " at a time");
+        }
+        release();
+    }
+
+    /** Ends a request that failed for another reason */
+    public synchronized void failed() { release(); }
+
+    private void release() {
+        inFlight--;
+        notifyAll();
+    }
+
+    public synchronized int limit() { return (int) limit; }
+
+    public synchronized int inFlight() { return inFlight; }
+
+    /** @return number of throttled requests so far */
+    public synchronized long throttledCount() { return throttled; }
+}
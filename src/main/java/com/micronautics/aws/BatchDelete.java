@@ -0,0 +1,169 @@
+package com.micronautics.aws;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.DeleteObjectsRequest;
+import com.amazonaws.services.s3.model.ListObjectsRequest;
+import com.amazonaws.services.s3.model.MultiObjectDeleteException;
+import com.amazonaws.services.s3.model.ObjectListing;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** Deletes objects with S3 multi-object delete requests, each of which removes up to 1000 keys.
+ *
+ * Requests are sent on the threads of Model.deletes, so several are in flight at once. When deleting by prefix, each
+ * page of the listing is deleted as soon as it arrives, while the next page is being listed; the listing pauses if
+ * deletion falls behind. Requests are retried according to Model.retries. Keys that could not be deleted are logged
+ * and collected, with the reason given by S3.
+ *
+ * Keys are used exactly as they are listed, without normalization, so objects whose keys start with a slash are
+ * deleted too. */
+public class BatchDelete {
+    private static final Logger logger = LoggerFactory.getLogger(BatchDelete.class);
+    /** S3 accepts at most this many keys per multi-object delete request */
+    public static final int maxBatchSize = 1000;
+
+    private final AmazonS3 s3;
+    private final String bucketName;
+    private final TransferScheduler.Batch batch = Model.deletes.newBatch();
+    private final AtomicLong deleted = new AtomicLong();
+    private final List<Failure> failures = Collections.synchronizedList(new ArrayList<Failure>());
+
+    /** A key that could not be deleted */
+    public static class Failure {
+        public final String key;
+        public final String code;
+        public final String message;
+
+        public Failure(String key, String code, String message) {
+            this.key = key;
+            this.code = code;
+            this.message = message;
+        }
+
+        @Override
+        public String toString() { return key + ": " + code + " " + message; }
+    }
+
+    public BatchDelete(AmazonS3 s3, String bucketName) {
+        this.s3 = s3;
+        this.bucketName = bucketName;
+    }
+
+    /** Deletes every object whose key starts with prefix, or every object in the bucket if prefix is null.
+     * Returns once the last page has been listed; call await() to wait for the deletions to complete. */
+    public BatchDelete deletePrefix(String prefix) {
+        ListObjectsRequest listObjectsRequest = new ListObjectsRequest()
+                .withBucketName(bucketName)
+                .withPrefix(prefix)
+                .withMaxKeys(maxBatchSize);
+        while (true) {
+            final ListObjectsRequest pageRequest = listObjectsRequest;
+            ObjectListing objectListing = Model.retries.execute("Listing of " + bucketName, new Callable<ObjectListing>() {
+                @Override
+                public ObjectListing call() { return s3.listObjects(pageRequest); }
+            });
+            List<String> keys = new ArrayList<>(objectListing.getObjectSummaries().size());
+            for (S3ObjectSummary objectSummary : objectListing.getObjectSummaries())
+                keys.add(objectSummary.getKey());
+            delete(keys);
+            if (!objectListing.isTruncated())
+                return this;
+            listObjectsRequest.setMarker(ParallelLister.nextMarker(objectListing));
+        }
+    }
+
+    /** Deletes keys in batches of up to maxBatchSize keys.
+     * Returns once the batches are scheduled; call await() to wait for the deletions to complete. */
+    public BatchDelete delete(Collection<String> keys) {
+        List<String> all = new ArrayList<>(keys);
+        for (int start=0; start<all.size(); start+=maxBatchSize) {
+            final List<String> batchKeys = all.subList(start, Math.min(all.size(), start + maxBatchSize));
+            batch.submit(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    deleteBatch(batchKeys);
+                    return null;
+                }
+            });
+        }
+        return this;
+    }
+
+    /** Keys that S3 could not delete for a transient reason, such as SlowDown or InternalError, are sent again in a
+     * smaller request, after the same backoff that Model.retries applies to requests that fail as a whole */
+    private void deleteBatch(List<String> keys) {
+        RetryPolicy retries = Model.retries;
+        List<String> remaining = keys;
+        for (int attempt=1; ; attempt++) {
+            final DeleteObjectsRequest request = new DeleteObjectsRequest(bucketName)
+                    .withKeys(remaining.toArray(new String[remaining.size()]))
+                    .withQuiet(true); // only failures are reported
+            try {
+                retries.call("Deletion of " + remaining.size() + " objects from " + bucketName, new Callable<Void>() {
+                    @Override
+                    public Void call() {
+                        s3.deleteObjects(request);
+                        return null;
+                    }
+                });
+                deleted.addAndGet(remaining.size());
+                Model.metrics.deleted(remaining.size());
+                return;
+            } catch (MultiObjectDeleteException e) {
+                deleted.addAndGet(remaining.size() - e.getErrors().size());
+                Model.metrics.deleted(remaining.size() - e.getErrors().size());
+                List<String> retry = new ArrayList<>();
+                for (MultiObjectDeleteException.DeleteError error : e.getErrors())
+                    if (attempt<retries.maxAttempts() && RetryPolicy.isTransient(error.getCode()))
+                        retry.add(error.getKey());
+                    else
+                        failed(new Failure(error.getKey(), error.getCode(), error.getMessage()));
+                if (retry.isEmpty())
+                    return;
+                remaining = retry;
+                try {
+                    Thread.sleep(retries.delay(attempt));
+                } catch (InterruptedException interrupted) {
+                    Thread.currentThread().interrupt();
+                    for (String key : remaining)
+                        failed(new Failure(key, "Interrupted", "deletion was interrupted"));
+                    return;
+                }
+            } catch (Exception e) {
+                for (String key : remaining)
+                    failed(new Failure(key, e.getClass().getSimpleName(), e.getMessage()));
+                return;
+            }
+        }
+    }
+
+    private void failed(Failure failure) {
+        logger.warn("Unable to delete " + failure);
+        failures.add(failure);
+    }
+
+    /** Block until every scheduled deletion has completed */
+    public BatchDelete await() {
+        batch.await();
+        return this;
+    }
+
+    /** @return number of objects deleted so far */
+    public long deleted() { return deleted.get(); }
+
+    /** @return keys that could not be deleted so far */
+    public List<Failure> failures() {
+        synchronized (failures) {
+            return new ArrayList<>(failures);
+        }
+    }
+}
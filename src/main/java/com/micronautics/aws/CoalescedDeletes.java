@@ -0,0 +1,63 @@
+package com.micronautics.aws;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.TreeSet;
+
+/** The deletions observed during one debounce window, reduced to the fewest keys and prefixes that cover them.
+ *
+ * Deleting a directory yields one event for the directory and one for each file it contained. The directory becomes
+ * a prefix ("dir/"), which absorbs the keys of its files and the prefixes of its subdirectories, so removing a tree
+ * of thousands of files is propagated as one listing of the prefix followed by batched deletes.
+ *
+ * Prefixes are kept so that none is the prefix of another; the only prefix that can cover a key is then the greatest
+ * prefix that sorts at or before the key. Not thread safe. */
+public class CoalescedDeletes {
+    private final TreeSet<String> keys = new TreeSet<>();
+    private final TreeSet<String> prefixes = new TreeSet<>();
+
+    /** @return prefix that covers key, or null */
+    private String coveringPrefix(String key) {
+        String prefix = prefixes.floor(key);
+        return prefix!=null && key.startsWith(prefix) ? prefix : null;
+    }
+
+    public boolean covers(String key) { return keys.contains(key) || coveringPrefix(key)!=null; }
+
+    public void addKey(String key) {
+        if (coveringPrefix(key)==null)
+            keys.add(key);
+    }
+
+    /** Adds the objects under directory, which should not end with a slash */
+    public void addDirectory(String directory) {
+        String prefix = directory.isEmpty() || directory.endsWith("/") ? directory : directory + "/";
+        if (coveringPrefix(prefix)!=null)
+            return;
+        String end = prefix + Character.MAX_VALUE;
+        prefixes.subSet(prefix, end).clear();
+        prefixes.add(prefix);
+        keys.subSet(prefix, end).clear();
+    }
+
+    public Collection<String> keys() { return new ArrayList<>(keys); }
+
+    public List<String> prefixes() { return new ArrayList<>(prefixes); }
+
+    public boolean isEmpty() { return keys.isEmpty() && prefixes.isEmpty(); }
+
+    /** @return number of keys and prefixes */
+    public int size() { return keys.size() + prefixes.size(); }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (Iterator<String> i = prefixes.iterator(); i.hasNext(); )
+            sb.append(i.next()).append("*").append(i.hasNext() || !keys.isEmpty() ? ", " : "");
+        for (Iterator<String> i = keys.iterator(); i.hasNext(); )
+            sb.append(i.next()).append(i.hasNext() ? ", " : "");
+        return sb.toString();
+    }
+}
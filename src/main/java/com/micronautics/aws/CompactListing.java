@@ -0,0 +1,468 @@
+package com.micronautics.aws;
+
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+
+/** Memory-lean store for bucket listings.
+ *
+ * An S3ObjectSummary holds the bucket name, owner, storage class, a Date and an ETag string for every object, which
+ * amounts to several hundred bytes per key. This store keeps only what AwsMirror reads: the key, size, last-modified
+ * time and ETag. Each key is split at its last slash; the directory part is interned so all objects in a directory
+ * share one copy of it, and the file name is stored as UTF-8 in a single shared byte array. Sizes, times and ETags are
+ * held in parallel primitive arrays, and an open-addressing hash table of ints gives constant-time lookups by key.
+ * The directories are also kept sorted, each with the indexes of its entries, so the entries below a prefix are found
+ * without scanning the whole listing.
+ *
+ * Entries are addressed by index; indexes are stable until the entry is removed. The index of a removed entry is
+ * reused by the next key that is added, and the bytes of removed names are reclaimed once they make up half of the
+ * names array, so a listing that is kept current for the life of a daemon does not grow as files come and go.
+ * This class is not thread-safe; RemoteCatalog guards it with a read/write lock. */
+public class CompactListing implements Iterable<CompactListing.Entry> {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final int EMPTY = 0;
+    private static final int DELETED = -1;
+
+    /** Directory of each id, or null if the id is free */
+    private final ArrayList<String> dirs = new ArrayList<>();
+    private final HashMap<String, Integer> dirIds = new HashMap<>();
+    private final TreeMap<String, Integer> sortedDirIds = new TreeMap<>();
+    /** Indexes of the entries of each directory, or null if the id is free */
+    private final ArrayList<IntList> dirEntries = new ArrayList<>();
+    /** Ids of directories whose entries were all removed */
+    private final IntList freeDirIds = new IntList();
+
+    private byte[] names = new byte[1024];
+    private int namesLength = 0;
+    /** Bytes of names that belong to removed entries */
+    private int deadNameBytes = 0;
+
+    private int[] dirId;
+    /** Position of each entry in the dirEntries of its directory */
+    private int[] dirPosition;
+    private int[] nameStart;
+    /** Length of the UTF-8 file name, or -1 if the entry was removed */
+    private int[] nameLength;
+    private int[] hash;
+    private long[] size;
+    private long[] lastModified;
+    private long[] eTagHigh;
+    private long[] eTagLow;
+    /** Number of parts for multipart ETags, 0 for simple MD5 ETags, or -1 if the ETag is held in oddETags */
+    private int[] eTagParts;
+    /** ETags that are not hex MD5 digests are rare enough to keep as strings */
+    private final HashMap<Integer, String> oddETags = new HashMap<>();
+
+    /** Holds entry index + 1, EMPTY or DELETED */
+    private int[] table;
+    private int tableUsed = 0;
+
+    private int count = 0;
+    private int live = 0;
+    /** Indexes of removed entries, which are reused before count grows */
+    private final IntList freeIndexes = new IntList();
+
+    public CompactListing() { this(1024); }
+
+    public CompactListing(int expectedSize) {
+        int capacity = Math.max(16, expectedSize);
+        dirId = new int[capacity];
+        dirPosition = new int[capacity];
+        nameStart = new int[capacity];
+        nameLength = new int[capacity];
+        hash = new int[capacity];
+        size = new long[capacity];
+        lastModified = new long[capacity];
+        eTagHigh = new long[capacity];
+        eTagLow = new long[capacity];
+        eTagParts = new int[capacity];
+        table = new int[Integer.highestOneBit(capacity * 2 - 1) * 2];
+    }
+
+    /** One entry of the listing, materialized on demand */
+    public static class Entry {
+        public final int index;
+        public final String key;
+        public final long size;
+        public final long lastModified;
+        public final String eTag;
+
+        public Entry(int index, String key, long size, long lastModified, String eTag) {
+            this.index = index;
+            this.key = key;
+            this.size = size;
+            this.lastModified = lastModified;
+            this.eTag = eTag;
+        }
+
+        public S3ObjectSummary toSummary(String bucketName) {
+            S3ObjectSummary objectSummary = new S3ObjectSummary();
+            objectSummary.setBucketName(bucketName);
+            objectSummary.setKey(key);
+            objectSummary.setSize(size);
+            objectSummary.setLastModified(new Date(lastModified));
+            objectSummary.setETag(eTag);
+            return objectSummary;
+        }
+    }
+
+    public void add(S3ObjectSummary objectSummary) {
+        put(objectSummary.getKey(), objectSummary.getSize(), objectSummary.getLastModified().getTime(), objectSummary.getETag());
+    }
+
+    /** Adds the key, or replaces the values stored for it if it is already present.
+     * @return index of the entry */
+    public int put(String key, long size, long lastModified, String eTag) {
+        int index = indexOf(key);
+        if (index<0) {
+            int slash = key.lastIndexOf('/') + 1;
+            String dir = key.substring(0, slash);
+            Integer id = dirIds.get(dir);
+            if (id==null)
+                id = addDir(dir);
+            byte[] name = key.substring(slash).getBytes(UTF8);
+            index = append(id, name);
+            IntList entries = dirEntries.get(id);
+            dirPosition[index] = entries.size;
+            entries.add(index);
+        }
+        this.size[index] = size;
+        this.lastModified[index] = lastModified;
+        setETag(index, eTag);
+        return index;
+    }
+
+    /** @return index of the entry for key, or -1 if the listing does not contain it */
+    public int indexOf(String key) {
+        int slash = key.lastIndexOf('/') + 1;
+        Integer id = dirIds.get(key.substring(0, slash));
+        if (id==null)
+            return -1;
+        byte[] name = key.substring(slash).getBytes(UTF8);
+        int h = hash(id, name, 0, name.length);
+        int mask = table.length - 1;
+        for (int slot = h & mask; ; slot = (slot + 1) & mask) {
+            int entry = table[slot];
+            if (entry==EMPTY)
+                return -1;
+            if (entry!=DELETED) {
+                int i = entry - 1;
+                if (hash[i]==h && dirId[i]==id && nameEquals(i, name))
+                    return i;
+            }
+        }
+    }
+
+    public boolean contains(String key) { return indexOf(key)>=0; }
+
+    /** @return true if the key was present */
+    public boolean remove(String key) {
+        int index = indexOf(key);
+        if (index<0)
+            return false;
+        int mask = table.length - 1;
+        for (int slot = hash[index] & mask; ; slot = (slot + 1) & mask)
+            if (table[slot]==index + 1) {
+                table[slot] = DELETED;
+                break;
+            }
+        removeFromDir(index);
+        deadNameBytes += nameLength[index];
+        nameLength[index] = -1;
+        oddETags.remove(index);
+        live--;
+        freeIndexes.add(index);
+        if (deadNameBytes > namesLength / 2)
+            compactNames();
+        return true;
+    }
+
+    private int addDir(String dir) {
+        int id;
+        if (freeDirIds.size>0) {
+            id = freeDirIds.pop();
+            dirs.set(id, dir);
+            dirEntries.set(id, new IntList());
+        } else {
+            id = dirs.size();
+            dirs.add(dir);
+            dirEntries.add(new IntList());
+        }
+        dirIds.put(dir, id);
+        sortedDirIds.put(dir, id);
+        return id;
+    }
+
+    /** Removes index from the entries of its directory, and frees the directory once it is empty */
+    private void removeFromDir(int index) {
+        int id = dirId[index];
+        IntList entries = dirEntries.get(id);
+        int moved = entries.pop();
+        if (moved!=index) {
+            entries.values[dirPosition[index]] = moved;
+            dirPosition[moved] = dirPosition[index];
+        }
+        if (entries.size==0) {
+            String dir = dirs.get(id);
+            dirIds.remove(dir);
+            sortedDirIds.remove(dir);
+            dirs.set(id, null);
+            dirEntries.set(id, null);
+            freeDirIds.add(id);
+        }
+    }
+
+    /** Copies the names of the live entries into a new array, dropping the bytes of removed names */
+    private void compactNames() {
+        byte[] compacted = new byte[Math.max(1024, (namesLength - deadNameBytes) + ((namesLength - deadNameBytes) >> 1))];
+        int length = 0;
+        for (int i=0; i<count; i++)
+            if (nameLength[i]>=0) {
+                System.arraycopy(names, nameStart[i], compacted, length, nameLength[i]);
+                nameStart[i] = length;
+                length += nameLength[i];
+            }
+        names = compacted;
+        namesLength = length;
+        deadNameBytes = 0;
+    }
+
+    /** @return indexes of the entries whose keys start with prefix, in no particular order */
+    public List<Integer> indexesUnder(String prefix) {
+        List<Integer> result = new ArrayList<>();
+        for (Map.Entry<String, Integer> dir : sortedDirIds.tailMap(prefix, true).entrySet()) {
+            if (!dir.getKey().startsWith(prefix))
+                break;
+            IntList entries = dirEntries.get(dir.getValue());
+            for (int i=0; i<entries.size; i++)
+                result.add(entries.values[i]);
+        }
+        int slash = prefix.lastIndexOf('/') + 1;
+        Integer id = slash==prefix.length() ? null : dirIds.get(prefix.substring(0, slash));
+        if (id!=null) { // prefix ends within the file names of a directory
+            byte[] namePrefix = prefix.substring(slash).getBytes(UTF8);
+            IntList entries = dirEntries.get(id);
+            for (int i=0; i<entries.size; i++)
+                if (nameStartsWith(entries.values[i], namePrefix))
+                    result.add(entries.values[i]);
+        }
+        return result;
+    }
+
+    /** @return indexes of the entries directly within directory, which is empty or ends with a slash */
+    public List<Integer> indexesIn(String directory) {
+        List<Integer> result = new ArrayList<>();
+        Integer id = dirIds.get(directory);
+        if (id!=null) {
+            IntList entries = dirEntries.get(id);
+            for (int i=0; i<entries.size; i++)
+                result.add(entries.values[i]);
+        }
+        return result;
+    }
+
+    public boolean isLive(int index) { return index>=0 && index<count && nameLength[index]>=0; }
+
+    public String key(int index) {
+        return dirs.get(dirId[index]) + new String(names, nameStart[index], nameLength[index], UTF8);
+    }
+
+    public long size(int index) { return size[index]; }
+
+    public long lastModified(int index) { return lastModified[index]; }
+
+    public String eTag(int index) {
+        int parts = eTagParts[index];
+        if (parts<0)
+            return oddETags.get(index);
+        StringBuilder sb = new StringBuilder(parts==0 ? 32 : 40);
+        appendHex(sb, eTagHigh[index]);
+        appendHex(sb, eTagLow[index]);
+        if (parts>0)
+            sb.append('-').append(parts);
+        return sb.toString();
+    }
+
+    public Entry entry(int index) {
+        return new Entry(index, key(index), size[index], lastModified[index], eTag(index));
+    }
+
+    /** @return number of keys in the listing */
+    public int size() { return live; }
+
+    /** @return upper bound (exclusive) of entry indexes, including removed entries; no more than the largest number of
+     * keys the listing has held at once */
+    public int indexLimit() { return count; }
+
+    /** Entries are returned in index order. That is the order they were added, which is key order for a listing read
+     * from S3, until entries are removed and their indexes reused. */
+    @Override
+    public Iterator<Entry> iterator() {
+        return new Iterator<Entry>() {
+            private int next = advance(0);
+
+            private int advance(int from) {
+                while (from<count && nameLength[from]<0)
+                    from++;
+                return from;
+            }
+
+            public boolean hasNext() { return next<count; }
+
+            public Entry next() {
+                if (next>=count)
+                    throw new NoSuchElementException();
+                Entry entry = entry(next);
+                next = advance(next + 1);
+                return entry;
+            }
+
+            public void remove() { throw new UnsupportedOperationException(); }
+        };
+    }
+
+    private int append(int id, byte[] name) {
+        int index;
+        if (freeIndexes.size>0)
+            index = freeIndexes.pop();
+        else {
+            if (count==dirId.length)
+                grow();
+            index = count++;
+        }
+        if (namesLength + name.length > names.length)
+            names = Arrays.copyOf(names, Math.max(names.length + (names.length >> 1), namesLength + name.length));
+        System.arraycopy(name, 0, names, namesLength, name.length);
+        dirId[index] = id;
+        nameStart[index] = namesLength;
+        nameLength[index] = name.length;
+        hash[index] = hash(id, name, 0, name.length);
+        namesLength += name.length;
+        live++;
+        if ((tableUsed + 1) * 2 > table.length)
+            rehash(table.length * 2);
+        insert(index);
+        return index;
+    }
+
+    private void insert(int index) {
+        int mask = table.length - 1;
+        int slot = hash[index] & mask;
+        while (table[slot]!=EMPTY)
+            slot = (slot + 1) & mask;
+        table[slot] = index + 1;
+        tableUsed++;
+    }
+
+    /** Rebuilding the table also discards tombstones left by removals */
+    private void rehash(int tableSize) {
+        if (live * 4 < tableUsed)
+            tableSize = table.length;
+        table = new int[tableSize];
+        tableUsed = 0;
+        for (int i=0; i<count; i++)
+            if (nameLength[i]>=0)
+                insert(i);
+    }
+
+    private void grow() {
+        int capacity = dirId.length + (dirId.length >> 1);
+        dirId = Arrays.copyOf(dirId, capacity);
+        dirPosition = Arrays.copyOf(dirPosition, capacity);
+        nameStart = Arrays.copyOf(nameStart, capacity);
+        nameLength = Arrays.copyOf(nameLength, capacity);
+        hash = Arrays.copyOf(hash, capacity);
+        size = Arrays.copyOf(size, capacity);
+        lastModified = Arrays.copyOf(lastModified, capacity);
+        eTagHigh = Arrays.copyOf(eTagHigh, capacity);
+        eTagLow = Arrays.copyOf(eTagLow, capacity);
+        eTagParts = Arrays.copyOf(eTagParts, capacity);
+    }
+
+    private boolean nameEquals(int index, byte[] name) {
+        if (nameLength[index]!=name.length)
+            return false;
+        int start = nameStart[index];
+        for (int i=0; i<name.length; i++)
+            if (names[start + i]!=name[i])
+                return false;
+        return true;
+    }
+
+    private boolean nameStartsWith(int index, byte[] prefix) {
+        if (nameLength[index]<prefix.length)
+            return false;
+        int start = nameStart[index];
+        for (int i=0; i<prefix.length; i++)
+            if (names[start + i]!=prefix[i])
+                return false;
+        return true;
+    }
+
+    private static int hash(int id, byte[] bytes, int offset, int length) {
+        int h = id * 0x9E3779B9;
+        for (int i=offset; i<offset + length; i++)
+            h = 31 * h + bytes[i];
+        return h ^ (h >>> 16);
+    }
+
+    /** S3 ETags are quoted hex MD5 digests, optionally followed by a dash and a part count for multipart uploads */
+    private void setETag(int index, String eTag) {
+        oddETags.remove(index);
+        String value = eTag==null ? "" : eTag.replace("\"", "");
+        int dash = value.indexOf('-');
+        String digest = dash<0 ? value : value.substring(0, dash);
+        try {
+            if (digest.length()!=32)
+                throw new NumberFormatException(digest);
+            int parts = dash<0 ? 0 : Integer.parseInt(value.substring(dash + 1));
+            if (parts<0)
+                throw new NumberFormatException(value);
+            eTagHigh[index] = parseHex(digest, 0);
+            eTagLow[index] = parseHex(digest, 16);
+            eTagParts[index] = parts;
+        } catch (NumberFormatException e) {
+            eTagParts[index] = -1;
+            if (eTag!=null)
+                oddETags.put(index, eTag);
+        }
+    }
+
+    private static long parseHex(String digest, int offset) {
+        long result = 0;
+        for (int i=offset; i<offset + 16; i++) {
+            int digit = Character.digit(digest.charAt(i), 16);
+            if (digit<0)
+                throw new NumberFormatException(digest);
+            result = (result << 4) | digit;
+        }
+        return result;
+    }
+
+    private static void appendHex(StringBuilder sb, long value) {
+        for (int shift=60; shift>=0; shift-=4)
+            sb.append(Character.forDigit((int) (value >>> shift) & 0xf, 16));
+    }
+
+    private static class IntList {
+        int[] values = new int[4];
+        int size = 0;
+
+        void add(int value) {
+            if (size==values.length)
+                values = Arrays.copyOf(values, size * 2);
+            values[size++] = value;
+        }
+
+        int pop() { return values[--size]; }
+    }
+}
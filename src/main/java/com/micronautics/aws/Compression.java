@@ -0,0 +1,99 @@
+package com.micronautics.aws;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/** Compresses text assets with gzip before they are uploaded, and decompresses them when they are downloaded.
+ *
+ * When Model.compressUploads is set, text files whose extension is in compressibleExtensions, such as HTML, CSS,
+ * JavaScript, JSON, XML and SVG, are compressed into a temporary file and uploaded with a Content-Encoding of gzip, so
+ * browsers fetch and decompress them in one step. Compression streams the file through a buffer, so files of any size
+ * can be compressed. The gzip header written by GZIPOutputStream holds no timestamp or file name, so the same content
+ * always compresses to the same bytes, and the ETag of a compressed object can be computed from the local file.
+ * Objects whose Content-Encoding is gzip are decompressed by RangedDownload. */
+public class Compression {
+    public static final String encoding = "gzip";
+    private static final int bufferSize = 64 * 1024;
+
+    private Compression() { }
+
+    /** @return true if the object for key is uploaded compressed */
+    public static boolean applies(String key) { return Model.compressUploads && isCompressible(key); }
+
+    /** Extensions of the text types that S3.contentType() maps explicitly. Keys with other extensions are not
+     * compressed, even though their content type defaults to text/plain, because most of them are binary files such as
+     * videos, fonts and archives, which are often compressed already. */
+    public static final Set<String> compressibleExtensions = new HashSet<>(Arrays.asList(
+            "css", "htm", "html", "js", "json", "jsp", "php", "shtml", "svg", "txt", "xml"));
+
+    /** @return true if key has one of compressibleExtensions, in any case */
+    public static boolean isCompressible(String key) {
+        int dot = key.lastIndexOf('.');
+        return dot>=0 && key.indexOf('/', dot)<0 && compressibleExtensions.contains(key.substring(dot + 1).trim().toLowerCase());
+    }
+
+    /** Writes the compressed content of file into a new temporary file, which the caller must delete */
+    public static File compress(File file) throws IOException {
+        File compressed = File.createTempFile("awsmirror", ".gz");
+        try (InputStream in = new FileInputStream(file);
+             OutputStream out = new GZIPOutputStream(new FileOutputStream(compressed), bufferSize)) {
+            copy(in, out);
+        } catch (IOException e) {
+            compressed.delete();
+            throw e;
+        }
+        return compressed;
+    }
+
+    /** Writes the decompressed content of compressed into file */
+    public static void decompress(File compressed, File file) throws IOException {
+        try (InputStream in = new GZIPInputStream(new BufferedInputStream(new FileInputStream(compressed), bufferSize), bufferSize);
+             OutputStream out = new FileOutputStream(file)) {
+            copy(in, out);
+        }
+    }
+
+    /** @return hex MD5 digest of the compressed content of file, which is the ETag it has once uploaded compressed;
+     * the compressed content is digested as it is produced, and not stored */
+    public static String md5(File file) throws IOException {
+        MessageDigest messageDigest;
+        try {
+            messageDigest = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        try (InputStream in = new FileInputStream(file);
+             OutputStream out = new GZIPOutputStream(new DigestOutputStream(new NullOutputStream(), messageDigest), bufferSize)) {
+            copy(in, out);
+        }
+        return HashCache.hex(messageDigest.digest());
+    }
+
+    private static void copy(InputStream in, OutputStream out) throws IOException {
+        byte[] buffer = new byte[bufferSize];
+        int count;
+        while ((count = in.read(buffer))>=0)
+            out.write(buffer, 0, count);
+    }
+
+    private static class NullOutputStream extends OutputStream {
+        @Override
+        public void write(int b) { }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) { }
+    }
+}
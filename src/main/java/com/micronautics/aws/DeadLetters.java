@@ -0,0 +1,162 @@
+package com.micronautics.aws;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/** Persistent list of the transfers and deletions that failed after every retry, so they can be retried on their own
+ * with the retry command instead of by repeating the whole upload or sync.
+ *
+ * The list is stored in a file called .s3failed next to the .s3 file, one failure per line, with the operation, the
+ * key, the time of the last failure and its reason separated by tabs; it is rewritten through a temporary file, and
+ * deleted once it is empty. A failure is removed from the list as soon as the same operation on the same key succeeds. */
+public class DeadLetters {
+    private static final Logger logger = LoggerFactory.getLogger(DeadLetters.class);
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    public static final String fileName = ".s3failed";
+
+    public static final String upload = "upload";
+    public static final String download = "download";
+    public static final String delete = "delete";
+
+    private final File file;
+    /** Keyed by operation and key, so the file lists the failures of each operation in key order */
+    private final TreeMap<String, Failure> failures = new TreeMap<>();
+    private boolean dirty = false;
+
+    public static class Failure {
+        public final String operation;
+        public final String key;
+        public final long time;
+        public final String reason;
+
+        public Failure(String operation, String key, long time, String reason) {
+            this.operation = operation;
+            this.key = key;
+            this.time = time;
+            this.reason = reason;
+        }
+
+        @Override
+        public String toString() { return operation + " " + key + ": " + reason; }
+    }
+
+    protected DeadLetters(File treeRoot) {
+        this.file = new File(treeRoot, fileName);
+    }
+
+    /** @return the failures recorded in treeRoot; empty if there are none, or if they could not be read */
+    public static DeadLetters load(File treeRoot) {
+        DeadLetters deadLetters = new DeadLetters(treeRoot);
+        if (!deadLetters.file.exists())
+            return deadLetters;
+        try {
+            for (String line : Files.readAllLines(deadLetters.file.toPath(), UTF8)) {
+                String[] fields = line.split("\t", 4);
+                if (fields.length==4)
+                    deadLetters.put(new Failure(fields[0], unescape(fields[1]), Long.parseLong(fields[2]), unescape(fields[3])));
+            }
+        } catch (IOException | RuntimeException e) {
+            logger.warn("Unable to read " + deadLetters.file + ": " + e.getMessage());
+        }
+        return deadLetters;
+    }
+
+    /** Records that operation on key failed for good, and saves the list at once */
+    public void failed(String operation, String key, Throwable reason) {
+        String message = reason.getMessage()!=null ? reason.getMessage() : reason.getClass().getSimpleName();
+        synchronized (this) {
+            put(new Failure(operation, RemoteCatalog.normalize(key), System.currentTimeMillis(), message));
+            dirty = true;
+        }
+        save();
+    }
+
+    /** Forgets an earlier failure of operation on key, now that it has succeeded; saved by the next saveIfDirty() */
+    public synchronized void succeeded(String operation, String key) {
+        if (!failures.isEmpty() && failures.remove(operation + "\t" + RemoteCatalog.normalize(key))!=null)
+            dirty = true;
+    }
+
+    /** @return the recorded failures of operation, in key order */
+    public synchronized List<Failure> failures(String operation) {
+        List<Failure> result = new ArrayList<>();
+        for (Failure failure : failures.values())
+            if (failure.operation.equals(operation))
+                result.add(failure);
+        return result;
+    }
+
+    public synchronized int size() { return failures.size(); }
+
+    public synchronized boolean isEmpty() { return failures.isEmpty(); }
+
+    private void put(Failure failure) { failures.put(failure.operation + "\t" + failure.key, failure); }
+
+    public void saveIfDirty() {
+        boolean save;
+        synchronized (this) {
+            save = dirty;
+        }
+        if (save)
+            save();
+    }
+
+    public synchronized void save() {
+        dirty = false;
+        try {
+            if (failures.isEmpty()) {
+                Files.deleteIfExists(file.toPath());
+                return;
+            }
+            Path tmpPath = new File(file.getParentFile(), fileName + ".tmp").toPath();
+            try (Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmpPath.toFile()), UTF8))) {
+                for (Map.Entry<String, Failure> entry : failures.entrySet()) {
+                    Failure failure = entry.getValue();
+                    writer.write(failure.operation + "\t" + escape(failure.key) + "\t" + failure.time + "\t" + escape(failure.reason) + "\n");
+                }
+            }
+            try {
+                Files.move(tmpPath, file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmpPath, file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e) {
+            dirty = true;
+            logger.warn("Unable to write " + file + ": " + e.getMessage());
+        }
+    }
+
+    /** Tabs, line breaks and backslashes are escaped, so each failure occupies one line */
+    private static String escape(String string) {
+        return string.replace("\\", "\\\\").replace("\t", "\\t").replace("\n", "\\n").replace("\r", "\\r");
+    }
+
+    private static String unescape(String string) {
+        StringBuilder sb = new StringBuilder(string.length());
+        for (int i=0; i<string.length(); i++) {
+            char c = string.charAt(i);
+            if (c=='\\' && i+1<string.length()) {
+                char next = string.charAt(++i);
+                sb.append(next=='t' ? '\t' : next=='n' ? '\n' : next=='r' ? '\r' : next);
+            } else
+                sb.append(c);
+        }
+        return sb.toString();
+    }
+}
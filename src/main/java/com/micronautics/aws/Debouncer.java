@@ -0,0 +1,158 @@
+package com.micronautics.aws;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+
+/** Waits until the file operations on each path have settled, then hands the settled paths to a Handler.
+ * Paths are identified by keys of type K.
+ *
+ * A path has settled once no event has been reported for it during debounceTime milliseconds. Each path with recent
+ * events has one Activity, which records only the times of its first and latest events. Reporting an event updates the
+ * Activity in constant time, without touching the queue of deadlines; the queue holds at most one entry per path,
+ * ordered by the deadline that was current when the entry was queued. When an entry falls due, a path that has had
+ * events since is queued again with its new deadline, and a path that has not is settled. Queue operations therefore
+ * happen once per debounce period of a path, however many events the path receives.
+ *
+ * Settled paths are delivered in groups: once a path settles, the paths that settle during the following
+ * groupingTime milliseconds are delivered with it, so the files of a tree that was removed or copied in one operation
+ * are handled together. The handler is called on the debouncer's own thread; nothing polls while no path is waiting. */
+public class Debouncer<K> {
+    private static final Logger logger = LoggerFactory.getLogger(Debouncer.class);
+
+    /** Receives paths whose file operations have settled */
+    public interface Handler<K> {
+        void settled(List<Activity<K>> activities);
+    }
+
+    /** Recent events of one path */
+    public static class Activity<K> implements Delayed {
+        private final K path;
+        private final long firstEventTime;
+        private long lastEventTime;
+        private volatile long deadline;
+        private boolean settled = false;
+
+        private Activity(K path, long time, long deadline) {
+            this.path = path;
+            this.firstEventTime = time;
+            this.lastEventTime = time;
+            this.deadline = deadline;
+        }
+
+        public K getPath() { return path; }
+
+        public long getFirstEventTime() { return firstEventTime; }
+
+        public synchronized long getLastEventTime() { return lastEventTime; }
+
+        /** ms between first and last events. If only one event, 0 is returned. */
+        public synchronized long eventTimeSpan() { return lastEventTime - firstEventTime; }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(deadline - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed that) {
+            long thisDeadline = this.deadline;
+            long thatDeadline = ((Activity<?>) that).deadline;
+            return thisDeadline<thatDeadline ? -1 : thisDeadline>thatDeadline ? 1 : 0;
+        }
+    }
+
+    private final ConcurrentHashMap<K, Activity<K>> activities = new ConcurrentHashMap<>();
+    private final DelayQueue<Activity<K>> deadlines = new DelayQueue<>();
+    private final long debounceTime;
+    private final long groupingTime;
+    private final Handler<K> handler;
+    private final Thread thread;
+
+    /** @param debounceTime milliseconds without events after which a path has settled
+     *  @param groupingTime milliseconds during which settled paths are gathered into one call of the handler */
+    public Debouncer(String name, long debounceTime, long groupingTime, Handler<K> handler) {
+        this.debounceTime = debounceTime;
+        this.groupingTime = groupingTime;
+        this.handler = handler;
+        this.thread = new Thread(new Runnable() {
+            @Override
+            public void run() { deliver(); }
+        }, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /** Records an event for path */
+    public void touch(K path) {
+        long now = System.currentTimeMillis();
+        for (;;) {
+            Activity<K> activity = activities.get(path);
+            if (activity==null) {
+                Activity<K> added = new Activity<>(path, now, now + debounceTime);
+                if (activities.putIfAbsent(path, added)==null) {
+                    deadlines.add(added);
+                    return;
+                }
+                continue;
+            }
+            synchronized (activity) {
+                if (!activity.settled) {
+                    activity.lastEventTime = Math.max(activity.lastEventTime, now);
+                    return;
+                }
+            }
+            activities.remove(path, activity); // settled concurrently; start a new Activity
+        }
+    }
+
+    /** @return number of paths whose events have not settled yet */
+    public int size() { return activities.size(); }
+
+    public void stop() { thread.interrupt(); }
+
+    private void deliver() {
+        try {
+            for (;;) {
+                List<Activity<K>> settled = new ArrayList<>();
+                settle(deadlines.take(), settled);
+                long groupEnd = System.currentTimeMillis() + groupingTime;
+                for (long wait = groupingTime; wait>0; wait = groupEnd - System.currentTimeMillis()) {
+                    Activity<K> activity = deadlines.poll(wait, TimeUnit.MILLISECONDS);
+                    if (activity!=null)
+                        settle(activity, settled);
+                }
+                if (settled.isEmpty())
+                    continue;
+                try {
+                    handler.settled(settled);
+                } catch (RuntimeException e) {
+                    logger.warn("Unable to handle settled paths: " + e.getMessage(), e);
+                }
+            }
+        } catch (InterruptedException e) {
+            logger.debug("Debouncer stopped");
+        }
+    }
+
+    /** Adds activity to settled if it has had no events for debounceTime ms, otherwise queues it again */
+    private void settle(Activity<K> activity, List<Activity<K>> settled) {
+        synchronized (activity) {
+            long deadline = activity.lastEventTime + debounceTime;
+            if (deadline>System.currentTimeMillis()) {
+                activity.deadline = deadline;
+                deadlines.add(activity);
+                return;
+            }
+            activity.settled = true;
+        }
+        activities.remove(activity.path, activity);
+        settled.add(activity);
+    }
+}
@@ -1,87 +1,198 @@
 package com.micronautics.aws;
 
-import akka.dispatch.Futures;
+import com.amazonaws.AmazonClientException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
 import java.io.IOException;
 import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.WatchEvent;
 import java.nio.file.WatchKey;
 import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentLinkedDeque;
-import java.util.concurrent.PriorityBlockingQueue;
-import java.util.regex.Pattern;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
 import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
 import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
 import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
 
+/** Watches one or more linked directory trees, and uploads or deletes the files that change once they settle.
+ *
+ * All trees share one WatchService and the thread that calls watch(), one Debouncer thread, one thread that sends
+ * deletions, and the transfer scheduler, so the cost of watching another tree is only its watch keys. Each tree is
+ * mirrored to the bucket of its MirrorRoot, with that root's ignore rules, catalog and sync index. */
 public class DirectoryWatcher {
     private static final Logger logger = LoggerFactory.getLogger(DirectoryWatcher.class);
-    private WatchService watcher = null;
-    private final Path dir;
-    private final String rootDir;
-    private final int rootDirLen;
-    private final Map<WatchKey, Path> keys = new HashMap<>();
-    private final Timer timer = new Timer();
+    private final WatchService watcher;
+    private final Map<WatchKey, WatchedDirectory> keys = new ConcurrentHashMap<>();
+    private final Map<MirrorRoot, Tree> trees = new ConcurrentHashMap<>();
+    protected Debouncer<TreePath> debouncer = new Debouncer<>("debounce", Model.debounceTime, Model.debounceGroupingTime,
+            new Debouncer.Handler<TreePath>() {
+                @Override
+                public void settled(List<Debouncer.Activity<TreePath>> activities) { DirectoryWatcher.this.settled(activities); }
+            });
+    protected TransferScheduler.Batch uploads = Model.transfers.newBatch();
+
+    /** Sends the deletions of each debounce window in turn, so the debouncer thread never waits for S3 */
+    protected final ExecutorService deleter = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "watcher-delete");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    /** A watched tree */
+    protected static class Tree {
+        final MirrorRoot root;
+        final Path path;
+        /** Relative paths of watched directories, with forward slashes */
+        final NavigableSet<String> directories = new ConcurrentSkipListSet<>();
+        /** Deletions of earlier debounce windows that have not completed yet */
+        final List<CoalescedDeletes> pendingDeletes = Collections.synchronizedList(new ArrayList<CoalescedDeletes>());
+
+        Tree(MirrorRoot root, Path path) {
+            this.root = root;
+            this.path = path;
+        }
+
+        /** @return true if key will be deleted by deletions that have not completed yet */
+        boolean isPendingDeletion(String key) {
+            synchronized (pendingDeletes) {
+                for (CoalescedDeletes deletes : pendingDeletes)
+                    if (deletes.covers(key))
+                        return true;
+            }
+            return false;
+        }
+    }
+
+    /** A directory registered with the WatchService */
+    private static class WatchedDirectory {
+        final Tree tree;
+        final Path relativePath;
 
-    /** Time by which all file operations should have settled */
-    protected long debounceTime = 5 * 1000L; // todo make this configurable
+        WatchedDirectory(Tree tree, Path relativePath) {
+            this.tree = tree;
+            this.relativePath = relativePath;
+        }
+    }
 
-    /** Milliseconds between checks for debounced file events */
-    protected long debounceCheckInterval = debounceTime / 5L; // todo make this configurable
-    protected HistoryMap historyMap = new HistoryMap();
-    protected DebounceQueue debounceQueue = new DebounceQueue();
-    protected QueueTask queueTask = new QueueTask();
+    /** A path within a watched tree, with forward slashes; the key by which events are debounced */
+    protected static class TreePath {
+        final Tree tree;
+        final String relativePath;
 
+        TreePath(Tree tree, String relativePath) {
+            this.tree = tree;
+            this.relativePath = relativePath;
+        }
 
-    /** On Windows, using DreamWeaver, ENTRY_CREATE was always followed by one to 3 ENTRY_MODIFY (in testing) -
-     * up to 4.5 seconds afterwards! */
-    public DirectoryWatcher(Path watchedPath) throws IOException{
-        this.dir = watchedPath;
-        this.rootDir = dir.toFile().getAbsolutePath();
-        this.rootDirLen = rootDir.length();
-        this.watcher = FileSystems.getDefault().newWatchService();
-        for (Path path : subPaths(watchedPath, new ArrayList<Path>())) {
-            WatchKey watchKey = path.register(watcher, /*ENTRY_CREATE, */ENTRY_DELETE, ENTRY_MODIFY);
-            Path relativePath = watchedPath.relativize(path);
-            keys.put(watchKey, relativePath);
-            logger.debug("watchKey " + watchKey + " => " + relativePath.toString());
+        @Override
+        public boolean equals(Object that) {
+            return that instanceof TreePath && ((TreePath) that).tree==tree && ((TreePath) that).relativePath.equals(relativePath);
         }
-        timer.schedule(queueTask, debounceCheckInterval, debounceCheckInterval);
+
+        @Override
+        public int hashCode() { return 31 * System.identityHashCode(tree) + relativePath.hashCode(); }
+
+        @Override
+        public String toString() { return relativePath; }
     }
 
-    protected static boolean ignore(File file) {
-        for (Pattern pattern : Model.ignoredPatterns)
-            if (pattern.matcher(file.getName()).matches()) {
-                System.out.println("Ignoring " + file.getName());
-                return true;
-            }
-        return false;
+    public DirectoryWatcher() throws IOException {
+        this.watcher = FileSystems.getDefault().newWatchService();
+        Model.metrics.watch(debouncer);
     }
 
-    protected static ArrayList<Path> subPaths(Path path, ArrayList<Path> result) {
-        logger.debug("  Watching subPath " + path);
-        if (path.toFile().isDirectory() && result.size()==0)
-            result.add(path);
+    /** Watches one tree whose state is held in the static fields of Model */
+    public DirectoryWatcher(Path watchedPath) throws IOException {
+        this();
+        addRoot(MirrorRoot.model, watchedPath);
+    }
 
-        for (File file : path.toFile().listFiles())
-            if (file.isDirectory()) {
-                Path subPath = file.toPath();
-                result.add(subPath);
-                subPaths(subPath, result);
+    /** On Windows, using DreamWeaver, ENTRY_CREATE was always followed by one to 3 ENTRY_MODIFY (in testing) -
+     * up to 4.5 seconds afterwards! ENTRY_CREATE events for files are debounced together with those modifications;
+     * ENTRY_CREATE events for directories cause the new directory tree to be watched. */
+    public void addRoot(MirrorRoot root, Path watchedPath) throws IOException {
+        Tree tree = new Tree(root, watchedPath);
+        trees.put(root, tree);
+        register(tree, watchedPath);
+        registerSubdirectories(tree, watchedPath, false, Model.walkWorkers);
+    }
+
+    /** Compares every file of a tree added with addRoot() with its recorded state, as though all its events had been
+     * lost, and queues the files that changed while the tree was not being watched */
+    public void rescan(MirrorRoot root) {
+        Tree tree = trees.get(root);
+        for (String directory : new ArrayList<>(tree.directories))
+            rescan(tree, Paths.get(directory));
+    }
+
+    private void register(Tree tree, Path path) throws IOException {
+        WatchKey watchKey = path.register(watcher, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY);
+        Path relativePath = tree.path.relativize(path);
+        keys.put(watchKey, new WatchedDirectory(tree, relativePath));
+        tree.directories.add(relativePath.toString().replace("\\", "/"));
+        logger.debug("watchKey " + watchKey + " => " + relativePath.toString());
+    }
+
+    /** Watches a directory that was created after the watcher started, and its subdirectories.
+     * Files that were written before the directories were registered produced no events, so every file found is
+     * queued for upload as though it had just been created; files that do produce events are debounced with them. */
+    protected void registerNewDirectory(Tree tree, Path newDirectory) {
+        try {
+            register(tree, newDirectory);
+        } catch (IOException e) {
+            logger.warn("Unable to watch new directory " + newDirectory + ": " + e.getMessage());
+            return;
+        }
+        registerSubdirectories(tree, newDirectory, true, 1);
+    }
+
+    /** Registers every directory below directory that is not ignored, walking the tree on workers threads
+     * @param touchFiles if true, every file found is queued as though it had just been created */
+    protected void registerSubdirectories(final Tree tree, Path directory, final boolean touchFiles, int workers) {
+        final String prefix = tree.path.relativize(directory).toString().replace("\\", "/");
+        new ParallelTreeWalk(tree.root.getIgnores(), workers).walk(directory, new ParallelTreeWalk.Visitor() {
+            @Override
+            public boolean preVisitDirectory(String key, Path path) {
+                try {
+                    register(tree, path);
+                    return true;
+                } catch (IOException e) {
+                    logger.warn("Unable to watch " + path + ": " + e.getMessage());
+                    return false;
+                }
             }
-        return result;
+
+            @Override
+            public void visitFile(String key, Path path, BasicFileAttributes attributes) {
+                if (touchFiles)
+                    debouncer.touch(new TreePath(tree, prefix.length()==0 ? key : prefix + "/" + key));
+            }
+        });
     }
 
     /** Process all events for the key queued to the watcher. */
@@ -94,14 +205,29 @@ public class DirectoryWatcher {
                 return;
             }
 
-            Path basePath = keys.get(key);
+            WatchedDirectory watched = keys.get(key);
+            if (watched==null) {
+                key.cancel();
+                continue;
+            }
+            Tree tree = watched.tree;
+            Path basePath = watched.relativePath;
             logger.debug("key=" + key + "; basePath=" + basePath);
 
             for (WatchEvent<?> event : key.pollEvents()) {
                 WatchEvent.Kind<?> kind = event.kind();
+                if (kind == OVERFLOW) { // events were lost or discarded
+                    logger.warn("DirectoryWatcher got an OVERFLOW event for '" + basePath + "'; rescanning it");
+                    rescan(tree, basePath);
+                    continue;
+                }
                 @SuppressWarnings("unchecked") WatchEvent<Path> ev = (WatchEvent<Path>) event;
                 Path path = ev.context();
 
+                if (tree.root.ignore(path.getFileName().toString())) {
+                    logger.debug("DirectoryWatcher ignoring '" + path.getFileName() + "'");
+                    continue;
+                }
                 String relativePath = "";
                 if (basePath.toString().length()>0)
                     relativePath = basePath.toString() + "/";
@@ -110,159 +236,269 @@ public class DirectoryWatcher {
 
                 logger.debug("path=" + path + "; relativePath=" + relativePath);
 
-                if (kind == OVERFLOW) { // were events lost or discarded?
-                    logger.warn("DirectoryWatcher got an OVERFLOW event for " + relativePath);
-                    continue;
-                }
-                if (ignore(path.toFile())) {
-                    logger.debug("DirectoryWatcher ignoring '" + path.getFileName() + "'");
+                Path fullPath = tree.path.resolve(relativePath);
+                if (kind == ENTRY_CREATE && Files.isDirectory(fullPath, LinkOption.NOFOLLOW_LINKS)) {
+                    registerNewDirectory(tree, fullPath);
                     continue;
                 }
-                historyMap.update(relativePath, event);
+                debouncer.touch(new TreePath(tree, relativePath));
             }
 
             // Reset the key -- important in order to receive further watch events.
-            // If the key is no longer valid, the directory is inaccessible so exit the loop.
-            if (!key.reset())
-                break;
+            // If the key is no longer valid, its directory was deleted or became inaccessible, so stop tracking it;
+            // exit the loop once no directories remain.
+            if (!key.reset()) {
+                logger.debug("No longer watching " + basePath);
+                keys.remove(key);
+                if (keys.isEmpty())
+                    break;
+            }
         }
     }
 
-    /** @param time milliseconds */
-    protected static long roundToNearestSecond(long time) { return (time / 1000L) * 1000L; }
-
-    private class QueueTask extends TimerTask {
-
-        /** Check queue for events old enough to take action on */
-        public void run() {
-            logger.debug("Entering QueueTask.run(); debounceQueue has " + debounceQueue.size() + " items in it.");
-            while (debounceQueue.peek()!=null && debounceQueue.peek().isDebounced()) {
-                FileHistory fileHistory = debounceQueue.poll();
-                Path relativePath = fileHistory.getFile().toPath();
-                String debugMsg = fileHistory.eventTimeSpan() + " ms between first and last events";
-                if (fileHistory.getFile().exists()) {
-                    Model.modificationTimes.add(fileHistory.eventTimeSpan());
-                    logger.debug("Uploading '" + relativePath + "' to AWS S3; " + debugMsg);
-                    String s3Key = relativePath.toString();
-                    if (Model.multithreadingEnabled)
-                        Futures.future(new UploadOne(s3Key, fileHistory.getFile()), Main.system().dispatcher());
-                    else
-                        new UploadOne(s3Key, fileHistory.getFile()).call();
-                } else {
-                    logger.debug("Deleting '" + relativePath + "' from AWS S3; " + debugMsg);
-                    Model.deletionTimes.add(fileHistory.eventTimeSpan());
-                    try {
-                      Model.s3.deleteObject(Model.bucketName, relativePath.toString());
-                    } catch (Exception e) {
-                        System.out.println("Error deleting '" + relativePath.toString() + "' from AWS S3; " + e.getMessage());
-                    }
+    /** Finds the changes to the entries of a watched directory whose events were lost, and queues them as though
+     * their events had arrived. Each file is compared with the state recorded in the sync index, or in the catalog if
+     * there is no index, so unchanged files are skipped without contacting S3. Files that were recorded but no longer
+     * exist are queued for deletion, and so are vanished subdirectories. New subdirectories are registered and
+     * scanned. Existing subdirectories have their own watch keys, and are rescanned when those keys overflow. */
+    protected void rescan(Tree tree, Path basePath) {
+        String prefix = basePath.toString().replace("\\", "/");
+        if (prefix.length()>0)
+            prefix += "/";
+        File scanned = tree.path.resolve(basePath).toFile();
+        String[] names = scanned.list();
+        if (names==null) {
+            logger.debug("Unable to rescan '" + basePath + "'");
+            return;
+        }
+        Set<String> present = new HashSet<>();
+        int queued = 0;
+        for (String name : names) {
+            String relativePath = prefix + name;
+            present.add(relativePath);
+            if (tree.root.ignore(name))
+                continue;
+            File file = new File(scanned, name);
+            if (file.isDirectory()) {
+                if (!tree.directories.contains(relativePath)) {
+                    registerNewDirectory(tree, file.toPath());
+                    queued++;
                 }
-                historyMap.remove(relativePath);
-                //logger.debug("Removed '" + relativePath + "' from historyMap; size=" + historyMap.size());
+            } else if (changed(tree.root, file, relativePath)) {
+                debouncer.touch(new TreePath(tree, relativePath));
+                queued++;
             }
-            String stats = Util.computeStats(Model.modificationTimes, Model.deletionTimes);
-            if (stats.length()>0)
-              logger.info(stats);
         }
+        List<String> known = new ArrayList<>(); // entries directly within this directory
+        if (tree.root.getSyncIndex()!=null)
+            known.addAll(tree.root.getSyncIndex().keysIn(prefix));
+        known.addAll(tree.root.getCatalog().keysIn(prefix));
+        known.addAll(SyncIndex.childrenOf(tree.directories, prefix));
+        for (String key : known)
+            if (present.add(key)) { // gone
+                debouncer.touch(new TreePath(tree, key));
+                queued++;
+            }
+        logger.info("Rescanned '" + basePath + "'; " + queued + " changes found");
     }
 
-    protected class DebounceQueue extends PriorityBlockingQueue<FileHistory> {}
-
-    private class HistoryMap extends ConcurrentHashMap<Path, FileHistory> {
-        public void update(String relativePath, WatchEvent<?> event) {
-            logger.debug("HistoryMap.update; ");
-            Path path = Paths.get(relativePath);
-            FileHistory fileHistory = get(path);
-            if (fileHistory==null)
-                fileHistory = new FileHistory(path);
-            FileEvent fileEvent = new FileEvent(path, event);
-            fileHistory.events.add(fileEvent);
-            logger.debug("Added fileEvent to fileHistory.events with time=" + fileEvent.getTime());
-            put(path, fileHistory);
-            logger.debug("Put fileHistory to HistoryMap");
-            if (!debounceQueue.contains(fileHistory))
-                debounceQueue.add(fileHistory);
+    /** @return false if the recorded state shows that file has not changed since it was last synchronized */
+    protected static boolean changed(MirrorRoot root, File file, String key) {
+        if (root.getSyncIndex()!=null) {
+            SyncIndex.Entry entry = root.getSyncIndex().get(key);
+            if (entry!=null)
+                return !entry.matches(file);
         }
+        CompactListing.Entry entry = root.getCatalog().get(key);
+        return entry==null || (entry.size!=file.length() && !Compression.applies(key)) ||
+                RemoteCatalog.compareAge(file, entry.lastModified)==Model.s3FileIsOlderThanLocal;
     }
 
-    /** History and present status of file that has recently had one or more FileEvents.
-     * Sort order is FileHistory with oldest event at tail of the queue first. */
-    protected class FileHistory implements Comparable<FileHistory> {
-        private ConcurrentLinkedDeque<FileEvent> events = new ConcurrentLinkedDeque<>();
-        private Path path;
-        private File file;
+    /** Sends deletes on the deleter thread; the multi-object delete requests themselves run on Model.deletes
+     * @param copies copies from the keys being deleted, which must complete first; null if there are none */
+    protected void delete(final Tree tree, final CoalescedDeletes deletes, final TransferScheduler.Batch copies) {
+        logger.debug("Deleting " + deletes + " from " + tree.root.getBucketName());
+        tree.pendingDeletes.add(deletes);
+        deleter.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (copies!=null)
+                        copies.await();
+                    BatchDelete batchDelete = new BatchDelete(tree.root.getS3().s3, tree.root.getBucketName()).delete(deletes.keys());
+                    for (String prefix : deletes.prefixes())
+                        batchDelete.deletePrefix(prefix);
+                    DeadLetters deadLetters = tree.root.getDeadLetters();
+                    Set<String> failedKeys = new HashSet<>();
+                    for (BatchDelete.Failure failure : batchDelete.await().failures()) {
+                        logger.warn("Error deleting '" + failure.key + "' from " + tree.root.getBucketName() + "; " + failure.code + " " + failure.message);
+                        Model.metrics.deleteFailed(1);
+                        failedKeys.add(failure.key);
+                        if (deadLetters!=null)
+                            deadLetters.failed(DeadLetters.delete, failure.key, new AmazonClientException(failure.code + " " + failure.message));
+                    }
+                    if (deadLetters!=null && !deadLetters.isEmpty()) {
+                        for (String key : deletes.keys())
+                            if (!failedKeys.contains(key))
+                                deadLetters.succeeded(DeadLetters.delete, key);
+                        if (failedKeys.isEmpty())
+                            for (String prefix : deletes.prefixes())
+                                deadLetters.succeeded(DeadLetters.delete, prefix);
+                        deadLetters.saveIfDirty();
+                    }
+                } catch (Exception e) {
+                    logger.warn("Error deleting " + deletes + " from " + tree.root.getBucketName() + "; " + e.getMessage());
+                    Model.metrics.deleteFailed(deletes.keys().size() + deletes.prefixes().size());
+                    DeadLetters deadLetters = tree.root.getDeadLetters();
+                    if (deadLetters!=null) {
+                        for (String key : deletes.keys())
+                            deadLetters.failed(DeadLetters.delete, key, e);
+                        for (String prefix : deletes.prefixes())
+                            deadLetters.failed(DeadLetters.delete, prefix, e);
+                    }
+                } finally {
+                    tree.pendingDeletes.remove(deletes);
+                }
+            }
+        });
+    }
 
-        public FileHistory(Path path) {
-            this.path = path;
-            this.file = path.toFile();
-        }
+    /** The deletions and uploads of one tree during one debounce window */
+    private static class Window {
+        final CoalescedDeletes deletes = new CoalescedDeletes();
+        final RenameDetector renames;
+        final List<String> uploadKeys = new ArrayList<>();
+        final List<File> uploadFiles = new ArrayList<>();
 
-        @Override
-        public int compareTo(FileHistory that) {
-            long thisTime = this.events.peekLast().getTime();
-            long thatTime = that.events.peekLast().getTime();
-            if (thisTime<thatTime)
-                return -1;
-            if (thisTime>thatTime)
-                return 1;
-            return 0;
+        Window(MirrorRoot root) {
+            this.renames = new RenameDetector(root.getHashCache());
         }
+    }
 
-        /** @return last modified time, in milliseconds, or 0 if the file does not exist.
-         * Time is rounded to the nearest second for consistency on all OSes.
-         * Once uploaded to S3, we need the same behavior on all OSes, and some OSes only support second resolution. */
-        public long getLastModified() {
-            if (file.exists())
-              return roundToNearestSecond(file.lastModified());
-            return 0;
+    /** Acts on paths whose file operations have settled.
+     * Deletions are collected per tree and sent together once all the paths have been handled. Uploads of files that
+     * are about to be deleted by an earlier window are postponed until that deletion has completed.
+     * A file created during the window with the same size and content as a file deleted during the window, as when a
+     * file or directory is renamed or moved, is copied on S3 from the deleted key instead of being uploaded; the
+     * deletions of the window are sent once those copies have completed. Directories that still exist are never
+     * uploaded; one that is not being watched, because it was deleted and recreated, is registered again. */
+    protected void settled(List<Debouncer.Activity<TreePath>> activities) {
+        logger.debug("Entering settled(); " + activities.size() + " paths settled, " + debouncer.size() + " paths pending.");
+        Map<Tree, Window> windows = new LinkedHashMap<>();
+        for (Debouncer.Activity<TreePath> activity : activities) {
+            Tree tree = activity.getPath().tree;
+            MirrorRoot root = tree.root;
+            String s3Key = activity.getPath().relativePath;
+            File file = tree.path.resolve(s3Key).toFile();
+            String debugMsg = activity.eventTimeSpan() + " ms between first and last events";
+            Window window = windows.get(tree);
+            if (window==null) {
+                window = new Window(root);
+                windows.put(tree, window);
+            }
+            if (file.isDirectory()) { // its files have events of their own
+                if (!tree.directories.contains(s3Key)) {
+                    logger.debug("Watching recreated directory '" + s3Key + "'");
+                    registerNewDirectory(tree, file.toPath());
+                } else
+                    logger.debug("Not uploading directory '" + s3Key + "'; " + debugMsg);
+            } else if (file.exists() && tree.isPendingDeletion(s3Key)) {
+                logger.debug("Postponing upload of '" + s3Key + "' until its deletion completes");
+                debouncer.touch(activity.getPath());
+            } else if (file.exists()) {
+                Model.metrics.settled(activity.getFirstEventTime(), activity.eventTimeSpan(), false);
+                int comparedAges = root.compareAge(file, s3Key);
+                if (comparedAges==Model.s3FileSameAgeAsLocal || comparedAges==Model.s3FileNewerThanLocal) {
+                    logger.debug("Not uploading '" + s3Key + "' because the remote copy is up to date; " + debugMsg);
+                } else {
+                    logger.debug("Uploading '" + s3Key + "' to " + root.getBucketName() + "; " + debugMsg);
+                    window.uploadKeys.add(s3Key);
+                    window.uploadFiles.add(file);
+                }
+            } else if (tree.directories.remove(s3Key)) {
+                logger.debug("Deleting directory '" + s3Key + "' from " + root.getBucketName() + "; " + debugMsg);
+                forgetSubdirectories(tree, s3Key);
+                Model.metrics.settled(activity.getFirstEventTime(), activity.eventTimeSpan(), true);
+                window.deletes.addDirectory(s3Key);
+                renameCandidatesUnder(root, s3Key + "/", window.renames);
+                root.getCatalog().removePrefix(s3Key + "/");
+                if (root.getSyncIndex()!=null)
+                    root.getSyncIndex().removePrefix(s3Key + "/");
+            } else if (window.deletes.covers(s3Key)) {
+                logger.debug("'" + s3Key + "' is already being deleted; " + debugMsg);
+            } else if (root.isListed() && !root.getCatalog().contains(s3Key)) {
+                logger.debug("Not deleting '" + s3Key + "' because it does not exist on AWS S3; " + debugMsg);
+            } else {
+                logger.debug("Deleting '" + s3Key + "' from " + root.getBucketName() + "; " + debugMsg);
+                Model.metrics.settled(activity.getFirstEventTime(), activity.eventTimeSpan(), true);
+                window.deletes.addKey(s3Key);
+                renameCandidate(root, s3Key, window.renames);
+                root.getCatalog().remove(s3Key);
+                if (root.getSyncIndex()!=null)
+                    root.getSyncIndex().remove(s3Key);
+            }
         }
-
-        /** ms between first and last events. If only one event, 0 is returned. */
-        public long eventTimeSpan() { return events.peekLast().getTime() - events.peekFirst().getTime(); }
-
-        public File getFile() { return file; }
-
-        public Path getPath() { return path; }
-
-        public boolean isDebounced() {
-            FileEvent[] eventArray = events.toArray(new FileEvent[events.size()]); // get consistent view
-            int n = eventArray.length;
-            long lastEventTime = eventArray[n-1].getTime();
-            long now = System.currentTimeMillis();
-            if (now - lastEventTime >= debounceTime) {
-                logger.debug("isDebounced returning true because of no activity for " + (now - lastEventTime) + " ms");
-                return true;
+        for (Map.Entry<Tree, Window> entry : windows.entrySet()) {
+            MirrorRoot root = entry.getKey().root;
+            Window window = entry.getValue();
+            TransferScheduler.Batch copies = null;
+            for (int i=0; i<window.uploadKeys.size(); i++) {
+                String s3Key = window.uploadKeys.get(i);
+                File file = window.uploadFiles.get(i);
+                RenameDetector.Rename rename = window.renames.isEmpty() ? null : window.renames.created(s3Key, file);
+                if (rename!=null) {
+                    logger.debug("Copying '" + rename.from + "' to '" + s3Key + "' in " + root.getBucketName());
+                    if (copies==null)
+                        copies = Model.transfers.newBatch();
+                    transfer(copies, new CopyOne(root, rename));
+                } else
+                    transfer(uploads, new UploadOne(root, s3Key, file));
             }
-            return false;
+            if (!window.deletes.isEmpty())
+                delete(entry.getKey(), window.deletes, copies);
+            if (root.getSyncIndex()!=null)
+                root.getSyncIndex().saveIfDirty();
+            if (root.getDeadLetters()!=null)
+                root.getDeadLetters().saveIfDirty();
         }
     }
 
-    /** Record of something happening to a file (delete, create, modify). */
-    protected class FileEvent {
-        private WatchEvent<?> watchEvent;
+    /** Stops tracking the subdirectories of a deleted directory, so they are registered again if it is recreated */
+    private static void forgetSubdirectories(Tree tree, String directory) {
+        Iterator<String> subdirectories = tree.directories.tailSet(directory + "/").iterator();
+        while (subdirectories.hasNext() && subdirectories.next().startsWith(directory + "/"))
+            subdirectories.remove();
+    }
 
-        /** Timestamp of event, in milliseconds, without rounding */
-        private long time = System.currentTimeMillis();
-        private Path path;
+    private static void transfer(TransferScheduler.Batch batch, Callable<?> task) {
+        if (Model.multithreadingEnabled)
+            batch.submit(task);
+        else
+            batch.run(task);
+    }
 
-        /** @param path is fully qualified Path of file referenced by watchEvent */
-        public FileEvent(Path path, WatchEvent<?> watchEvent) {
-            this.path = path;
-            this.watchEvent = watchEvent;
+    /** Offers a key that is about to be deleted to renames, with the size and digest recorded for its remote copy */
+    private static void renameCandidate(MirrorRoot root, String key, RenameDetector renames) {
+        if (Compression.applies(key))
+            return; // the object may be compressed, and a copy would not have the right Content-Encoding
+        SyncIndex syncIndex = root.getSyncIndex();
+        SyncIndex.Entry indexEntry = syncIndex==null ? null : syncIndex.get(key);
+        if (indexEntry!=null) {
+            renames.deleted(key, indexEntry.size, indexEntry.md5!=null ? indexEntry.md5 : indexEntry.eTag);
+            return;
         }
+        CompactListing.Entry catalogEntry = root.getCatalog().get(key);
+        if (catalogEntry!=null)
+            renames.deleted(key, catalogEntry.size, catalogEntry.eTag);
+    }
 
-        public File getFile() { return path.toFile(); }
-
-        /** @return last modified time, in milliseconds, rounded to the nearest second for consistency on all OSes.
-         * Once uploaded to S3, we need the same behavior on all OSes, and some OSes only support second resolution. */
-        public long getLastModified() { return roundToNearestSecond(path.toFile().lastModified()); }
-
-        public Path getPath() { return path; }
-
-        public long getTime() { return time; }
-
-        public WatchEvent.Kind<?> getKind() { return watchEvent.kind(); }
-
-        public WatchEvent<?> getWatchEvent() { return watchEvent; }
+    /** Offers every recorded key below a directory that is about to be deleted to renames */
+    private static void renameCandidatesUnder(MirrorRoot root, String prefix, RenameDetector renames) {
+        Set<String> keys = new HashSet<>();
+        if (root.getSyncIndex()!=null)
+            keys.addAll(root.getSyncIndex().keysUnder(prefix));
+        keys.addAll(root.getCatalog().keysUnder(prefix));
+        for (String key : keys)
+            renameCandidate(root, key, renames);
     }
 }
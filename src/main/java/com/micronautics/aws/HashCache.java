@@ -0,0 +1,168 @@
+package com.micronautics.aws;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static com.micronautics.aws.S3Model.*;
+
+/** MD5 digests of local files, cached by path, size and last-modified time so an unchanged file is only hashed once.
+ *
+ * When content comparison is enabled, a local file whose timestamp differs from its remote copy is compared by
+ * content before it is transferred: if its MD5 digest matches the remote ETag, the file is treated as being the same
+ * age as the remote copy. Touching a tree, for example with <code>git checkout</code>, then costs one hash per file
+ * instead of one transfer per file. Digests are also saved in the sync index, so they survive restarts.
+ *
+ * Multipart ETags are not MD5 digests of the content, so objects uploaded in parts are compared by timestamp only.
+ * Objects uploaded compressed (see Compression) are compared by the digest of the file's compressed content. */
+public class HashCache {
+    /** Files at least this large are hashed through memory-mapped windows of mapSize bytes; smaller files are read */
+    private static final long mapThreshold = 1024L * 1024L;
+    private static final long mapSize = 64L * 1024L * 1024L;
+
+    private final ConcurrentHashMap<String, Hash> hashes = new ConcurrentHashMap<>();
+    /** Digests of the compressed content of files */
+    private final ConcurrentHashMap<String, Hash> compressedHashes = new ConcurrentHashMap<>();
+    /** Where digests are saved, or null to use Model.syncIndex */
+    private final SyncIndex syncIndex;
+
+    /** Saves digests in Model.syncIndex, if any */
+    public HashCache() { this(null); }
+
+    /** Saves digests in syncIndex */
+    public HashCache(SyncIndex syncIndex) { this.syncIndex = syncIndex; }
+
+    private static class Hash {
+        final long size;
+        final long lastModified;
+        final String md5;
+
+        Hash(long size, long lastModified, String md5) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.md5 = md5;
+        }
+    }
+
+    /** @return hex MD5 digest of file, computed only if the file changed since it was last hashed */
+    public String md5(String key, File file) throws IOException {
+        String normalizedKey = RemoteCatalog.normalize(key);
+        long size = file.length();
+        long lastModified = file.lastModified();
+        Hash hash = hashes.get(normalizedKey);
+        if (hash!=null && hash.size==size && hash.lastModified==lastModified)
+            return hash.md5;
+        SyncIndex syncIndex = this.syncIndex!=null ? this.syncIndex : Model.syncIndex;
+        SyncIndex.Entry entry = syncIndex==null ? null : syncIndex.get(normalizedKey);
+        String md5 = entry!=null && entry.md5!=null && entry.matches(file) ? entry.md5 : compute(file);
+        hashes.put(normalizedKey, new Hash(size, lastModified, md5));
+        if (syncIndex!=null)
+            syncIndex.setMd5(normalizedKey, file, md5);
+        return md5;
+    }
+
+    /** @return hex MD5 digest of the compressed content of file, computed only if the file changed since it was last hashed */
+    public String compressedMd5(String key, File file) throws IOException {
+        String normalizedKey = RemoteCatalog.normalize(key);
+        long size = file.length();
+        long lastModified = file.lastModified();
+        Hash hash = compressedHashes.get(normalizedKey);
+        if (hash!=null && hash.size==size && hash.lastModified==lastModified)
+            return hash.md5;
+        String md5 = Compression.md5(file);
+        compressedHashes.put(normalizedKey, new Hash(size, lastModified, md5));
+        return md5;
+    }
+
+    /** @param expected hex MD5 digest or ETag of the remote copy
+     *  @return s3FileSameAgeAsLocal if the file's content matches the remote copy, otherwise comparedAges */
+    public int refine(String key, File file, String expected, int comparedAges) {
+        if (comparedAges!=s3FileIsOlderThanLocal && comparedAges!=s3FileNewerThanLocal)
+            return comparedAges;
+        return sameContent(key, file, expected) ? s3FileSameAgeAsLocal : comparedAges;
+    }
+
+    /** @param expected hex MD5 digest or ETag of the remote copy
+     *  @return true if the file exists and its MD5 digest is the expected digest */
+    public boolean sameContent(String key, File file, String expected) {
+        String digest = digestOf(expected);
+        if (digest==null || !file.isFile())
+            return false;
+        try {
+            return digest.equals(md5(key, file)) || (Compression.applies(key) && digest.equals(compressedMd5(key, file)));
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /** @return lower-case hex MD5 digest contained in eTag, or null if eTag is not an MD5 digest (multipart ETags are not) */
+    public static String digestOf(String eTag) {
+        if (eTag==null)
+            return null;
+        String value = eTag.replace("\"", "");
+        if (value.length()!=32)
+            return null;
+        for (int i=0; i<value.length(); i++)
+            if (Character.digit(value.charAt(i), 16)<0)
+                return null;
+        return value.toLowerCase();
+    }
+
+    /** @return hex MD5 digest of the file's content */
+    public static String compute(File file) throws IOException {
+        MessageDigest messageDigest = newDigest();
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            update(messageDigest, channel, 0, channel.size());
+        }
+        return hex(messageDigest.digest());
+    }
+
+    /** @return the ETag that S3 gives an object uploaded from file in parts of partSize bytes: the hex MD5 digest of
+     * the concatenated MD5 digests of the parts, followed by a dash and the number of parts */
+    public static String multipartETag(File file, long partSize) throws IOException {
+        MessageDigest digestOfDigests = newDigest();
+        int parts = 0;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            for (long position=0; position<size || parts==0; position+=partSize, parts++) {
+                MessageDigest messageDigest = newDigest();
+                update(messageDigest, channel, position, Math.min(partSize, size - position));
+                digestOfDigests.update(messageDigest.digest());
+            }
+        }
+        return hex(digestOfDigests.digest()) + "-" + parts;
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /** Adds length bytes of channel, starting at position, to messageDigest */
+    private static void update(MessageDigest messageDigest, FileChannel channel, long position, long length) throws IOException {
+        if (length<mapThreshold) {
+            ByteBuffer buffer = ByteBuffer.allocate((int) length);
+            while (buffer.hasRemaining() && channel.read(buffer, position + buffer.position())>=0) { }
+            buffer.flip();
+            messageDigest.update(buffer);
+        } else
+            for (long offset=0; offset<length; offset+=mapSize)
+                messageDigest.update(channel.map(FileChannel.MapMode.READ_ONLY, position + offset, Math.min(mapSize, length - offset)));
+    }
+
+    /** @return digest as lower-case hex, the form of an ETag */
+    static String hex(byte[] digest) {
+        StringBuilder sb = new StringBuilder(32);
+        for (byte b : digest)
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        return sb.toString();
+    }
+}
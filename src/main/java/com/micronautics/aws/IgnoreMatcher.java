@@ -0,0 +1,185 @@
+package com.micronautics.aws;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/** Decides whether a file name matches any of a list of ignore patterns, without running every pattern against it.
+ *
+ * The patterns are compiled once. Patterns that are plain names, such as "cvs", are looked up in a hash set. Patterns
+ * of the form ".*suffix" and "prefix.*", where the suffix or prefix is a fixed-length sequence of literal characters
+ * and dots, such as ".*~" and ".*.swp", are checked by comparing characters from the end or start of the name. The
+ * remaining patterns are combined into one alternation, so a name that no fast path matches is scanned by one
+ * regular expression rather than one per pattern.
+ *
+ * Names are matched without touching the file system, so callers should test a name before they stat, canonicalize
+ * or look up the file, and should not descend into directories whose names match. */
+public class IgnoreMatcher {
+    private final List<Pattern> patterns;
+    private final Set<String> names = new HashSet<>();
+    private final List<Sequence> suffixes = new ArrayList<>();
+    private final List<Sequence> prefixes = new ArrayList<>();
+    private final Pattern combined;
+    /** All patterns, for names containing line terminators or surrogate pairs, which the fast paths do not handle as . does */
+    private final Pattern all;
+
+    private static volatile IgnoreMatcher last = new IgnoreMatcher(new ArrayList<Pattern>());
+
+    public IgnoreMatcher(List<Pattern> patterns) {
+        this.patterns = patterns;
+        List<Pattern> others = new ArrayList<>();
+        for (Pattern pattern : patterns) {
+            String regex = pattern.pattern();
+            Sequence sequence;
+            if (pattern.flags()!=0) {
+                others.add(pattern);
+            } else if ((sequence = Sequence.parse(regex, 0, regex.length()))!=null) {
+                if (sequence.literal!=null)
+                    names.add(sequence.literal);
+                else
+                    prefixes.add(sequence.exact());
+            } else if (regex.startsWith(".*") && (sequence = Sequence.parse(regex, 2, regex.length()))!=null) {
+                suffixes.add(sequence);
+            } else if (regex.endsWith(".*") && !regex.endsWith("\\.*") &&
+                    (sequence = Sequence.parse(regex, 0, regex.length() - 2))!=null) {
+                prefixes.add(sequence);
+            } else {
+                others.add(pattern);
+            }
+        }
+        combined = others.isEmpty() ? null : alternation(others);
+        all = patterns.isEmpty() ? null : alternation(patterns);
+    }
+
+    /** @return a matcher for patterns, reusing the previous one if it was compiled from the same list */
+    public static IgnoreMatcher of(List<Pattern> patterns) {
+        IgnoreMatcher matcher = last;
+        if (matcher.patterns!=patterns) {
+            matcher = new IgnoreMatcher(patterns);
+            last = matcher;
+        }
+        return matcher;
+    }
+
+    /** @return true if name, the last element of a path, matches one of the patterns */
+    public boolean matches(String name) {
+        if (all==null)
+            return false;
+        if (needsRegex(name))
+            return all.matcher(name).matches();
+        if (names.contains(name))
+            return true;
+        for (Sequence suffix : suffixes)
+            if (suffix.matchesAt(name, name.length() - suffix.length()))
+                return true;
+        for (Sequence prefix : prefixes)
+            if (prefix.matchesAt(name, 0) && (!prefix.exact || name.length()==prefix.length()))
+                return true;
+        return combined!=null && combined.matcher(name).matches();
+    }
+
+    public List<Pattern> getPatterns() { return patterns; }
+
+    private static Pattern alternation(List<Pattern> patterns) {
+        StringBuilder sb = new StringBuilder();
+        for (Pattern pattern : patterns) {
+            if (sb.length()>0)
+                sb.append('|');
+            if (pattern.flags()!=0)
+                sb.append("(?").append(inlineFlags(pattern.flags())).append(':').append(pattern.pattern()).append(')');
+            else
+                sb.append("(?:").append(pattern.pattern()).append(')');
+        }
+        return Pattern.compile(sb.toString());
+    }
+
+    private static String inlineFlags(int flags) {
+        StringBuilder sb = new StringBuilder();
+        if ((flags & Pattern.CASE_INSENSITIVE)!=0) sb.append('i');
+        if ((flags & Pattern.DOTALL)!=0) sb.append('s');
+        if ((flags & Pattern.MULTILINE)!=0) sb.append('m');
+        if ((flags & Pattern.UNICODE_CASE)!=0) sb.append('u');
+        if ((flags & Pattern.COMMENTS)!=0) sb.append('x');
+        if ((flags & Pattern.UNIX_LINES)!=0) sb.append('d');
+        return sb.toString();
+    }
+
+    private static boolean needsRegex(String name) {
+        for (int i=0; i<name.length(); i++) {
+            char c = name.charAt(i);
+            if (c=='\n' || c=='\r' || c=='\u0085' || c=='\u2028' || c=='\u2029' || Character.isSurrogate(c))
+                return true;
+        }
+        return false;
+    }
+
+    /** A fixed-length sequence of literal characters and dots, each dot matching any character but a line terminator */
+    private static class Sequence {
+        private static final String metacharacters = "\\^$.|?*+()[]{}";
+
+        final char[] chars;
+        /** true where chars holds a dot */
+        final boolean[] any;
+        /** The sequence as a string if it contains no dots, otherwise null */
+        final String literal;
+        /** true if the name must be exactly this long */
+        final boolean exact;
+
+        private Sequence(char[] chars, boolean[] any, String literal, boolean exact) {
+            this.chars = chars;
+            this.any = any;
+            this.literal = literal;
+            this.exact = exact;
+        }
+
+        /** @return null unless regex.substring(start, end) consists of literal characters, escaped punctuation and dots */
+        static Sequence parse(String regex, int start, int end) {
+            StringBuilder chars = new StringBuilder();
+            List<Boolean> any = new ArrayList<>();
+            boolean hasDot = false;
+            for (int i=start; i<end; i++) {
+                char c = regex.charAt(i);
+                if (c=='\\') {
+                    if (i+1>=end)
+                        return null;
+                    char escaped = regex.charAt(++i);
+                    if (Character.isLetterOrDigit(escaped))
+                        return null; // a character class such as \d, or a back reference
+                    chars.append(escaped);
+                    any.add(false);
+                } else if (c=='.') {
+                    chars.append(c);
+                    any.add(true);
+                    hasDot = true;
+                } else if (metacharacters.indexOf(c)>=0) {
+                    return null;
+                } else {
+                    chars.append(c);
+                    any.add(false);
+                }
+            }
+            if (chars.length()==0)
+                return null;
+            boolean[] anyArray = new boolean[any.size()];
+            for (int i=0; i<anyArray.length; i++)
+                anyArray[i] = any.get(i);
+            return new Sequence(chars.toString().toCharArray(), anyArray, hasDot ? null : chars.toString(), false);
+        }
+
+        int length() { return chars.length; }
+
+        Sequence exact() { return new Sequence(chars, any, literal, true); }
+
+        /** Callers have already established that name contains no line terminators */
+        boolean matchesAt(String name, int offset) {
+            if (offset<0 || offset+chars.length>name.length())
+                return false;
+            for (int i=0; i<chars.length; i++)
+                if (!any[i] && name.charAt(offset+i)!=chars[i])
+                    return false;
+            return true;
+        }
+    }
+}
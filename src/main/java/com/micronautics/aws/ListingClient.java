@@ -0,0 +1,10 @@
+package com.micronautics.aws;
+
+import com.amazonaws.services.s3.model.ListObjectsRequest;
+import com.amazonaws.services.s3.model.ObjectListing;
+
+/** The one S3 operation that bucket listing needs. S3.listingClient() adapts an AmazonS3Client;
+ * tests and benchmarks can provide an in-process implementation so listings can be exercised without AWS. */
+public interface ListingClient {
+    ObjectListing listObjects(ListObjectsRequest listObjectsRequest);
+}
@@ -0,0 +1,105 @@
+package com.micronautics.aws;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.model.ListObjectsRequest;
+import com.amazonaws.services.s3.model.ObjectListing;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/** Streams a bucket listing, in key order, while it is still being fetched.
+ *
+ * A daemon thread pages through the listing and places each object into a bounded queue, which holds at most two
+ * pages. The consumer iterates over the entries as they arrive, so it can start work as soon as the first page has
+ * been received, and memory use does not depend on the size of the bucket. If the listing fails, the exception is
+ * rethrown to the consumer once the entries received before the failure have been consumed. */
+public class ListingStream implements Iterator<CompactListing.Entry> {
+    private static final int capacity = 2000;
+    private static final CompactListing.Entry endOfListing = new CompactListing.Entry(-1, null, 0, 0, null);
+
+    private final BlockingQueue<CompactListing.Entry> queue = new ArrayBlockingQueue<>(capacity);
+    private final Thread producer;
+    private volatile RuntimeException failure;
+    private CompactListing.Entry next;
+    private boolean done = false;
+
+    /** @param prefix Any leading slashes are removed if a prefix is specified */
+    public ListingStream(final ListingClient client, final String bucketName, String prefix) {
+        while (null!=prefix && prefix.length()>0 && prefix.startsWith("/"))
+            prefix = prefix.substring(1);
+        final ListObjectsRequest listObjectsRequest = new ListObjectsRequest()
+                .withBucketName(bucketName)
+                .withPrefix(prefix);
+        producer = new Thread("listing-" + bucketName) {
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        ObjectListing objectListing = client.listObjects(listObjectsRequest);
+                        for (S3ObjectSummary objectSummary : objectListing.getObjectSummaries())
+                            queue.put(new CompactListing.Entry(-1, RemoteCatalog.normalize(objectSummary.getKey()),
+                                    objectSummary.getSize(), objectSummary.getLastModified().getTime(), objectSummary.getETag()));
+                        if (!objectListing.isTruncated())
+                            break;
+                        listObjectsRequest.setMarker(ParallelLister.nextMarker(objectListing));
+                    }
+                } catch (InterruptedException e) {
+                    return; // the consumer closed the stream
+                } catch (RuntimeException e) {
+                    failure = e;
+                }
+                try {
+                    queue.put(endOfListing);
+                } catch (InterruptedException e) {
+                    // the consumer closed the stream
+                }
+            }
+        };
+        producer.setDaemon(true);
+        producer.start();
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (next!=null)
+            return true;
+        if (done)
+            return false;
+        try {
+            next = queue.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            close();
+            throw new AmazonClientException("Interrupted while listing bucket", e);
+        }
+        if (next==endOfListing) {
+            next = null;
+            done = true;
+            if (failure!=null)
+                throw failure;
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    public CompactListing.Entry next() {
+        if (!hasNext())
+            throw new NoSuchElementException();
+        CompactListing.Entry result = next;
+        next = null;
+        return result;
+    }
+
+    @Override
+    public void remove() { throw new UnsupportedOperationException(); }
+
+    /** Stops listing if the consumer does not need the remaining entries */
+    public void close() {
+        done = true;
+        producer.interrupt();
+    }
+}
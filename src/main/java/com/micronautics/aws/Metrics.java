@@ -0,0 +1,313 @@
+package com.micronautics.aws;
+
+import com.amazonaws.AmazonWebServiceRequest;
+import com.amazonaws.Request;
+import com.amazonaws.handlers.RequestHandler;
+import com.amazonaws.util.TimingInfo;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/** Counters and histograms of the work done by the process: the latency of each kind of S3 request, the files and
+ * bytes transferred, retries, the depth of the transfer queues, and how long changes to watched trees wait before they
+ * are acted on.
+ *
+ * Recording a value costs a few atomic additions and allocates nothing, and histograms have a fixed size, so a daemon
+ * that runs for months uses no more memory than one that just started. Nothing is computed until the metrics are
+ * read, through JMX as com.micronautics.aws:type=Metrics, or by the periodic summary that startReporting() logs. */
+public class Metrics implements MetricsMXBean {
+    private static final Logger logger = LoggerFactory.getLogger(Metrics.class);
+    public static final String objectName = "com.micronautics.aws:type=Metrics";
+
+    private final ConcurrentHashMap<String, Histogram> requestLatency = new ConcurrentHashMap<>();
+    private final AtomicLong requestErrors = new AtomicLong();
+    private final AtomicLong retries = new AtomicLong();
+    private final AtomicLong filesUploaded = new AtomicLong();
+    private final AtomicLong bytesUploaded = new AtomicLong();
+    private final AtomicLong filesDownloaded = new AtomicLong();
+    private final AtomicLong bytesDownloaded = new AtomicLong();
+    private final AtomicLong filesCopied = new AtomicLong();
+    private final AtomicLong filesDeleted = new AtomicLong();
+    private final AtomicLong deleteFailures = new AtomicLong();
+    /** ms from the first event of a path until it settled and was acted on */
+    public final Histogram debounceLag = new Histogram();
+    /** ms between the first and last events of paths that were modified */
+    public final Histogram modificationSpans = new Histogram();
+    /** ms between the first and last events of paths that were deleted */
+    public final Histogram deletionSpans = new Histogram();
+    private volatile Debouncer<?> debouncer;
+    private final RequestHandler requestHandler = new RequestTimer();
+
+    /** Distribution of non-negative values, such as latencies in ms, in a fixed number of buckets.
+     * Each power of two is divided into 8 buckets, so quantiles are accurate to within 12.5%. */
+    public static class Histogram {
+        private static final int subBuckets = 8;
+        private final AtomicLongArray counts = new AtomicLongArray(61 * subBuckets);
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong sum = new AtomicLong();
+        private final AtomicLong max = new AtomicLong();
+
+        public void record(long value) {
+            value = Math.max(0, value);
+            counts.incrementAndGet(index(value));
+            count.incrementAndGet();
+            sum.addAndGet(value);
+            long currentMax = max.get();
+            while (value>currentMax && !max.compareAndSet(currentMax, value))
+                currentMax = max.get();
+        }
+
+        public long count() { return count.get(); }
+
+        public long max() { return max.get(); }
+
+        public long mean() {
+            long n = count.get();
+            return n==0 ? 0 : sum.get() / n;
+        }
+
+        /** @return the highest value of the bucket that holds quantile q (between 0 and 1) of the values recorded, or 0
+         * if none were recorded */
+        public long quantile(double q) {
+            long n = count.get();
+            if (n==0)
+                return 0;
+            long rank = Math.max(1, (long) Math.ceil(q * n));
+            long seen = 0;
+            for (int i=0; i<counts.length(); i++) {
+                seen += counts.get(i);
+                if (seen>=rank)
+                    return Math.min(highestValue(i), max.get());
+            }
+            return max.get();
+        }
+
+        static int index(long value) {
+            if (value<subBuckets)
+                return (int) value;
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            int subBucket = (int) (value >>> (exponent - 3)) & (subBuckets - 1);
+            return (exponent - 2) * subBuckets + subBucket;
+        }
+
+        static long highestValue(int index) {
+            if (index<subBuckets)
+                return index;
+            int exponent = index / subBuckets + 2;
+            long lowest = (long) (subBuckets + index % subBuckets) << (exponent - 3);
+            return lowest + (1L << (exponent - 3)) - 1;
+        }
+
+        @Override
+        public String toString() {
+            return "p50 " + quantile(0.5) + " p99 " + quantile(0.99) + " max " + max();
+        }
+    }
+
+    /** Times every request sent by an AmazonS3Client, from when it is sent until its response headers arrive.
+     * The AWS SDK calls the handler on the thread that sends the request. */
+    private class RequestTimer implements RequestHandler {
+        private final ThreadLocal<long[]> startTime = new ThreadLocal<long[]>() {
+            @Override
+            protected long[] initialValue() { return new long[1]; }
+        };
+
+        @Override
+        public void beforeRequest(Request<?> request) { startTime.get()[0] = System.nanoTime(); }
+
+        @Override
+        public void afterResponse(Request<?> request, Object response, TimingInfo timingInfo) { record(request); }
+
+        @Override
+        public void afterError(Request<?> request, Exception e) {
+            requestErrors.incrementAndGet();
+            record(request);
+        }
+
+        private void record(Request<?> request) {
+            latency(operation(request)).record((System.nanoTime() - startTime.get()[0]) / 1000000L);
+        }
+    }
+
+    /** @return handler that records the latency of the requests of the client it is added to */
+    public RequestHandler requestHandler() { return requestHandler; }
+
+    /** @return name of the S3 operation of request, such as PutObject */
+    static String operation(Request<?> request) {
+        AmazonWebServiceRequest originalRequest = request.getOriginalRequest();
+        if (originalRequest==null)
+            return request.getHttpMethod().toString();
+        String name = originalRequest.getClass().getSimpleName();
+        return name.endsWith("Request") ? name.substring(0, name.length() - "Request".length()) : name;
+    }
+
+    /** @return latency histogram of operation, created the first time the operation is seen */
+    public Histogram latency(String operation) {
+        Histogram histogram = requestLatency.get(operation);
+        if (histogram==null) {
+            Histogram created = new Histogram();
+            histogram = requestLatency.putIfAbsent(operation, created);
+            if (histogram==null)
+                histogram = created;
+        }
+        return histogram;
+    }
+
+    public void uploaded(long bytes) {
+        filesUploaded.incrementAndGet();
+        bytesUploaded.addAndGet(bytes);
+    }
+
+    public void downloaded(long bytes) {
+        filesDownloaded.incrementAndGet();
+        bytesDownloaded.addAndGet(bytes);
+    }
+
+    public void copied() { filesCopied.incrementAndGet(); }
+
+    public void deleted(long count) { filesDeleted.addAndGet(count); }
+
+    /** Records keys or prefixes that could not be deleted */
+    public void deleteFailed(long count) { deleteFailures.addAndGet(count); }
+
+    public void retried() { retries.incrementAndGet(); }
+
+    /** Records a path that settled after events that began at firstEventTime and lasted eventTimeSpan ms */
+    public void settled(long firstEventTime, long eventTimeSpan, boolean deleted) {
+        debounceLag.record(System.currentTimeMillis() - firstEventTime);
+        (deleted ? deletionSpans : modificationSpans).record(eventTimeSpan);
+    }
+
+    /** Reports the number of paths waiting for events to settle in debouncer */
+    public void watch(Debouncer<?> debouncer) { this.debouncer = debouncer; }
+
+    @Override public long getFilesUploaded() { return filesUploaded.get(); }
+
+    @Override public long getBytesUploaded() { return bytesUploaded.get(); }
+
+    @Override public long getFilesDownloaded() { return filesDownloaded.get(); }
+
+    @Override public long getBytesDownloaded() { return bytesDownloaded.get(); }
+
+    @Override public long getFilesCopied() { return filesCopied.get(); }
+
+    @Override public long getFilesDeleted() { return filesDeleted.get(); }
+
+    @Override public long getDeleteFailures() { return deleteFailures.get(); }
+
+    @Override public long getRetries() { return retries.get(); }
+
+    @Override public long getThrottled() { return Model.requestLimit.throttledCount(); }
+
+    @Override public long getRequestErrors() { return requestErrors.get(); }
+
+    @Override
+    public Map<String, Long> getRequests() {
+        Map<String, Long> requests = new TreeMap<>();
+        for (Map.Entry<String, Histogram> entry : requestLatency.entrySet())
+            requests.put(entry.getKey(), entry.getValue().count());
+        return requests;
+    }
+
+    @Override
+    public Map<String, Long> getRequestLatencyMedianMillis() { return quantiles(0.5); }
+
+    @Override
+    public Map<String, Long> getRequestLatency99thPercentileMillis() { return quantiles(0.99); }
+
+    private Map<String, Long> quantiles(double q) {
+        Map<String, Long> quantiles = new TreeMap<>();
+        for (Map.Entry<String, Histogram> entry : requestLatency.entrySet())
+            quantiles.put(entry.getKey(), entry.getValue().quantile(q));
+        return quantiles;
+    }
+
+    @Override
+    public Map<String, Integer> getQueueDepths() {
+        Map<String, Integer> depths = new TreeMap<>();
+        depths.put("transfers", Model.transfers.inFlight());
+        depths.put("deletes", Model.deletes.inFlight());
+        Debouncer<?> debouncer = this.debouncer;
+        if (debouncer!=null)
+            depths.put("debounce", debouncer.size());
+        return depths;
+    }
+
+    @Override public long getDebounceLagMedianMillis() { return debounceLag.quantile(0.5); }
+
+    @Override public long getDebounceLag99thPercentileMillis() { return debounceLag.quantile(0.99); }
+
+    @Override
+    public String getSummary() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("uploaded ").append(getFilesUploaded()).append(" files, ").append(getBytesUploaded()).append(" bytes");
+        sb.append("; downloaded ").append(getFilesDownloaded()).append(" files, ").append(getBytesDownloaded()).append(" bytes");
+        sb.append("; copied ").append(getFilesCopied()).append("; deleted ").append(getFilesDeleted());
+        if (getDeleteFailures()>0)
+            sb.append(" (").append(getDeleteFailures()).append(" failed)");
+        sb.append("; requests");
+        for (Map.Entry<String, Histogram> entry : new TreeMap<>(requestLatency).entrySet())
+            sb.append(' ').append(entry.getKey()).append(' ').append(entry.getValue().count()).append(" (ms ").append(entry.getValue()).append(')');
+        sb.append("; errors ").append(getRequestErrors()).append(", retries ").append(getRetries()).append(", throttled ").append(getThrottled());
+        sb.append("; queued ").append(getQueueDepths());
+        if (debounceLag.count()>0)
+            sb.append("; debounce lag ms ").append(debounceLag);
+        return sb.toString();
+    }
+
+    /** Registers the metrics with the platform MBean server, so they can be read with jconsole or any JMX client */
+    public void register() {
+        try {
+            ObjectName name = new ObjectName(objectName);
+            if (!ManagementFactory.getPlatformMBeanServer().isRegistered(name))
+                ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+        } catch (Exception e) {
+            logger.warn("Unable to register metrics with JMX: " + e.getMessage());
+        }
+    }
+
+    /** Logs a summary every intervalSeconds, with the transfer rates since the previous summary; nothing is logged
+     * while no files are transferred and no requests are sent */
+    public void startReporting(final long intervalSeconds) {
+        if (intervalSeconds<=0)
+            return;
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "metrics");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        executor.scheduleAtFixedRate(new Runnable() {
+            private long lastFiles, lastBytes, lastRequests;
+
+            @Override
+            public void run() {
+                long files = getFilesUploaded() + getFilesDownloaded() + getFilesCopied() + getFilesDeleted();
+                long bytes = getBytesUploaded() + getBytesDownloaded();
+                long requests = 0;
+                for (Histogram histogram : requestLatency.values())
+                    requests += histogram.count();
+                if (requests==lastRequests && files==lastFiles)
+                    return;
+                logger.info(String.format("%.1f files/s, %d bytes/s; ", (files - lastFiles) / (double) intervalSeconds,
+                        (bytes - lastBytes) / intervalSeconds) + getSummary());
+                lastFiles = files;
+                lastBytes = bytes;
+                lastRequests = requests;
+            }
+        }, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+}
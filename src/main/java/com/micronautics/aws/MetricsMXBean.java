@@ -0,0 +1,44 @@
+package com.micronautics.aws;
+
+import java.util.Map;
+
+/** The attributes of Metrics that are published through JMX; all counts are totals since the process started */
+public interface MetricsMXBean {
+    long getFilesUploaded();
+
+    long getBytesUploaded();
+
+    long getFilesDownloaded();
+
+    long getBytesDownloaded();
+
+    long getFilesCopied();
+
+    long getFilesDeleted();
+
+    /** @return number of keys and prefixes that could not be deleted */
+    long getDeleteFailures();
+
+    long getRetries();
+
+    long getThrottled();
+
+    long getRequestErrors();
+
+    /** @return number of requests sent for each S3 operation */
+    Map<String, Long> getRequests();
+
+    Map<String, Long> getRequestLatencyMedianMillis();
+
+    Map<String, Long> getRequestLatency99thPercentileMillis();
+
+    /** @return number of transfers and deletions running or waiting, and of paths waiting for their events to settle */
+    Map<String, Integer> getQueueDepths();
+
+    long getDebounceLagMedianMillis();
+
+    long getDebounceLag99thPercentileMillis();
+
+    /** @return every metric on one line, as it is logged periodically */
+    String getSummary();
+}
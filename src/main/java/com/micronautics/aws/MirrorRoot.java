@@ -0,0 +1,138 @@
+package com.micronautics.aws;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/** A directory tree linked by its .s3 file to a bucket, with the state needed to keep the bucket current.
+ *
+ * The single-tree commands keep this state in the static fields of Model; MirrorRoot.model is a view of those fields.
+ * The daemon command creates one MirrorRoot per tree, so any number of trees, each with its own bucket, ignore rules,
+ * catalog and sync index, can be mirrored by one process. */
+public class MirrorRoot {
+    private static final Logger logger = LoggerFactory.getLogger(MirrorRoot.class);
+
+    private final File treeRoot;
+    private final String bucketName;
+    private final S3 s3;
+    private final IgnoreMatcher ignores;
+    private final SyncIndex syncIndex;
+    private final HashCache hashCache;
+    private final DeadLetters deadLetters;
+    private RemoteCatalog catalog = new RemoteCatalog();
+    private volatile boolean listed = false;
+
+    /** Loads the sync index of treeRoot; content comparison is enabled if Model.hashCache is set */
+    public MirrorRoot(File treeRoot, String bucketName, S3 s3, List<Pattern> ignoredPatterns) {
+        this.treeRoot = treeRoot.getAbsoluteFile();
+        this.bucketName = bucketName;
+        this.s3 = s3;
+        this.ignores = new IgnoreMatcher(ignoredPatterns);
+        this.syncIndex = SyncIndex.load(this.treeRoot, bucketName);
+        this.hashCache = Model.hashCache==null ? null : new HashCache(syncIndex);
+        this.deadLetters = DeadLetters.load(this.treeRoot);
+    }
+
+    private MirrorRoot() {
+        this.treeRoot = null;
+        this.bucketName = null;
+        this.s3 = null;
+        this.ignores = null;
+        this.syncIndex = null;
+        this.hashCache = null;
+        this.deadLetters = null;
+    }
+
+    /** The tree that the single-tree commands work on, whose state is held in the static fields of Model */
+    public static final MirrorRoot model = new MirrorRoot() {
+        @Override public String getBucketName() { return Model.bucketName; }
+
+        @Override public S3 getS3() { return Model.s3; }
+
+        @Override public IgnoreMatcher getIgnores() { return Model.ignores(); }
+
+        @Override public SyncIndex getSyncIndex() { return Model.syncIndex; }
+
+        @Override public HashCache getHashCache() { return Model.hashCache; }
+
+        @Override public RemoteCatalog getCatalog() { return Model.catalog; }
+
+        @Override public boolean isListed() { return Model.s3ObjectDataFetched; }
+
+        @Override public File getJournalDirectory() { return Model.journalDirectory; }
+
+        @Override public DeadLetters getDeadLetters() { return Model.deadLetters; }
+
+        @Override public void list() {
+            Model.catalog = new RemoteCatalog(Model.s3.getListing(Model.bucketName, ""));
+            Model.s3ObjectDataFetched = true;
+            if (Model.syncIndex!=null)
+                Model.syncIndex.listed(Model.catalog);
+        }
+    };
+
+    /** @return root of the tree, or null for MirrorRoot.model, whose tree is given to DirectoryWatcher directly */
+    public File getTreeRoot() { return treeRoot; }
+
+    public String getBucketName() { return bucketName; }
+
+    public S3 getS3() { return s3; }
+
+    public IgnoreMatcher getIgnores() { return ignores; }
+
+    /** @return sync index of this tree, or null if none is in use */
+    public SyncIndex getSyncIndex() { return syncIndex; }
+
+    /** @return null unless content comparison is enabled */
+    public HashCache getHashCache() { return hashCache; }
+
+    public RemoteCatalog getCatalog() { return catalog; }
+
+    /** @return true once the bucket has been listed into the catalog */
+    public boolean isListed() { return listed; }
+
+    public File getJournalDirectory() { return new File(treeRoot, ".s3journal"); }
+
+    /** @return transfers of this tree that failed after every retry, or null if failures are not recorded */
+    public DeadLetters getDeadLetters() { return deadLetters; }
+
+    /** Lists the bucket into the catalog, and records the listing in the sync index */
+    public void list() {
+        catalog = new RemoteCatalog(s3.getListing(bucketName, ""));
+        listed = true;
+        syncIndex.listed(catalog);
+        logger.debug("Listed " + catalog.size() + " objects in " + bucketName);
+    }
+
+    /** @return true if name, the last element of a path, matches one of the ignored patterns */
+    public boolean ignore(String name) { return getIgnores().matches(name); }
+
+    /** Compares a local file with its remote copy, using the catalog if the bucket was listed and otherwise the sync
+     * index, and then comparing content if the timestamps differ and content comparison is enabled.
+     * @return one of the S3Model.s3File* constants */
+    public int compareAge(File file, String path) {
+        SyncIndex syncIndex = getSyncIndex();
+        HashCache hashCache = getHashCache();
+        if (!isListed() && syncIndex!=null) { // the bucket was not listed because the sync index is current
+            int comparedAges = syncIndex.compareAge(file, path);
+            SyncIndex.Entry entry = syncIndex.get(path);
+            if (entry!=null && hashCache!=null)
+                return hashCache.refine(path, file, entry.md5!=null ? entry.md5 : entry.eTag, comparedAges);
+            return comparedAges;
+        }
+        RemoteCatalog catalog = getCatalog();
+        CompactListing.Entry entry = catalog.get(path);
+        if (entry==null)
+            return catalog.compareAge(file, path);
+        int comparedAges = syncIndex!=null ?
+                syncIndex.compareAge(file, path, entry.eTag, entry.lastModified) :
+                catalog.compareAge(file, path);
+        return hashCache!=null ? hashCache.refine(path, file, entry.eTag, comparedAges) : comparedAges;
+    }
+
+    @Override
+    public String toString() { return getTreeRoot() + " => " + getBucketName(); }
+}
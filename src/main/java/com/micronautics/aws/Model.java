@@ -1,8 +1,6 @@
 package com.micronautics.aws;
 
-import com.amazonaws.services.s3.model.S3ObjectSummary;
-
-import java.util.ArrayList;
+import java.io.File;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.regex.Pattern;
@@ -12,10 +10,113 @@ import java.util.regex.Pattern;
  */
 public class Model extends S3Model {
     public static String bucketName;
-    public static LinkedList<S3ObjectSummary> allNodes = new LinkedList<>();
+    public static RemoteCatalog catalog = new RemoteCatalog();
     public static List<Pattern> ignoredPatterns = new LinkedList<>();
     public static boolean s3ObjectDataFetched = false;
     public static boolean multithreadingEnabled = false;
-    public static ArrayList<Long> modificationTimes = new ArrayList<>();
-    public static ArrayList<Long> deletionTimes = new ArrayList<>();
+
+    /** Start transfers while the bucket listing is still arriving, instead of fetching the catalog first */
+    public static boolean pipelineEnabled = false;
+
+    /** Maximum number of bucket partitions listed concurrently */
+    public static int listingWorkers = Integer.getInteger("awsmirror.listingWorkers", 8);
+
+    /** Local sync state for the tree being mirrored, or null if no index is in use */
+    public static SyncIndex syncIndex;
+
+    /** List the entire bucket even if the sync index is current */
+    public static boolean fullListingRequested = false;
+
+    /** Compares the content of files whose timestamps differ from their remote copies, or null to compare timestamps only */
+    public static HashCache hashCache;
+
+    /** Upload text assets, such as HTML, CSS and JavaScript, compressed with gzip */
+    public static boolean compressUploads = Boolean.getBoolean("awsmirror.compress");
+
+    /** Milliseconds after a full listing before the sync index is considered stale */
+    public static long indexMaxAge = Long.getLong("awsmirror.indexMaxAgeHours", 24L) * 60L * 60L * 1000L;
+
+    /** Number of threads that walk the local tree when multithreading is enabled */
+    public static int walkWorkers = Integer.getInteger("awsmirror.walkWorkers", Runtime.getRuntime().availableProcessors());
+
+    /** Maximum number of files transferred concurrently when multithreading is enabled */
+    public static int transferWorkers = Integer.getInteger("awsmirror.transferWorkers", 8);
+
+    /** Maximum number of files waiting to be transferred before the directory walk or bucket listing is paused */
+    public static int transferQueueSize = Integer.getInteger("awsmirror.transferQueueSize", 100);
+
+    /** Shared by uploads and downloads */
+    public static TransferScheduler transfers = new TransferScheduler("transfer", transferWorkers, transferQueueSize);
+
+    /** Milliseconds without events after which the file operations on a watched path are considered to have settled */
+    public static long debounceTime = Long.getLong("awsmirror.debounceMillis", 5000L);
+
+    /** Milliseconds during which settled paths are gathered, so that they are uploaded or deleted together */
+    public static long debounceGroupingTime = Long.getLong("awsmirror.debounceGroupingMillis", debounceTime / 5L);
+
+    /** Maximum number of multi-object delete requests, of up to 1000 keys each, sent concurrently */
+    public static int deleteWorkers = Integer.getInteger("awsmirror.deleteWorkers", 4);
+
+    /** Sends batched deletes; at most deleteWorkers batches wait while a bucket listing is deleted page by page */
+    public static TransferScheduler deletes = new TransferScheduler("delete", deleteWorkers, deleteWorkers);
+
+    /** Files at least this large are uploaded in parts */
+    public static long multipartThreshold = Long.getLong("awsmirror.multipartThresholdMB", 64L) * 1024L * 1024L;
+
+    /** Size of each part of a multipart upload; S3 requires parts of at least 5 MB */
+    public static long partSize = Math.max(5L, Long.getLong("awsmirror.partSizeMB", 16L)) * 1024L * 1024L;
+
+    /** Maximum number of parts uploaded, and of ranges downloaded, concurrently */
+    public static int partWorkers = Integer.getInteger("awsmirror.partWorkers", 4);
+
+    /** Objects at least this large are downloaded as several byte ranges at once */
+    public static long rangedThreshold = Long.getLong("awsmirror.rangedThresholdMB", 64L) * 1024L * 1024L;
+
+    /** Size of each byte range of a ranged download */
+    public static long rangeSize = Long.getLong("awsmirror.rangeSizeMB", 16L) * 1024L * 1024L;
+
+    /** Size of the HTTP connection pool of each S3 client; by default, enough for every concurrent request */
+    public static int maxConnections = Integer.getInteger("awsmirror.maxConnections",
+            transferWorkers + partWorkers + listingWorkers + deleteWorkers);
+
+    /** URL of the S3 service that clients connect to, or null for Amazon S3. Buckets are addressed in the path of each
+     * request rather than in the host name when the host of the endpoint is an IP address, as is required by local
+     * S3-compatible servers such as the one used by the load tests, for example http://127.0.0.1:9090 */
+    public static String endpoint = System.getProperty("awsmirror.endpoint");
+
+    /** Milliseconds to wait for a connection to S3 to be established */
+    public static int connectionTimeout = Integer.getInteger("awsmirror.connectionTimeoutMillis", 10000);
+
+    /** Milliseconds to wait for data from an established connection before it is abandoned */
+    public static int socketTimeout = Integer.getInteger("awsmirror.socketTimeoutMillis", 50000);
+
+    /** Number of times a request that failed for a transient reason is sent again */
+    public static int maxRetries = Integer.getInteger("awsmirror.maxRetries", 5);
+
+    /** Upper bound of the random wait before the first retry of a request; the bound doubles with each retry */
+    public static long retryBaseDelay = Long.getLong("awsmirror.retryBaseMillis", 100L);
+
+    /** Longest wait before a retry */
+    public static long retryMaxDelay = Long.getLong("awsmirror.retryMaxMillis", 20000L);
+
+    /** Number of S3 requests in flight; halved when S3 throttles requests, and raised again as requests succeed */
+    public static AdaptiveLimit requestLimit = new AdaptiveLimit(maxConnections, 1000L);
+
+    /** Applied to every request that transfers, lists or deletes objects */
+    public static RetryPolicy retries = RetryPolicy.standard();
+
+    /** Transfers that failed in the tree being mirrored, or null if failures are not recorded */
+    public static DeadLetters deadLetters;
+
+    /** Where the progress of multipart uploads is recorded, so interrupted uploads can be resumed */
+    public static File journalDirectory = new File(System.getProperty("java.io.tmpdir"), "awsmirror");
+
+    /** Counters and histograms of the requests, transfers and debouncing done by the process */
+    public static Metrics metrics = new Metrics();
+
+    /** Seconds between the summaries of the metrics that are logged while there is activity; 0 disables them */
+    public static long metricsInterval = Long.getLong("awsmirror.metricsIntervalSeconds", 60L);
+
+    /** @return ignoredPatterns compiled into a matcher, which is recompiled only when ignoredPatterns is reassigned */
+    public static IgnoreMatcher ignores() { return IgnoreMatcher.of(ignoredPatterns); }
 }
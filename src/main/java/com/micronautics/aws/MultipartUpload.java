@@ -0,0 +1,269 @@
+package com.micronautics.aws;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadResult;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.PutObjectResult;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+import com.amazonaws.util.BinaryUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** Uploads a large file in parts, several parts at a time, so that a failure only costs the parts in flight.
+ *
+ * Each part is read with a positional FileChannel read, so the parts of one file can be read concurrently, and is
+ * uploaded with its MD5 digest so S3 rejects corrupted parts. All multipart uploads and ranged downloads share a
+ * pool of Model.partWorkers threads. Each request is retried according to Model.retries.
+ *
+ * Progress is recorded in a journal in the journal directory (Model.journalDirectory by default): the first line holds the upload id and the size and
+ * last-modified time of the source file, and a line is appended for each part as it completes. If the upload is interrupted,
+ * the next attempt to upload the same unchanged file resumes the multipart upload and only sends the missing parts.
+ * If the file changed, the old multipart upload is aborted and a new one is started. The journal is deleted once the
+ * upload completes. The source file is the file that is uploaded, unless it is a compressed copy of the source; since
+ * Compression always produces the same bytes from the same content, a compressed upload resumes like any other. */
+public class MultipartUpload implements Callable<PutObjectResult> {
+    private static final Logger logger = LoggerFactory.getLogger(MultipartUpload.class);
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    /** S3 allows at most this many parts per upload */
+    private static final int maxParts = 10000;
+
+    private final AmazonS3 s3;
+    private final String bucketName;
+    private final String key;
+    private final File file;
+    private final File source;
+    private final ObjectMetadata metadata;
+    private final File journalDirectory;
+    private final File journalFile;
+
+    public MultipartUpload(AmazonS3 s3, String bucketName, String key, File file, ObjectMetadata metadata) {
+        this(s3, bucketName, key, file, metadata, Model.journalDirectory);
+    }
+
+    public MultipartUpload(AmazonS3 s3, String bucketName, String key, File file, ObjectMetadata metadata, File journalDirectory) {
+        this(s3, bucketName, key, file, file, metadata, journalDirectory);
+    }
+
+    /** @param file content to upload, such as a temporary compressed copy of source
+     *  @param source file whose size and last-modified time identify the content of file in the journal */
+    public MultipartUpload(AmazonS3 s3, String bucketName, String key, File file, File source, ObjectMetadata metadata, File journalDirectory) {
+        this.s3 = s3;
+        this.bucketName = bucketName;
+        this.key = key;
+        this.file = file;
+        this.source = source;
+        this.metadata = metadata;
+        this.journalDirectory = journalDirectory;
+        this.journalFile = new File(journalDirectory, HashCache.hex(md5((bucketName + "/" + key).getBytes(UTF8))) + ".journal");
+    }
+
+    @Override
+    public PutObjectResult call() {
+        try {
+            return upload();
+        } catch (AmazonServiceException e) {
+            if (!"NoSuchUpload".equals(e.getErrorCode()))
+                throw e;
+            logger.info("The journaled upload of " + key + " no longer exists on S3; starting over");
+            journalFile.delete();
+            return upload();
+        }
+    }
+
+    private PutObjectResult upload() {
+        final long size = file.length();
+        final long partSize = partSize(size);
+        final int partCount = (int) ((size + partSize - 1) / partSize);
+        final Map<Integer, String> done = new ConcurrentSkipListMap<>();
+        final String uploadId = resumeOrInitiate(source.length(), source.lastModified(), partSize, done);
+
+        List<Future<?>> futures = new ArrayList<>();
+        try (final FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+             final Writer journal = new OutputStreamWriter(new FileOutputStream(journalFile, true), UTF8)) {
+            for (int i=1; i<=partCount; i++) {
+                if (done.containsKey(i))
+                    continue;
+                final int partNumber = i;
+                futures.add(partExecutor().submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws IOException {
+                        long position = (partNumber - 1) * partSize;
+                        ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(partSize, size - position));
+                        while (buffer.hasRemaining())
+                            if (channel.read(buffer, position + buffer.position())<0)
+                                throw new IOException(file + " was truncated while it was being uploaded");
+                        final byte[] bytes = buffer.array();
+                        final String md5 = BinaryUtils.toBase64(md5(bytes));
+                        String eTag = Model.retries.execute("Upload of part " + partNumber + " of " + key, new Callable<String>() {
+                            @Override
+                            public String call() {
+                                UploadPartRequest request = new UploadPartRequest()
+                                        .withBucketName(bucketName)
+                                        .withKey(key)
+                                        .withUploadId(uploadId)
+                                        .withPartNumber(partNumber)
+                                        .withPartSize(bytes.length)
+                                        .withMD5Digest(md5)
+                                        .withInputStream(new ByteArrayInputStream(bytes));
+                                return s3.uploadPart(request).getETag();
+                            }
+                        });
+                        synchronized (journal) {
+                            journal.write("part " + partNumber + " " + eTag + "\n");
+                            journal.flush();
+                        }
+                        done.put(partNumber, eTag);
+                        logger.debug("Uploaded part " + partNumber + " of " + partCount + " of " + key);
+                        return null;
+                    }
+                }));
+            }
+            for (Future<?> future : futures)
+                await(future);
+        } catch (IOException e) {
+            throw new AmazonClientException("Unable to upload " + file + ": " + e.getMessage(), e);
+        } finally {
+            for (Future<?> future : futures)
+                future.cancel(true);
+        }
+
+        final List<PartETag> partETags = new ArrayList<>();
+        for (Map.Entry<Integer, String> entry : done.entrySet())
+            partETags.add(new PartETag(entry.getKey(), entry.getValue()));
+        CompleteMultipartUploadResult completed = Model.retries.execute("Completion of the upload of " + key,
+                new Callable<CompleteMultipartUploadResult>() {
+                    @Override
+                    public CompleteMultipartUploadResult call() {
+                        return s3.completeMultipartUpload(new CompleteMultipartUploadRequest(bucketName, key, uploadId, partETags));
+                    }
+                });
+        journalFile.delete();
+        PutObjectResult result = new PutObjectResult();
+        result.setETag(completed.getETag());
+        result.setVersionId(completed.getVersionId());
+        return result;
+    }
+
+    /** @param done receives the parts that the journal records as uploaded
+     *  @return id of the multipart upload to continue */
+    private String resumeOrInitiate(long size, long lastModified, long partSize, Map<Integer, String> done) {
+        String header = " " + size + " " + lastModified + " " + partSize;
+        if (journalFile.exists()) {
+            try {
+                List<String> lines = Files.readAllLines(journalFile.toPath(), UTF8);
+                String[] fields = lines.isEmpty() ? new String[0] : lines.get(0).split(" ", 3);
+                if (fields.length==3 && fields[0].equals("upload") && (" " + fields[2]).equals(header)) {
+                    for (String line : lines.subList(1, lines.size())) {
+                        String[] part = line.split(" ");
+                        if (part.length==3 && part[0].equals("part")) // a partially written last line is ignored
+                            done.put(Integer.parseInt(part[1]), part[2]);
+                    }
+                    logger.info("Resuming upload of " + key + "; " + done.size() + " parts were already uploaded");
+                    return fields[1];
+                }
+                if (fields.length>1)
+                    abort(fields[1]);
+            } catch (IOException | RuntimeException e) {
+                logger.warn("Ignoring unreadable journal " + journalFile + ": " + e.getMessage());
+            }
+        }
+        String uploadId = Model.retries.execute("Start of the upload of " + key, new Callable<String>() {
+            @Override
+            public String call() {
+                return s3.initiateMultipartUpload(new InitiateMultipartUploadRequest(bucketName, key, metadata)).getUploadId();
+            }
+        });
+        try {
+            Files.createDirectories(journalDirectory.toPath());
+            Files.write(journalFile.toPath(), ("upload " + uploadId + header + "\n").getBytes(UTF8));
+        } catch (IOException e) {
+            logger.warn("Unable to write " + journalFile + "; the upload of " + key + " will not be resumable: " + e.getMessage());
+        }
+        return uploadId;
+    }
+
+    /** Abandoned uploads hold storage until they are aborted */
+    private void abort(String uploadId) {
+        logger.info(source + " changed since it was partially uploaded; aborting the previous upload");
+        try {
+            s3.abortMultipartUpload(new AbortMultipartUploadRequest(bucketName, key, uploadId));
+        } catch (AmazonClientException e) {
+            logger.debug("Unable to abort upload " + uploadId + ": " + e.getMessage());
+        }
+    }
+
+    private static void await(Future<?> future) {
+        try {
+            future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new AmazonClientException("Interrupted while uploading parts", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            throw new AmazonClientException(e.getCause().getMessage(), e.getCause());
+        }
+    }
+
+    /** @return size of the parts of a new multipart upload of size bytes: Model.partSize, unless that would need more
+     * parts than S3 allows */
+    public static long partSize(long size) { return Math.max(Model.partSize, (size + maxParts - 1) / maxParts); }
+
+    private static byte[] md5(byte[] bytes) {
+        try {
+            return MessageDigest.getInstance("MD5").digest(bytes);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static ExecutorService executor;
+
+    /** @return pool of Model.partWorkers threads shared by the parts of multipart uploads and the ranges of ranged
+     * downloads, so concurrent large transfers together never send more than Model.partWorkers of them at once */
+    static synchronized ExecutorService partExecutor() {
+        if (executor==null)
+            executor = Executors.newFixedThreadPool(Math.max(1, Model.partWorkers), new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "part-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        return executor;
+    }
+}
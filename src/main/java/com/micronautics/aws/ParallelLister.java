@@ -0,0 +1,154 @@
+package com.micronautics.aws;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.model.ListObjectsRequest;
+import com.amazonaws.services.s3.model.ObjectListing;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** Lists a bucket by partitioning it on its top-level prefixes and listing the partitions concurrently.
+ *
+ * S3 only pages through a listing sequentially, 1000 keys per request, so a single listing of a large bucket takes
+ * minutes. This lister first lists the requested prefix with a "/" delimiter, which returns the objects at that level
+ * plus the common prefixes (directories) beneath it. Each common prefix is then listed in full by one of a bounded
+ * number of worker threads. The partitions are merged with the top-level objects in key order, so the resulting
+ * CompactListing is ordered the same way as a sequential listing. */
+public class ParallelLister {
+    private static final Logger logger = LoggerFactory.getLogger(ParallelLister.class);
+    private final ListingClient client;
+    private final int workers;
+
+    /** @param workers maximum number of partitions listed concurrently; 1 lists the bucket sequentially */
+    public ParallelLister(ListingClient client, int workers) {
+        this.client = client;
+        this.workers = Math.max(1, workers);
+    }
+
+    /** @param prefix Any leading slashes are removed if a prefix is specified
+     *  @return CompactListing of normalized keys, in key order */
+    public CompactListing list(final String bucketName, String prefix) {
+        while (null!=prefix && prefix.length()>0 && prefix.startsWith("/"))
+            prefix = prefix.substring(1);
+        if (workers==1) {
+            CompactListing result = new CompactListing();
+            listPartition(bucketName, prefix, null, result, null);
+            return result;
+        }
+
+        CompactListing topLevel = new CompactListing();
+        List<String> partitions = new ArrayList<>();
+        listPartition(bucketName, prefix, "/", topLevel, partitions);
+        logger.debug("Listing " + partitions.size() + " partitions of " + bucketName + " on up to " + workers + " threads");
+        if (partitions.isEmpty())
+            return topLevel;
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(workers, partitions.size()), threadFactory);
+        try {
+            List<Future<CompactListing>> futures = new ArrayList<>();
+            for (final String partition : partitions)
+                futures.add(executor.submit(new Callable<CompactListing>() {
+                    @Override
+                    public CompactListing call() {
+                        CompactListing listing = new CompactListing();
+                        listPartition(bucketName, partition, null, listing, null);
+                        return listing;
+                    }
+                }));
+
+            // Every key in a partition sorts after the partition's prefix, and before any top-level key that sorts after it
+            CompactListing result = new CompactListing(topLevel.size() + 1024 * partitions.size());
+            Iterator<CompactListing.Entry> objects = topLevel.iterator();
+            CompactListing.Entry object = objects.hasNext() ? objects.next() : null;
+            for (int i=0; i<partitions.size(); i++) {
+                String partition = partitions.get(i);
+                while (object!=null && RemoteCatalog.keyOrder.compare(object.key, partition)<0) {
+                    result.put(object.key, object.size, object.lastModified, object.eTag);
+                    object = objects.hasNext() ? objects.next() : null;
+                }
+                for (CompactListing.Entry entry : await(futures.get(i)))
+                    result.put(entry.key, entry.size, entry.lastModified, entry.eTag);
+            }
+            while (object!=null) {
+                result.put(object.key, object.size, object.lastModified, object.eTag);
+                object = objects.hasNext() ? objects.next() : null;
+            }
+            return result;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /** Pages through all objects with the given prefix.
+     * @param delimiter null to list every object with the prefix
+     * @param commonPrefixes receives the common prefixes if delimiter is specified */
+    protected void listPartition(String bucketName, String prefix, String delimiter, CompactListing listing, List<String> commonPrefixes) {
+        ListObjectsRequest listObjectsRequest = new ListObjectsRequest()
+                .withBucketName(bucketName)
+                .withPrefix(prefix)
+                .withDelimiter(delimiter);
+        while (true) {
+            ObjectListing objectListing = client.listObjects(listObjectsRequest);
+            for (S3ObjectSummary objectSummary : objectListing.getObjectSummaries())
+                listing.put(RemoteCatalog.normalize(objectSummary.getKey()), objectSummary.getSize(),
+                        objectSummary.getLastModified().getTime(), objectSummary.getETag());
+            if (commonPrefixes!=null)
+                commonPrefixes.addAll(objectListing.getCommonPrefixes());
+            if (!objectListing.isTruncated())
+                return;
+            listObjectsRequest.setMarker(nextMarker(objectListing));
+        }
+    }
+
+    /** S3 only returns NextMarker for delimited listings; otherwise the last key or common prefix is the marker */
+    public static String nextMarker(ObjectListing objectListing) {
+        if (objectListing.getNextMarker()!=null)
+            return objectListing.getNextMarker();
+        String last = null;
+        List<S3ObjectSummary> objectSummaries = objectListing.getObjectSummaries();
+        if (!objectSummaries.isEmpty())
+            last = objectSummaries.get(objectSummaries.size() - 1).getKey();
+        List<String> commonPrefixes = objectListing.getCommonPrefixes();
+        if (!commonPrefixes.isEmpty()) {
+            String commonPrefix = commonPrefixes.get(commonPrefixes.size() - 1);
+            if (last==null || RemoteCatalog.keyOrder.compare(commonPrefix, last)>0)
+                last = commonPrefix;
+        }
+        return last;
+    }
+
+    private static CompactListing await(Future<CompactListing> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new AmazonClientException("Interrupted while listing bucket", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            throw new AmazonClientException(e.getCause().getMessage(), e.getCause());
+        }
+    }
+
+    private static final ThreadFactory threadFactory = new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "lister-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    };
+}
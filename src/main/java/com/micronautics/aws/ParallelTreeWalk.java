@@ -0,0 +1,106 @@
+package com.micronautics.aws;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** Walks a local directory tree on the threads of a ForkJoinPool, one task per directory, so idle threads steal the
+ * subdirectories that busy threads have not reached yet.
+ *
+ * Each directory is read with a DirectoryStream, and the attributes of each entry are read once; entries whose names
+ * are ignored are skipped before their attributes are read, and ignored directories are not descended into.
+ * Keys are built from the names of the entries on the way down, relative to the root of the walk and separated by
+ * forward slashes, so no path is canonicalized. Symbolic links are followed, as they were by the walkers this replaces.
+ *
+ * The visitor is called concurrently from several threads unless the walk has a parallelism of 1. */
+public class ParallelTreeWalk {
+    private static final Logger logger = LoggerFactory.getLogger(ParallelTreeWalk.class);
+
+    private final IgnoreMatcher ignores;
+    private final int parallelism;
+
+    public interface Visitor {
+        /** Called for each directory below the root of the walk, before its entries are read
+         * @param key relative path of the directory, without a trailing slash
+         * @return false if the directory should not be descended into */
+        boolean preVisitDirectory(String key, Path directory);
+
+        /** Called for each regular file
+         * @param key relative path of the file */
+        void visitFile(String key, Path file, BasicFileAttributes attributes);
+    }
+
+    public ParallelTreeWalk(IgnoreMatcher ignores, int parallelism) {
+        this.ignores = ignores;
+        this.parallelism = Math.max(1, parallelism);
+    }
+
+    /** Blocks until the whole tree has been visited. Runtime exceptions thrown by the visitor end the walk and are
+     * rethrown; directories that cannot be read are logged and skipped.
+     * @return number of files visited */
+    public long walk(Path root, Visitor visitor) {
+        AtomicLong files = new AtomicLong();
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            pool.invoke(new DirectoryTask(root, "", visitor, files));
+        } finally {
+            pool.shutdown();
+        }
+        return files.get();
+    }
+
+    private class DirectoryTask extends RecursiveAction {
+        private final Path directory;
+        /** Key of the directory followed by a slash, or empty for the root */
+        private final String prefix;
+        private final Visitor visitor;
+        private final AtomicLong files;
+
+        DirectoryTask(Path directory, String prefix, Visitor visitor, AtomicLong files) {
+            this.directory = directory;
+            this.prefix = prefix;
+            this.visitor = visitor;
+            this.files = files;
+        }
+
+        @Override
+        protected void compute() {
+            List<DirectoryTask> subdirectories = new ArrayList<>();
+            try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory)) {
+                for (Path entry : entries) {
+                    String name = entry.getFileName().toString();
+                    if (ignores.matches(name))
+                        continue;
+                    BasicFileAttributes attributes;
+                    try {
+                        attributes = Files.readAttributes(entry, BasicFileAttributes.class);
+                    } catch (IOException e) {
+                        logger.debug("Unable to read the attributes of " + entry + ": " + e.getMessage());
+                        continue;
+                    }
+                    String key = prefix + name;
+                    if (attributes.isDirectory()) {
+                        if (visitor.preVisitDirectory(key, entry))
+                            subdirectories.add(new DirectoryTask(entry, key + "/", visitor, files));
+                    } else if (attributes.isRegularFile()) {
+                        files.incrementAndGet();
+                        visitor.visitFile(key, entry, attributes);
+                    }
+                }
+            } catch (IOException e) {
+                logger.warn("Unable to read directory " + directory + ": " + e.getMessage());
+            }
+            invokeAll(subdirectories);
+        }
+    }
+}
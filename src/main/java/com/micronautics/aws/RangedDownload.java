@@ -0,0 +1,223 @@
+package com.micronautics.aws;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.S3Object;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/** Downloads an object into a local file, fetching large objects as several byte ranges at once.
+ *
+ * The object is written to a temporary file beside the destination, which is preallocated to the size of the object.
+ * Objects smaller than Model.rangedThreshold are fetched with one request; larger objects are split into ranges of
+ * Model.rangeSize bytes, which are fetched on the pool of Model.partWorkers threads that multipart uploads also use,
+ * and written with positional FileChannel writes. Every range is requested on condition that the object's ETag is unchanged, so ranges of
+ * different versions of an object are never combined.
+ *
+ * Once all bytes have arrived the size of the temporary file is checked, and so is its MD5 digest if the ETag is one
+ * (ETags of multipart uploads are not). Only then is the temporary file renamed over the destination, so readers
+ * never see a partially written file and a failed download leaves the previous copy intact. Objects whose
+ * Content-Encoding is gzip (see Compression) are decompressed into a second temporary file, which is renamed instead.
+ *
+ * The whole object, or each range, is fetched again according to Model.retries if its request or its stream fails. */
+public class RangedDownload implements Callable<File> {
+    private static final Logger logger = LoggerFactory.getLogger(RangedDownload.class);
+    private static final int bufferSize = 64 * 1024;
+
+    private final AmazonS3 s3;
+    private final String bucketName;
+    private final String key;
+    private final long size;
+    private final String eTag;
+    private final File outFile;
+    /** Content-Encoding of the object, once a response has arrived */
+    private volatile String contentEncoding;
+
+    /** @param size expected size of the object, from the bucket listing
+     *  @param eTag expected ETag of the object, from the bucket listing */
+    public RangedDownload(AmazonS3 s3, String bucketName, String key, long size, String eTag, File outFile) {
+        while (key.startsWith("/"))
+            key = key.substring(1);
+        this.s3 = s3;
+        this.bucketName = bucketName;
+        this.key = key.replace("//", "/");
+        this.size = size;
+        this.eTag = eTag;
+        this.outFile = outFile;
+    }
+
+    /** Name of the temporary file that an object is downloaded into */
+    public static File tempFile(File outFile) {
+        return new File(outFile.getAbsoluteFile().getParentFile(), "." + outFile.getName() + ".s3part");
+    }
+
+    /** @return true if the object was stored compressed, so its ETag is not the digest of outFile */
+    public boolean wasCompressed() { return Compression.encoding.equals(contentEncoding); }
+
+    /** @return outFile, once it holds the complete object */
+    @Override
+    public File call() {
+        File tmpFile = tempFile(outFile);
+        File decompressedFile = new File(tmpFile.getParentFile(), "." + outFile.getName() + ".gunzip.s3part");
+        boolean moved = false;
+        try {
+            try (RandomAccessFile randomAccessFile = new RandomAccessFile(tmpFile, "rw")) {
+                randomAccessFile.setLength(size);
+            }
+            String expectedMd5 = HashCache.digestOf(eTag);
+            String actualMd5;
+            try (FileChannel channel = FileChannel.open(tmpFile.toPath(), StandardOpenOption.WRITE)) {
+                if (size<Model.rangedThreshold)
+                    actualMd5 = fetchWithRetries(channel, -1, -1, expectedMd5!=null);
+                else {
+                    fetchRanges(channel);
+                    actualMd5 = null;
+                }
+                channel.force(false);
+            }
+            if (tmpFile.length()!=size)
+                throw new AmazonClientException("Downloaded " + tmpFile.length() + " bytes of " + key + " instead of " + size);
+            if (expectedMd5!=null) {
+                if (actualMd5==null)
+                    actualMd5 = HashCache.compute(tmpFile);
+                if (!expectedMd5.equals(actualMd5))
+                    throw new AmazonClientException("Downloaded content of " + key + " has MD5 " + actualMd5 + " instead of " + expectedMd5);
+            }
+            File downloaded = tmpFile;
+            if (wasCompressed()) {
+                Compression.decompress(tmpFile, decompressedFile);
+                downloaded = decompressedFile;
+            }
+            try {
+                Files.move(downloaded.toPath(), outFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(downloaded.toPath(), outFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+            moved = true;
+            Model.metrics.downloaded(size);
+            return outFile;
+        } catch (IOException e) {
+            throw new AmazonClientException("Unable to download " + key + " to " + outFile + ": " + e.getMessage(), e);
+        } finally {
+            tmpFile.delete(); // already renamed unless the object was compressed or the download failed
+            if (!moved)
+                decompressedFile.delete();
+        }
+    }
+
+    private void fetchRanges(final FileChannel channel) {
+        long rangeSize = Math.max(1, Model.rangeSize);
+        logger.debug("Downloading " + key + " in " + ((size + rangeSize - 1) / rangeSize) + " ranges");
+        List<Future<?>> futures = new ArrayList<>();
+        try {
+            for (long start=0; start<size; start+=rangeSize) {
+                final long first = start;
+                final long last = Math.min(size, start + rangeSize) - 1;
+                futures.add(MultipartUpload.partExecutor().submit(new Callable<Void>() {
+                    @Override
+                    public Void call() {
+                        fetchWithRetries(channel, first, last, false);
+                        return null;
+                    }
+                }));
+            }
+            for (Future<?> future : futures)
+                await(future);
+        } finally {
+            for (Future<?> future : futures)
+                future.cancel(true);
+        }
+    }
+
+    /** Calls fetch() according to Model.retries; a failed attempt is repeated from its first byte */
+    private String fetchWithRetries(final FileChannel channel, final long first, final long last, final boolean digest) {
+        String description = first<0 ? "Download of " + key : "Download of bytes " + first + "-" + last + " of " + key;
+        return Model.retries.execute(description, new Callable<String>() {
+            @Override
+            public String call() throws IOException { return fetch(channel, first, last, digest); }
+        });
+    }
+
+    /** Fetches bytes first..last of the object, or the entire object if first is negative, into the same positions of
+     * the channel.
+     * @return hex MD5 digest of the bytes if digest is true, otherwise null */
+    private String fetch(FileChannel channel, long first, long last, boolean digest) throws IOException {
+        GetObjectRequest request = new GetObjectRequest(bucketName, key);
+        if (first>=0)
+            request.setRange(first, last);
+        if (eTag!=null)
+            request.withMatchingETagConstraint(eTag);
+        S3Object object = s3.getObject(request);
+        if (object==null) { // the ETag constraint was not met, so retrying would not help
+            AmazonServiceException e = new AmazonServiceException(key + " changed while it was being downloaded");
+            e.setStatusCode(412);
+            e.setErrorCode("PreconditionFailed");
+            throw e;
+        }
+        if (object.getObjectMetadata().getContentEncoding()!=null)
+            contentEncoding = object.getObjectMetadata().getContentEncoding();
+        MessageDigest messageDigest = digest ? md5() : null;
+        long position = Math.max(0, first);
+        long end = first>=0 ? last + 1 : size;
+        try (InputStream inputStream = object.getObjectContent()) {
+            byte[] bytes = new byte[bufferSize];
+            int count;
+            while ((count = inputStream.read(bytes))>=0) {
+                if (position + count > end)
+                    throw new AmazonClientException("Received more bytes of " + key + " than expected");
+                ByteBuffer buffer = ByteBuffer.wrap(bytes, 0, count);
+                while (buffer.hasRemaining())
+                    position += channel.write(buffer, position);
+                if (messageDigest!=null)
+                    messageDigest.update(bytes, 0, count);
+            }
+        }
+        if (position!=end)
+            throw new AmazonClientException("Received " + (position - Math.max(0, first)) + " bytes of " + key +
+                    " instead of " + (end - Math.max(0, first)));
+        if (messageDigest==null)
+            return null;
+        return HashCache.hex(messageDigest.digest());
+    }
+
+    private static MessageDigest md5() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void await(Future<?> future) {
+        try {
+            future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new AmazonClientException("Interrupted while downloading ranges", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            throw new AmazonClientException(e.getCause().getMessage(), e.getCause());
+        }
+    }
+}
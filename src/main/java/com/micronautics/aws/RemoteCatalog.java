@@ -0,0 +1,231 @@
+package com.micronautics.aws;
+
+import com.amazonaws.services.s3.model.PutObjectResult;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import static com.micronautics.aws.S3Model.*;
+
+/** Index of the objects in a bucket, keyed by normalized key, so the remote counterpart of a local file can be found
+ * without scanning the whole listing. The catalog is built once from a bucket listing and is then kept current as
+ * uploads and deletions complete, so later lookups do not require the bucket to be listed again.
+ *
+ * Keys are normalized with <code>S3.relativize</code> and backslashes are converted to forward slashes, so
+ * "/blah/ick.html", "blah//ick.html" and "blah\ick.html" all refer to the same entry.
+ * The listing itself is held in a CompactListing; entries are materialized only when they are read. */
+public class RemoteCatalog implements Iterable<CompactListing.Entry> {
+    private final CompactListing listing;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    public RemoteCatalog() { this(new CompactListing()); }
+
+    /** @param listing keys must already be normalized, as they are by S3.getListing() */
+    public RemoteCatalog(CompactListing listing) { this.listing = listing; }
+
+    public RemoteCatalog(Collection<S3ObjectSummary> objectSummaries) {
+        this(new CompactListing(objectSummaries.size()));
+        for (S3ObjectSummary objectSummary : objectSummaries)
+            add(objectSummary);
+    }
+
+    public static String normalize(String key) {
+        return S3.relativize(key.replace('\\', '/'));
+    }
+
+    /** The order in which S3 lists keys, which is the order of their UTF-8 bytes. This is code point order, which
+     * only differs from String.compareTo() for keys that contain supplementary characters. */
+    public static final Comparator<String> keyOrder = new Comparator<String>() {
+        @Override
+        public int compare(String a, String b) {
+            int i = 0;
+            int j = 0;
+            while (i<a.length() && j<b.length()) {
+                int ca = a.codePointAt(i);
+                int cb = b.codePointAt(j);
+                if (ca!=cb)
+                    return ca<cb ? -1 : 1;
+                i += Character.charCount(ca);
+                j += Character.charCount(cb);
+            }
+            return (a.length() - i) - (b.length() - j);
+        }
+    };
+
+    public void add(S3ObjectSummary objectSummary) {
+        put(objectSummary.getKey(), objectSummary.getSize(), objectSummary.getLastModified().getTime(), objectSummary.getETag());
+    }
+
+    public void put(String key, long size, long lastModified, String eTag) {
+        String normalizedKey = normalize(key);
+        lock.writeLock().lock();
+        try {
+            listing.put(normalizedKey, size, lastModified, eTag);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /** @return entry for the given key, or null if the bucket does not contain it */
+    public CompactListing.Entry get(String key) {
+        String normalizedKey = normalize(key);
+        lock.readLock().lock();
+        try {
+            int index = listing.indexOf(normalizedKey);
+            return index<0 ? null : listing.entry(index);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public boolean contains(String key) {
+        String normalizedKey = normalize(key);
+        lock.readLock().lock();
+        try {
+            return listing.contains(normalizedKey);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /** @return -2 if the remote copy does not exist, -1 if the remote copy is older than the local copy,
+     *           0 if they are the same age, 1 if the remote copy is newer, 2 if the local copy does not exist */
+    public int compareAge(File file, String key) {
+        long remoteLastModified;
+        String normalizedKey = normalize(key);
+        lock.readLock().lock();
+        try {
+            int index = listing.indexOf(normalizedKey);
+            if (index<0)
+                return s3FileDoesNotExist;
+            remoteLastModified = listing.lastModified(index);
+        } finally {
+            lock.readLock().unlock();
+        }
+        return compareAge(file, remoteLastModified);
+    }
+
+    /** Times are compared to the nearest second, because S3 and some OSes only support second resolution.
+     * @see #compareAge(java.io.File, String) */
+    public static int compareAge(File file, long remoteLastModified) {
+        if (!file.exists())
+            return s3FileDoesNotExistLocally;
+        long local = file.lastModified() / 1000L;
+        long remote = remoteLastModified / 1000L;
+        if (remote<local)
+            return s3FileIsOlderThanLocal;
+        if (remote>local)
+            return s3FileNewerThanLocal;
+        return s3FileSameAgeAsLocal;
+    }
+
+    /** Record a completed upload. The remote copy is recorded with the local file's last-modified time, so files
+     * uploaded during this run compare as the same age as their remote copies.
+     * Failed uploads (results without an ETag) are ignored. */
+    public void uploaded(String key, File file, PutObjectResult result) {
+        if (result==null || result.getETag()==null)
+            return;
+        put(key, file.length(), file.lastModified(), result.getETag());
+    }
+
+    /** Record a completed deletion */
+    public void remove(String key) {
+        String normalizedKey = normalize(key);
+        lock.writeLock().lock();
+        try {
+            listing.remove(normalizedKey);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /** @return keys of the objects whose keys start with prefix, found without scanning the whole catalog */
+    public List<String> keysUnder(String prefix) {
+        String normalizedPrefix = normalize(prefix);
+        lock.readLock().lock();
+        try {
+            List<String> keys = new ArrayList<>();
+            for (int index : listing.indexesUnder(normalizedPrefix))
+                keys.add(listing.key(index));
+            return keys;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /** @return keys of the objects directly within directory, which is empty or ends with a slash */
+    public List<String> keysIn(String directory) {
+        String normalizedDirectory = normalize(directory);
+        lock.readLock().lock();
+        try {
+            List<String> keys = new ArrayList<>();
+            for (int index : listing.indexesIn(normalizedDirectory))
+                keys.add(listing.key(index));
+            return keys;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /** Record the deletion of every object whose key starts with prefix */
+    public void removePrefix(String prefix) {
+        String normalizedPrefix = normalize(prefix);
+        lock.writeLock().lock();
+        try {
+            for (int index : listing.indexesUnder(normalizedPrefix))
+                listing.remove(listing.key(index));
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /** Entries are read under the lock one at a time, so the iterator tolerates concurrent uploads and deletions */
+    @Override
+    public Iterator<CompactListing.Entry> iterator() {
+        return new Iterator<CompactListing.Entry>() {
+            private int next = 0;
+            private CompactListing.Entry entry = advance();
+
+            private CompactListing.Entry advance() {
+                lock.readLock().lock();
+                try {
+                    while (next<listing.indexLimit())
+                        if (listing.isLive(next))
+                            return listing.entry(next++);
+                        else
+                            next++;
+                    return null;
+                } finally {
+                    lock.readLock().unlock();
+                }
+            }
+
+            public boolean hasNext() { return entry!=null; }
+
+            public CompactListing.Entry next() {
+                if (entry==null)
+                    throw new java.util.NoSuchElementException();
+                CompactListing.Entry result = entry;
+                entry = advance();
+                return result;
+            }
+
+            public void remove() { throw new UnsupportedOperationException(); }
+        };
+    }
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return listing.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+}
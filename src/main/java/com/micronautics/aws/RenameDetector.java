@@ -0,0 +1,117 @@
+package com.micronautics.aws;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/** Pairs the files deleted and created during one debounce window that have the same size and content, so that a
+ * renamed or moved file can be copied on S3 from its old key instead of being uploaded again.
+ *
+ * Deleted keys are indexed by size, with the digest of their remote copy: the MD5 digest recorded in the sync index,
+ * or the ETag. A created file is only hashed if a deleted key has the same size, and is paired with the first such key
+ * whose digest matches. Objects that were uploaded in parts have multipart ETags, which are compared with the
+ * multipart ETag of the file, computed with the part size that MultipartUpload would use. Keys whose digest is unknown,
+ * and objects too large to copy with one request, are never paired. */
+public class RenameDetector {
+    private static final Logger logger = LoggerFactory.getLogger(RenameDetector.class);
+
+    /** Where the digests of created files are cached, or null to compute them */
+    private final HashCache hashCache;
+    private final Map<Long, List<Deleted>> deletedBySize = new HashMap<>();
+
+    /** A deleted file and the expected digest of its content */
+    private static class Deleted {
+        final String key;
+        /** Hex MD5 digest, or multipart ETag without quotes */
+        final String digest;
+
+        Deleted(String key, String digest) {
+            this.key = key;
+            this.digest = digest;
+        }
+    }
+
+    /** A created file whose content is already stored on S3 under another key */
+    public static class Rename {
+        public final String from;
+        public final String to;
+        public final File file;
+
+        public Rename(String from, String to, File file) {
+            this.from = from;
+            this.to = to;
+            this.file = file;
+        }
+
+        @Override
+        public String toString() { return from + " => " + to; }
+    }
+
+    public RenameDetector(HashCache hashCache) {
+        this.hashCache = hashCache;
+    }
+
+    /** Records the deletion of key, whose remote copy has size bytes
+     * @param digest hex MD5 digest or ETag of the remote copy; the deletion is ignored if this is null */
+    public void deleted(String key, long size, String digest) {
+        if (digest==null || size>S3.maxCopySize)
+            return;
+        String value = HashCache.digestOf(digest);
+        if (value==null) { // multipart ETag
+            value = digest.replace("\"", "").toLowerCase();
+            if (value.indexOf('-')<0)
+                return;
+        }
+        List<Deleted> deleted = deletedBySize.get(size);
+        if (deleted==null) {
+            deleted = new ArrayList<>(1);
+            deletedBySize.put(size, deleted);
+        }
+        deleted.add(new Deleted(key, value));
+    }
+
+    /** @return true if no deleted key is waiting to be paired */
+    public boolean isEmpty() { return deletedBySize.isEmpty(); }
+
+    /** Pairs a created file with a deleted key with the same content; the key is not paired again
+     * @return the rename, or null if no deleted key has the same content */
+    public Rename created(String key, File file) {
+        long size = file.length();
+        List<Deleted> candidates = deletedBySize.get(size);
+        if (candidates==null)
+            return null;
+        String md5 = null;
+        String multipartETag = null;
+        try {
+            for (Iterator<Deleted> iterator = candidates.iterator(); iterator.hasNext(); ) {
+                Deleted deleted = iterator.next();
+                boolean matches;
+                if (deleted.digest.indexOf('-')<0) {
+                    if (md5==null)
+                        md5 = hashCache!=null ? hashCache.md5(key, file) : HashCache.compute(file);
+                    matches = deleted.digest.equals(md5);
+                } else {
+                    if (multipartETag==null)
+                        multipartETag = HashCache.multipartETag(file, MultipartUpload.partSize(size));
+                    matches = deleted.digest.equals(multipartETag);
+                }
+                if (matches) {
+                    iterator.remove();
+                    if (candidates.isEmpty())
+                        deletedBySize.remove(size);
+                    return new Rename(deleted.key, key, file);
+                }
+            }
+        } catch (IOException e) {
+            logger.debug("Unable to hash " + file + ": " + e.getMessage());
+        }
+        return null;
+    }
+}
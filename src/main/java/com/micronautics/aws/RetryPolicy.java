@@ -0,0 +1,141 @@
+package com.micronautics.aws;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.s3.model.MultiObjectDeleteException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ThreadLocalRandom;
+
+/** Sends S3 requests through an AdaptiveLimit, and retries those that fail for transient reasons.
+ *
+ * Before attempt n+1 the caller sleeps for a random time between zero and baseDelay * 2^n, capped at maxDelay
+ * ("full jitter"), so that the many transfers that were throttled together do not all retry together.
+ * Throttling, server errors, timeouts and network failures are retried; other errors, such as missing buckets or
+ * denied access, fail at once. The AWS SDK's own retries are disabled (see S3Clients), so each attempt counted here is
+ * one request.
+ *
+ * Each attempt should be a single request whose inputs can be sent again, such as a file or a part of one; an attempt
+ * must never make further requests through a RetryPolicy, or it could wait for a slot that it holds itself. */
+public class RetryPolicy {
+    private static final Logger logger = LoggerFactory.getLogger(RetryPolicy.class);
+
+    /** Error codes that mean S3 is asking clients to slow down */
+    private static final Set<String> throttlingCodes = new HashSet<>(Arrays.asList(
+            "SlowDown", "Throttling", "ThrottlingException", "RequestLimitExceeded", "TooManyRequests"));
+
+    /** Error codes of other failures that may succeed if they are tried again */
+    private static final Set<String> transientCodes = new HashSet<>(Arrays.asList(
+            "InternalError", "ServiceUnavailable", "RequestTimeout", "OperationAborted"));
+
+    private final int maxAttempts;
+    private final long baseDelay;
+    private final long maxDelay;
+    private final AdaptiveLimit limit;
+
+    public RetryPolicy(int maxAttempts, long baseDelay, long maxDelay, AdaptiveLimit limit) {
+        this.maxAttempts = Math.max(1, maxAttempts);
+        this.baseDelay = baseDelay;
+        this.maxDelay = maxDelay;
+        this.limit = limit;
+    }
+
+    /** @return the policy configured by the awsmirror.* system properties, sharing Model.requestLimit */
+    public static RetryPolicy standard() {
+        return new RetryPolicy(Model.maxRetries + 1, Model.retryBaseDelay, Model.retryMaxDelay, Model.requestLimit);
+    }
+
+    /** @return true if S3 rejected the request because too many requests are being sent */
+    public static boolean isThrottling(Throwable e) {
+        if (!(e instanceof AmazonServiceException) || e instanceof MultiObjectDeleteException)
+            return false;
+        AmazonServiceException serviceException = (AmazonServiceException) e;
+        return serviceException.getStatusCode()==503 || serviceException.getStatusCode()==429 ||
+                throttlingCodes.contains(serviceException.getErrorCode());
+    }
+
+    /** @return true if the error code of a request, or of one key of a multi-object delete, is worth retrying */
+    public static boolean isTransient(String errorCode) {
+        return throttlingCodes.contains(errorCode) || transientCodes.contains(errorCode);
+    }
+
+    /** @return true if a request that failed with e may succeed if it is sent again */
+    public static boolean isRetryable(Throwable e) {
+        if (e instanceof MultiObjectDeleteException)
+            return false; // the request succeeded; its keys are classified individually
+        if (e instanceof AmazonServiceException) {
+            AmazonServiceException serviceException = (AmazonServiceException) e;
+            int status = serviceException.getStatusCode();
+            return status>=500 || status==408 || status==429 || isTransient(serviceException.getErrorCode());
+        }
+        if (e instanceof AmazonClientException) // the request did not reach S3, or its response was lost
+            return !(e.getCause() instanceof InterruptedException) && !Thread.currentThread().isInterrupted();
+        return e instanceof IOException;
+    }
+
+    /** @return milliseconds to wait before the attempt that follows attempt number attempt (1 for the first) */
+    public long delay(int attempt) {
+        long ceiling = Math.min(maxDelay, baseDelay << Math.min(attempt - 1, 30));
+        return ThreadLocalRandom.current().nextLong(Math.max(1, ceiling) + 1);
+    }
+
+    public int maxAttempts() { return maxAttempts; }
+
+    /** Sends request until it succeeds, fails with an error that is not retryable, or has been attempted maxAttempts
+     * times; the last exception is then thrown.
+     * @param description names the request in log messages */
+    public <T> T call(String description, Callable<T> request) throws Exception {
+        for (int attempt=1; ; attempt++) {
+            if (limit!=null)
+                limit.acquire();
+            Exception failure;
+            try {
+                T result = request.call();
+                if (limit!=null)
+                    limit.succeeded();
+                return result;
+            } catch (Exception e) {
+                if (limit!=null) {
+                    if (isThrottling(e))
+                        limit.throttled();
+                    else
+                        limit.failed();
+                }
+                failure = e;
+            } catch (Error e) {
+                if (limit!=null)
+                    limit.failed();
+                throw e;
+            }
+            if (attempt>=maxAttempts || !isRetryable(failure))
+                throw failure;
+            long delay = delay(attempt);
+            Model.metrics.retried();
+            logger.info(description + " failed (" + failure.getMessage() + "); attempt " + (attempt + 1) + " of " +
+                    maxAttempts + " in " + delay + " ms");
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw failure;
+            }
+        }
+    }
+
+    /** Like call(), but checked exceptions are wrapped in an AmazonClientException */
+    public <T> T execute(String description, Callable<T> request) {
+        try {
+            return call(description, request);
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new AmazonClientException(description + " failed: " + e.getMessage(), e);
+        }
+    }
+}
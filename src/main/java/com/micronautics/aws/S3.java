@@ -1,23 +1,20 @@
 package com.micronautics.aws;
 
 import com.amazonaws.AmazonClientException;
+import com.amazonaws.ClientConfiguration;
 import com.amazonaws.auth.AWSCredentials;
 import com.amazonaws.auth.BasicAWSCredentials;
 import com.amazonaws.auth.PropertiesCredentials;
 import com.amazonaws.services.s3.AmazonS3Client;
 import com.amazonaws.services.s3.model.*;
-import com.amazonaws.util.StringInputStream;
 
 import java.io.*;
-import java.nio.file.Files;
-import java.nio.file.attribute.BasicFileAttributeView;
-import java.nio.file.attribute.FileTime;
 import java.util.Date;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.Callable;
 
 import static com.micronautics.aws.Util.latestFileTime;
-import static org.apache.commons.lang.SystemUtils.IS_OS_WINDOWS;
 
 /**
  * When uploading, any leading slashes for keys are removed because when AWS S3 is enabled for a web site, S3 adds a leading slash.
@@ -26,12 +23,16 @@ import static org.apache.commons.lang.SystemUtils.IS_OS_WINDOWS;
  * not be fetched by web browsers.
  *
  * AWS does not respect the last-modified metadata provided when uploading; it uses the upload timestamp instead.
- * After uploading, the last-modified timestamp of the uploaded file is read and applied to the local copy of the file
- * so the timestamps match.
+ * Rather than reading the timestamp back after each upload, which would cost a second request per file, the ETag of
+ * each upload is recorded in the SyncIndex. A local file is in sync with its remote copy while the file's size and
+ * last-modified time, and the remote ETag, are the ones recorded; see SyncIndex.compareAge().
  *
  * Java on Windows does not handle last-modified properly, so the creation date is set to the last-modified date for files (Windows only).
  */
 public class S3 {
+    /** Largest object that can be copied with one request */
+    public static final long maxCopySize = 5L * 1024L * 1024L * 1024L;
+
     public AmazonS3Client s3;
     public Exception exception;
     public AWSCredentials awsCredentials;
@@ -59,9 +60,17 @@ public class S3 {
         }
     }
 
+    /** Commands should share the instances returned by S3Clients.get() rather than create their own */
     public S3(final String key, final String secret) {
+        this(key, secret, S3Clients.configuration());
+    }
+
+    public S3(final String key, final String secret, ClientConfiguration configuration) {
         awsCredentials = new BasicAWSCredentials(key, secret);
-        s3 = new AmazonS3Client(awsCredentials);
+        s3 = new AmazonS3Client(awsCredentials, configuration);
+        if (Model.endpoint!=null)
+            s3.setEndpoint(Model.endpoint);
+        s3.addRequestHandler(Model.metrics.requestHandler());
     }
 
     // todo create policy for intranets
@@ -113,8 +122,7 @@ public class S3 {
     }
 
     public boolean bucketExists(String bucketName) {
-        List<Bucket> buckets = s3.listBuckets();
-        for (Bucket bucket : buckets)
+        for (Bucket bucket : listAllBuckets())
           if (bucket.getName().compareTo(bucketName)==0)
               return true;
         return false;
@@ -146,72 +154,117 @@ public class S3 {
     /** List the buckets in the account */
     public String[] listBuckets() {
         LinkedList<String> result = new LinkedList<String>();
-        for (Bucket bucket : s3.listBuckets())
+        for (Bucket bucket : listAllBuckets())
             result.add(bucket.getName());
         return result.toArray(new String[result.size()]);
     }
 
+    private List<Bucket> listAllBuckets() {
+        return Model.retries.execute("Listing buckets", new Callable<List<Bucket>>() {
+            @Override
+            public List<Bucket> call() { return s3.listBuckets(); }
+        });
+    }
+
     /** Uploads a file to the specified bucket. The file's last-modified date is applied to the uploaded file.
      * AWS does not respect the last-modified metadata, and Java on Windows does not handle last-modified properly either.
      * If the key has leading slashes, they are removed for consistency.
      *
      * AWS does not respect the last-modified metadata provided when uploading; it uses the upload timestamp instead.
-     * After uploading, the last-modified timestamp of the uploaded file is read and applied to the local copy of the file
-     * so the timestamps match.
-     *
-     * Java on Windows does not handle last-modified properly, so the creation date is set to the last-modified date (Windows only).
+     * The ETag of the upload is recorded in the SyncIndex so the local and remote copies compare as the same age.
      *
      * To list the last modified date with seconds in bash with: <code>ls -lc --time-style=full-iso</code>
      * To list the creation date with seconds in bash with: <code>ls -l --time-style=full-iso</code> */
     public PutObjectResult uploadFile(String bucketName, String key, File file) {
-        ObjectMetadata metadata = new ObjectMetadata();
-        metadata.setLastModified(new Date(latestFileTime(file))); // ignored by S3
-//        System.out.println("File latest time=" + lastestFileTime(file) + "metadata.lastModified=" + metadata.getLastModified().getTime());
-        metadata.setContentEncoding("utf-8");
-        // content length is set by s3.putObject()
-        setContentType(key, metadata);
+        return uploadFile(bucketName, key, file, Model.journalDirectory);
+    }
 
+    /** Requests are retried according to Model.retries. Text assets are compressed first if Model.compressUploads is set.
+     * @param journalDirectory where the progress of a multipart upload is recorded
+     * @throws AmazonClientException if the file could not be uploaded */
+    public PutObjectResult uploadFile(String bucketName, String key, File file, File journalDirectory) {
+        ObjectMetadata metadata = metadataFor(key, file);
         while (key.startsWith("/"))
             key = key.substring(1);
+        if (!Compression.applies(key))
+            return upload(bucketName, key, file, file, metadata, journalDirectory);
+        File compressed;
+        try {
+            compressed = Compression.compress(file);
+        } catch (IOException e) {
+            throw new AmazonClientException("Unable to compress " + file + ": " + e.getMessage(), e);
+        }
         try {
-            PutObjectRequest putObjectRequest = new PutObjectRequest(bucketName, key, file);
-            putObjectRequest.setMetadata(metadata);
-            putObjectRequest.setProgressListener(new ProgressListener() {
-                int bytesTransferred = 0;
+            metadata.setContentEncoding(Compression.encoding);
+            return upload(bucketName, key, compressed, file, metadata, journalDirectory);
+        } finally {
+            compressed.delete();
+        }
+    }
+
+    /** @param source file that file holds the content of, possibly compressed; identifies the content in the journal */
+    private PutObjectResult upload(final String bucketName, String key, final File file, File source, final ObjectMetadata metadata, File journalDirectory) {
+        PutObjectResult result;
+        if (file.length()>=Model.multipartThreshold)
+            result = new MultipartUpload(s3, bucketName, key, file, source, metadata, journalDirectory).call();
+        else {
+            final String finalKey = key;
+            result = Model.retries.execute("Upload of " + key, new Callable<PutObjectResult>() {
                 @Override
-                public void progressChanged(ProgressEvent progressEvent) {
-                    bytesTransferred += progressEvent.getBytesTransfered();
-                    if (progressEvent.getEventCode()==ProgressEvent.COMPLETED_EVENT_CODE)
-                        System.out.print(" " + bytesTransferred + " bytes; ");
-                    else
-                        System.out.print(".");
+                public PutObjectResult call() {
+                    PutObjectRequest putObjectRequest = new PutObjectRequest(bucketName, finalKey, file);
+                    putObjectRequest.setMetadata(metadata);
+                    return s3.putObject(putObjectRequest);
                 }
             });
-            PutObjectResult result = s3.putObject(putObjectRequest);
-
-            // compensate for AWS S3 not storing last modified time properly
-            ObjectMetadata m2 = s3.getObjectMetadata(bucketName, key);
-            FileTime time = FileTime.fromMillis(m2.getLastModified().getTime());
-            //System.out.println("m2 time=" + m2.getLastModified());
-            Files.getFileAttributeView(file.toPath(), BasicFileAttributeView.class)
-                .setTimes(time, null, IS_OS_WINDOWS ? time : time);
-            return result;
-        } catch (Exception e) {
-            System.err.println(e.getMessage());
-            return new PutObjectResult();
         }
+        Model.metrics.uploaded(file.length());
+        return result;
     }
 
-    public PutObjectResult uploadString(String bucketName, String key, String contents) {
+    /** Copies the object at fromKey to toKey within the bucket, without sending its content again, giving the copy the
+     * metadata that an upload of file to toKey would have; objects larger than maxCopySize cannot be copied this way.
+     * The request is retried according to Model.retries.
+     * @return the ETag of the copy, as the result of an upload of file would hold it
+     * @throws AmazonClientException if the object could not be copied */
+    public PutObjectResult copyFile(final String bucketName, String fromKey, String toKey, File file) {
+        final CopyObjectRequest copyObjectRequest =
+                new CopyObjectRequest(bucketName, relativize(fromKey), bucketName, relativize(toKey))
+                        .withNewObjectMetadata(metadataFor(toKey, file));
+        CopyObjectResult copyObjectResult = Model.retries.execute("Copy of " + fromKey + " to " + toKey, new Callable<CopyObjectResult>() {
+            @Override
+            public CopyObjectResult call() { return s3.copyObject(copyObjectRequest); }
+        });
+        Model.metrics.copied();
+        PutObjectResult result = new PutObjectResult();
+        result.setETag(copyObjectResult.getETag());
+        return result;
+    }
+
+    private ObjectMetadata metadataFor(String key, File file) {
         ObjectMetadata metadata = new ObjectMetadata();
+        metadata.setLastModified(new Date(latestFileTime(file))); // ignored by S3
+//        System.out.println("File latest time=" + lastestFileTime(file) + "metadata.lastModified=" + metadata.getLastModified().getTime());
+        // content length is set by s3.putObject()
+        setContentType(key, metadata);
+        return metadata;
+    }
+
+    public PutObjectResult uploadString(final String bucketName, final String key, final String contents) {
+        final ObjectMetadata metadata = new ObjectMetadata();
         metadata.setLastModified(new Date());
-        metadata.setContentEncoding("utf-8");
-        metadata.setContentLength(contents.length());
         setContentType(key, metadata);
         try {
-            InputStream inputStream = new StringInputStream(contents);
-            PutObjectRequest putObjectRequest = new PutObjectRequest(bucketName, key, inputStream, metadata);
-            return s3.putObject(putObjectRequest);
+            final byte[] bytes = contents.getBytes("UTF-8");
+            metadata.setContentLength(bytes.length);
+            if (metadata.getContentType().startsWith("text/"))
+                metadata.setContentType(metadata.getContentType() + "; charset=utf-8");
+            return Model.retries.call("Upload of " + key, new Callable<PutObjectResult>() {
+                @Override
+                public PutObjectResult call() {
+                    return s3.putObject(new PutObjectRequest(bucketName, key, new ByteArrayInputStream(bytes), metadata));
+                }
+            });
         } catch (Exception e) {
             System.err.println(e.getMessage());
             return new PutObjectResult();
@@ -225,36 +278,46 @@ public class S3 {
             key = key.substring(1);
         ObjectMetadata metadata = new ObjectMetadata();
         metadata.setContentLength(length);
-        metadata.setContentEncoding("utf-8");
         setContentType(key, metadata);
         //metadata.setCacheControl("cacheControl");
         s3.putObject(new PutObjectRequest(bucketName, key, stream, metadata));
     }
 
     private void setContentType(String key, ObjectMetadata metadata) {
+        metadata.setContentType(contentType(key));
+    }
+
+    /** @return content type of an object, from the extension of its key */
+    public static String contentType(String key) {
         String keyLC = key.toLowerCase().trim();
         if (keyLC.endsWith(".css"))
-            metadata.setContentType("text/css");
+            return "text/css";
         else if (keyLC.endsWith(".doc") || keyLC.endsWith(".docx"))
-            metadata.setContentType("application/msword");
+            return "application/msword";
         else if (keyLC.endsWith(".html") || keyLC.endsWith(".htm")  || keyLC.endsWith(".shtml") || keyLC.endsWith(".jsp") || keyLC.endsWith(".php"))
-            metadata.setContentType("text/html");
+            return "text/html";
         else if (keyLC.endsWith(".gif"))
-            metadata.setContentType("image/gif");
+            return "image/gif";
         else if (keyLC.endsWith(".jpg"))
-            metadata.setContentType("image/jpeg");
+            return "image/jpeg";
         else if (keyLC.endsWith(".js"))
-            metadata.setContentType("text/javascript");
+            return "text/javascript";
+        else if (keyLC.endsWith(".json"))
+            return "application/json";
         else if (keyLC.endsWith(".pdf"))
-            metadata.setContentType("application/pdf");
+            return "application/pdf";
         else if (keyLC.endsWith(".png"))
-            metadata.setContentType("image/png");
+            return "image/png";
+        else if (keyLC.endsWith(".svg"))
+            return "image/svg+xml";
         else if (keyLC.endsWith(".txt"))
-            metadata.setContentType("text/plain");
+            return "text/plain";
+        else if (keyLC.endsWith(".xml"))
+            return "application/xml";
         else if (keyLC.endsWith(".zip"))
-            metadata.setContentType("application/zip");
+            return "application/zip";
         else
-            metadata.setContentType("text/plain");
+            return "text/plain";
     }
 
     /** Download an object - if the key has any leading slashes, they are removed.
@@ -265,11 +328,14 @@ public class S3 {
      *
      * GetObjectRequest also supports several other options, including conditional downloading of objects
      * based on modification times, ETags, and selectively downloading a range of an object. */
-    public InputStream downloadFile(String bucketName, String key) {
+    public InputStream downloadFile(final String bucketName, String key) {
         while (key.startsWith("/"))
             key = key.substring(1);
-        key = key.replace("//", "/");
-        S3Object object = s3.getObject(new GetObjectRequest(bucketName, key));
+        final String finalKey = key.replace("//", "/");
+        S3Object object = Model.retries.execute("Download of " + finalKey, new Callable<S3Object>() {
+            @Override
+            public S3Object call() { return s3.getObject(new GetObjectRequest(bucketName, finalKey)); }
+        });
 //        System.out.println("Content-Type: " + object.getObjectMetadata().getContentType());
         return object.getObjectContent();
     }
@@ -277,21 +343,12 @@ public class S3 {
     /** List objects in given bucketName by prefix.
      * @param prefix Any leading slashes are removed if a prefix is specified */
     public String[] listObjectsByPrefix(String bucketName, String prefix) {
-        while (null!=prefix && prefix.length()>0 && prefix.startsWith("/"))
-            prefix = prefix.substring(1);
-        LinkedList<String> result = new LinkedList<String>();
-        boolean more = true;
-        ObjectListing objectListing = s3.listObjects(new ListObjectsRequest()
-                .withBucketName(bucketName)
-                .withPrefix(prefix));
-        while (more) {
-            for (S3ObjectSummary objectSummary : objectListing.getObjectSummaries())
-                result.add(objectSummary.getKey() + " (size = " + objectSummary.getSize() + ")");
-            more = objectListing.isTruncated();
-            if (more)
-                objectListing = s3.listNextBatchOfObjects(objectListing);
-        }
-        return result.toArray(new String[result.size()]);
+        CompactListing listing = getListing(bucketName, prefix);
+        String[] result = new String[listing.size()];
+        int i = 0;
+        for (CompactListing.Entry entry : listing)
+            result[i++] = entry.key + " (size = " + entry.size + ")";
+        return result;
     }
 
     /** @param prefix Any leading slashes are removed if a prefix is specified
@@ -304,7 +361,9 @@ public class S3 {
         }
         LinkedList<S3ObjectSummary> result = new LinkedList<S3ObjectSummary>();
         boolean more = true;
-        ObjectListing objectListing = s3.listObjects(new ListObjectsRequest().withBucketName(bucketName).withPrefix(prefix));
+        ListingClient listingClient = listingClient();
+        ListObjectsRequest listObjectsRequest = new ListObjectsRequest().withBucketName(bucketName).withPrefix(prefix);
+        ObjectListing objectListing = listingClient.listObjects(listObjectsRequest);
         while (more) {
             for (S3ObjectSummary objectSummary : objectListing.getObjectSummaries()) {
                 if (prefixAdjusted)
@@ -313,17 +372,39 @@ public class S3 {
             }
             more = objectListing.isTruncated();
             if (more)
-                objectListing = s3.listNextBatchOfObjects(objectListing);
+                objectListing = listingClient.listObjects(listObjectsRequest.withMarker(ParallelLister.nextMarker(objectListing)));
         }
         return result;
     }
 
+    /** Lists objects like getAllObjectData(), but retains only their keys, sizes, last-modified times and ETags.
+     * Each page of S3ObjectSummary instances can be garbage collected as soon as it has been copied into the listing.
+     * The top-level prefixes of the bucket are listed concurrently on up to Model.listingWorkers threads.
+     * @param prefix Any leading slashes are removed if a prefix is specified
+     * @return CompactListing of normalized keys, in key order */
+    public CompactListing getListing(String bucketName, String prefix) {
+        return new ParallelLister(listingClient(), Model.listingWorkers).list(bucketName, prefix);
+    }
+
+    /** Each page is retried according to Model.retries */
+    public ListingClient listingClient() {
+        return new ListingClient() {
+            @Override
+            public ObjectListing listObjects(final ListObjectsRequest listObjectsRequest) {
+                return Model.retries.execute("Listing of " + listObjectsRequest.getBucketName(), new Callable<ObjectListing>() {
+                    @Override
+                    public ObjectListing call() { return s3.listObjects(listObjectsRequest); }
+                });
+            }
+        };
+    }
+
     /** @param prefix Any leading slashes are removed if a prefix is specified
      * @return ObjectSummary with leading "./", prepended if necessary*/
     public S3ObjectSummary getOneObjectData(String bucketName, String prefix) {
         while (null!=prefix && prefix.length()>0 && prefix.startsWith("/"))
             prefix = prefix.substring(1);
-        ObjectListing objectListing = s3.listObjects(new ListObjectsRequest().withBucketName(bucketName).withPrefix(prefix));
+        ObjectListing objectListing = listingClient().listObjects(new ListObjectsRequest().withBucketName(bucketName).withPrefix(prefix));
         for (S3ObjectSummary objectSummary : objectListing.getObjectSummaries()) {
             String key = objectSummary.getKey();
             if (key.compareTo(prefix)==0) {
@@ -349,22 +430,42 @@ public class S3 {
 
     /** Delete an object - if they key has any leading slashes, they are removed.
      * Unless versioning has been turned on for the bucket, there is no way to undelete an object. */
-    public void deleteObject(String bucketName, String key) {
+    public void deleteObject(final String bucketName, String key) {
         if (key.startsWith("/"))
             key = key.substring(1);
-        s3.deleteObject(bucketName, key);
+        final String finalKey = key;
+        Model.retries.execute("Deletion of " + key, new Callable<Void>() {
+            @Override
+            public Void call() {
+                s3.deleteObject(bucketName, finalKey);
+                return null;
+            }
+        });
+        Model.metrics.deleted(1);
     }
 
     /** Delete a bucket - The bucket will automatically be emptied if necessary so it can be deleted. */
-    public void deleteBucket(String bucketName) throws AmazonClientException {
+    public void deleteBucket(final String bucketName) throws AmazonClientException {
         emptyBucket(bucketName);
-        s3.deleteBucket(bucketName);
+        Model.retries.execute("Deletion of bucket " + bucketName, new Callable<Void>() {
+            @Override
+            public Void call() {
+                s3.deleteBucket(bucketName);
+                return null;
+            }
+        });
     }
 
-    public void emptyBucket(String bucketName) throws AmazonClientException {
-        LinkedList<S3ObjectSummary> items = getAllObjectData(bucketName, null);
-        for (S3ObjectSummary item : items)
-            s3.deleteObject(bucketName, item.getKey());
+    /** Deletes every object in a bucket using multi-object delete requests; keys that could not be deleted are logged.
+     * @return number of objects deleted
+     * @throws AmazonClientException if any object could not be deleted */
+    public long emptyBucket(String bucketName) throws AmazonClientException {
+        BatchDelete batchDelete = new BatchDelete(s3, bucketName).deletePrefix(null).await();
+        List<BatchDelete.Failure> failures = batchDelete.failures();
+        if (!failures.isEmpty())
+            throw new AmazonClientException(failures.size() + " objects could not be deleted from " + bucketName +
+                    ", including " + failures.get(0));
+        return batchDelete.deleted();
     }
 
     /** Displays the contents of the specified input stream as text.
@@ -0,0 +1,65 @@
+package com.micronautics.aws;
+
+import com.amazonaws.ClientConfiguration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/** One S3 instance per set of AWS credentials, shared by every command, transfer and tree in the process.
+ *
+ * Each AmazonS3Client owns an HTTP connection pool; connections are kept alive between requests and reused, so
+ * sharing one client per account means the listing, the transfers and the deletions of a run, and the trees of the
+ * daemon, reuse the same connections instead of each repeating the TCP and TLS handshakes with a pool of their own.
+ *
+ * The pool is sized for the most requests that can be in flight at once: every transfer worker, the part workers
+ * shared by multipart uploads and ranged downloads, the listing workers and the delete workers. */
+public class S3Clients {
+    private static final Logger logger = LoggerFactory.getLogger(S3Clients.class);
+    private static final ConcurrentHashMap<String, S3> clients = new ConcurrentHashMap<>();
+
+    private S3Clients() { }
+
+    /** @return the shared client for these credentials, creating it the first time they are seen.
+     * Clients are keyed by access key only, so secret keys are held by the clients alone; when the secret key of an
+     * access key changes (it was rotated) the client holding the old one is replaced and shut down. */
+    public static S3 get(String accessKey, String secretKey) {
+        while (true) {
+            S3 s3 = clients.get(accessKey);
+            if (s3!=null && s3.awsCredentials.getAWSSecretKey().equals(secretKey))
+                return s3;
+
+            S3 created = new S3(accessKey, secretKey, configuration());
+            if (s3==null ? clients.putIfAbsent(accessKey, created)==null : clients.replace(accessKey, s3, created)) {
+                if (s3==null) {
+                    logger.debug("Created S3 client for access key " + accessKey);
+                } else {
+                    logger.debug("Replaced S3 client for access key " + accessKey + " because its secret key changed");
+                    s3.s3.shutdown();
+                }
+                return created;
+            }
+            created.s3.shutdown(); // another thread changed the client first
+        }
+    }
+
+    public static S3 get(Credentials credentials) { return get(credentials.accessKey(), credentials.secretKey()); }
+
+    /** @return client settings derived from the transfer concurrency and the awsmirror.* system properties */
+    public static ClientConfiguration configuration() {
+        ClientConfiguration configuration = new ClientConfiguration();
+        configuration.setMaxConnections(Model.maxConnections);
+        configuration.setConnectionTimeout(Model.connectionTimeout);
+        configuration.setSocketTimeout(Model.socketTimeout);
+        configuration.setMaxErrorRetry(0); // requests are retried by Model.retries
+        // This SDK version has no setConnectionTTL; pooled connections are kept alive until the server closes them
+        return configuration;
+    }
+
+    /** Closes the connections of every client; clients requested afterwards are created anew */
+    public static void shutdown() {
+        for (S3 s3 : clients.values())
+            s3.s3.shutdown();
+        clients.clear();
+    }
+}
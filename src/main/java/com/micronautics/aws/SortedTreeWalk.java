@@ -0,0 +1,91 @@
+package com.micronautics.aws;
+
+import java.io.File;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/** Walks a local directory tree lazily, returning files in the order that S3 lists their keys.
+ *
+ * Each directory is read when the walk reaches it, and its entries are sorted by key; a directory sorts as its name
+ * followed by a slash, because that is how its contents' keys begin. Only the sorted entries of the directories on the
+ * path to the current file are held in memory. Files and directories matching Model.ignoredPatterns are skipped. */
+public class SortedTreeWalk implements Iterator<SortedTreeWalk.LocalFile> {
+    private final Deque<Iterator<LocalFile>> stack = new ArrayDeque<>();
+    private final IgnoreMatcher ignores = Model.ignores();
+    private LocalFile next;
+
+    public static class LocalFile {
+        /** Relative path, with forward slashes; directories end with a slash */
+        public final String key;
+        public final File file;
+
+        public LocalFile(String key, File file) {
+            this.key = key;
+            this.file = file;
+        }
+    }
+
+    private static final Comparator<LocalFile> byKey = new Comparator<LocalFile>() {
+        @Override
+        public int compare(LocalFile a, LocalFile b) { return RemoteCatalog.keyOrder.compare(a.key, b.key); }
+    };
+
+    public SortedTreeWalk(File treeRoot) {
+        push(treeRoot, "");
+        advance();
+    }
+
+    @Override
+    public boolean hasNext() { return next!=null; }
+
+    @Override
+    public LocalFile next() {
+        if (next==null)
+            throw new NoSuchElementException();
+        LocalFile result = next;
+        advance();
+        return result;
+    }
+
+    @Override
+    public void remove() { throw new UnsupportedOperationException(); }
+
+    private void advance() {
+        next = null;
+        while (!stack.isEmpty()) {
+            Iterator<LocalFile> entries = stack.peek();
+            if (!entries.hasNext()) {
+                stack.pop();
+                continue;
+            }
+            LocalFile entry = entries.next();
+            if (entry.key.endsWith("/")) {
+                push(entry.file, entry.key);
+            } else {
+                next = entry;
+                return;
+            }
+        }
+    }
+
+    private void push(File directory, String prefix) {
+        String[] names = directory.list();
+        if (names==null)
+            return;
+        List<LocalFile> entries = new ArrayList<>(names.length);
+        for (String name : names) {
+            if (ignores.matches(name))
+                continue; // before the entry is examined, so ignored directories are not stat'ed or descended into
+            File file = new File(directory, name);
+            entries.add(new LocalFile(prefix + name + (file.isDirectory() ? "/" : ""), file));
+        }
+        Collections.sort(entries, byKey);
+        stack.push(entries.iterator());
+    }
+}
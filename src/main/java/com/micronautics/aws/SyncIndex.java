@@ -0,0 +1,315 @@
+package com.micronautics.aws;
+
+import com.amazonaws.services.s3.model.PutObjectResult;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import static com.micronautics.aws.S3Model.*;
+
+/** Persistent record of the state of each file at the time it was last known to match its remote copy.
+ *
+ * The index is stored in a file called .s3index next to the .s3 file. For each relative path it holds the local size
+ * and last-modified time, the MD5 digest (if computed), and the ETag and last-modified time of the remote copy.
+ * While the index is current, upload and sync compare each file's size and last-modified time against the index
+ * instead of listing the bucket, and only upload files that differ.
+ * The index is stale, and a full listing is required, if it does not exist, belongs to another bucket, or the last
+ * full listing is older than Model.indexMaxAge.
+ *
+ * The file is read with one bulk FileChannel read rather than memory-mapped, because Windows cannot replace a file
+ * while it is mapped. It is written to a temporary file that is then renamed over the old index. */
+public class SyncIndex {
+    private static final Logger logger = LoggerFactory.getLogger(SyncIndex.class);
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final int MAGIC = 0x53334958; // "S3IX"
+    private static final int VERSION = 1;
+    public static final String fileName = ".s3index";
+
+    private final File file;
+    private final String bucketName;
+    /** Sorted, so the entries below a directory are found without scanning the whole index */
+    private final ConcurrentSkipListMap<String, Entry> entries = new ConcurrentSkipListMap<>();
+    private volatile long listedAt = 0;
+    private volatile boolean dirty = false;
+
+    public static class Entry {
+        public final long size;
+        public final long lastModified;
+        /** Hex MD5 digest of the local file, or null if it has not been computed */
+        public final String md5;
+        public final String eTag;
+        public final long remoteLastModified;
+
+        public Entry(long size, long lastModified, String md5, String eTag, long remoteLastModified) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.md5 = md5;
+            this.eTag = eTag;
+            this.remoteLastModified = remoteLastModified;
+        }
+
+        /** @return true if the file's size and last-modified time are the ones recorded */
+        public boolean matches(File file) {
+            return size==file.length() && lastModified==file.lastModified();
+        }
+    }
+
+    protected SyncIndex(File treeRoot, String bucketName) {
+        this.file = new File(treeRoot, fileName);
+        this.bucketName = bucketName;
+    }
+
+    /** @return the index stored in treeRoot for bucketName; the index is empty and stale if it could not be read */
+    public static SyncIndex load(File treeRoot, String bucketName) {
+        SyncIndex syncIndex = new SyncIndex(treeRoot, bucketName);
+        if (!syncIndex.file.exists())
+            return syncIndex;
+        long start = System.currentTimeMillis();
+        try (FileChannel channel = FileChannel.open(syncIndex.file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocate((int) channel.size());
+            while (buffer.hasRemaining() && channel.read(buffer)>=0) { }
+            buffer.flip();
+            if (buffer.getInt()!=MAGIC || buffer.getInt()!=VERSION) {
+                logger.warn(syncIndex.file + " has an unknown format and will be rebuilt");
+                return syncIndex;
+            }
+            long listedAt = buffer.getLong();
+            if (!bucketName.equals(getString(buffer))) {
+                logger.info(syncIndex.file + " belongs to another bucket and will be rebuilt");
+                return syncIndex;
+            }
+            int count = buffer.getInt();
+            for (int i=0; i<count; i++) {
+                String key = getString(buffer);
+                long size = buffer.getLong();
+                long lastModified = buffer.getLong();
+                String md5 = getString(buffer);
+                String eTag = getString(buffer);
+                long remoteLastModified = buffer.getLong();
+                syncIndex.entries.put(key, new Entry(size, lastModified, md5, eTag, remoteLastModified));
+            }
+            syncIndex.listedAt = listedAt;
+            logger.debug("Loaded " + count + " entries from " + syncIndex.file + " in " + (System.currentTimeMillis() - start) + " ms");
+        } catch (Exception e) {
+            logger.warn("Unable to read " + syncIndex.file + " (" + e.getMessage() + "); it will be rebuilt");
+            syncIndex.entries.clear();
+        }
+        return syncIndex;
+    }
+
+    /** @return true if the bucket must be listed because the index cannot be trusted */
+    public boolean isStale() {
+        return listedAt==0 || System.currentTimeMillis() - listedAt > Model.indexMaxAge;
+    }
+
+    /** Record that the entire bucket was just listed. Entries for objects that no longer exist remotely are discarded. */
+    public void listed(RemoteCatalog catalog) {
+        for (String key : entries.keySet())
+            if (!catalog.contains(key))
+                entries.remove(key);
+        listedAt = System.currentTimeMillis();
+        dirty = true;
+    }
+
+    public Entry get(String key) { return entries.get(RemoteCatalog.normalize(key)); }
+
+    /** Compares the local file against the index instead of the remote copy.
+     * @return s3FileSameAgeAsLocal if the file's size and last-modified time match the index,
+     *         s3FileDoesNotExist if the file is not in the index, s3FileIsOlderThanLocal if it changed,
+     *         or s3FileDoesNotExistLocally */
+    public int compareAge(File file, String key) {
+        if (!file.exists())
+            return s3FileDoesNotExistLocally;
+        Entry entry = get(key);
+        if (entry==null)
+            return s3FileDoesNotExist;
+        return entry.matches(file) ? s3FileSameAgeAsLocal : s3FileIsOlderThanLocal;
+    }
+
+    /** Compares the local file with the current version of its remote copy, using the index as their common ancestor.
+     * If the remote ETag is the one recorded, the remote copy has not changed since the file was last in sync, so the
+     * file is the same age if its size and last-modified time are the ones recorded, and newer otherwise. This does
+     * not depend on the remote last-modified time, which S3 sets to the time of the upload. Files that are not in the
+     * index, or whose remote copy changed, are compared by timestamp.
+     * @return one of the codes returned by RemoteCatalog.compareAge() */
+    public int compareAge(File file, String key, String remoteETag, long remoteLastModified) {
+        if (!file.exists())
+            return s3FileDoesNotExistLocally;
+        Entry entry = get(key);
+        if (entry!=null && entry.eTag!=null && remoteETag!=null && entry.eTag.replace("\"", "").equals(remoteETag.replace("\"", "")))
+            return entry.matches(file) ? s3FileSameAgeAsLocal : s3FileIsOlderThanLocal;
+        return RemoteCatalog.compareAge(file, remoteLastModified);
+    }
+
+    /** Record that the local file matches a remote object with the given ETag and last-modified time */
+    public void put(String key, File file, String eTag, long remoteLastModified) {
+        put(key, file, null, eTag, remoteLastModified);
+    }
+
+    /** @param md5 digest of the file, or null to keep the digest already recorded if the file has not changed */
+    public void put(String key, File file, String md5, String eTag, long remoteLastModified) {
+        String normalizedKey = RemoteCatalog.normalize(key);
+        if (md5==null) {
+            Entry old = entries.get(normalizedKey);
+            md5 = old!=null && old.matches(file) ? old.md5 : null;
+        }
+        entries.put(normalizedKey, new Entry(file.length(), file.lastModified(), md5, eTag, remoteLastModified));
+        dirty = true;
+    }
+
+    /** Record the digest of a file, if the file is in the index and has not changed since it was recorded */
+    public void setMd5(String key, File file, String md5) {
+        String normalizedKey = RemoteCatalog.normalize(key);
+        Entry entry = entries.get(normalizedKey);
+        if (entry!=null && entry.matches(file) && !md5.equals(entry.md5)) {
+            entries.put(normalizedKey, new Entry(entry.size, entry.lastModified, md5, entry.eTag, entry.remoteLastModified));
+            dirty = true;
+        }
+    }
+
+    /** Record the current size and last-modified time of a file whose content was found to be unchanged */
+    public void refresh(String key, File file) {
+        String normalizedKey = RemoteCatalog.normalize(key);
+        Entry entry = entries.get(normalizedKey);
+        if (entry!=null && !entry.matches(file)) {
+            entries.put(normalizedKey, new Entry(file.length(), file.lastModified(), entry.md5, entry.eTag, entry.remoteLastModified));
+            dirty = true;
+        }
+    }
+
+    /** Record a completed upload. S3 does not return the last-modified time that it assigned to the object, so the
+     * time the upload completed is recorded instead. The ETag of an object that was not uploaded in parts is the MD5
+     * digest of the file. Failed uploads (results without an ETag) are ignored. */
+    public void uploaded(String key, File file, PutObjectResult result) {
+        if (result==null || result.getETag()==null)
+            return;
+        String md5 = Compression.applies(key) ? null : HashCache.digestOf(result.getETag()); // the ETag of compressed content is not the file's digest
+        put(key, file, md5, result.getETag(), System.currentTimeMillis());
+    }
+
+    public void remove(String key) {
+        if (entries.remove(RemoteCatalog.normalize(key))!=null)
+            dirty = true;
+    }
+
+    /** @return keys of the entries that start with prefix */
+    public List<String> keysUnder(String prefix) {
+        String normalizedPrefix = RemoteCatalog.normalize(prefix);
+        List<String> result = new ArrayList<>();
+        for (String key : entries.tailMap(normalizedPrefix).keySet()) {
+            if (!key.startsWith(normalizedPrefix))
+                break;
+            result.add(key);
+        }
+        return result;
+    }
+
+    /** @return keys of the entries directly within directory, which is empty or ends with a slash */
+    public List<String> keysIn(String directory) {
+        return childrenOf(entries.navigableKeySet(), RemoteCatalog.normalize(directory));
+    }
+
+    /** @return the keys of sortedKeys that start with prefix and contain no slash after it. Each run of keys below a
+     * subdirectory is skipped with one lookup, so the cost depends on the number of children, not of descendants. */
+    static List<String> childrenOf(NavigableSet<String> sortedKeys, String prefix) {
+        List<String> result = new ArrayList<>();
+        String key = sortedKeys.higher(prefix);
+        while (key!=null && key.startsWith(prefix)) {
+            int slash = key.indexOf('/', prefix.length());
+            if (slash<0) {
+                result.add(key);
+                key = sortedKeys.higher(key);
+            } else
+                key = sortedKeys.ceiling(key.substring(0, slash) + (char) ('/' + 1)); // past the subdirectory
+        }
+        return result;
+    }
+
+    /** Forget every entry whose key starts with prefix */
+    public void removePrefix(String prefix) {
+        for (String key : keysUnder(prefix))
+            if (entries.remove(key)!=null)
+                dirty = true;
+    }
+
+    public int size() { return entries.size(); }
+
+    public void saveIfDirty() {
+        if (dirty)
+            save();
+    }
+
+    public synchronized void save() {
+        dirty = false;
+        Path tmpPath = new File(file.getParentFile(), fileName + ".tmp").toPath();
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpPath.toFile()), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(listedAt);
+            putString(out, bucketName);
+            Map<String, Entry> snapshot = new java.util.HashMap<>(entries);
+            out.writeInt(snapshot.size());
+            for (Map.Entry<String, Entry> mapEntry : snapshot.entrySet()) {
+                Entry entry = mapEntry.getValue();
+                putString(out, mapEntry.getKey());
+                out.writeLong(entry.size);
+                out.writeLong(entry.lastModified);
+                putString(out, entry.md5);
+                putString(out, entry.eTag);
+                out.writeLong(entry.remoteLastModified);
+            }
+        } catch (IOException e) {
+            dirty = true;
+            logger.warn("Unable to write " + tmpPath + ": " + e.getMessage());
+            return;
+        }
+        try {
+            try {
+                Files.move(tmpPath, file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmpPath, file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e) {
+            dirty = true;
+            logger.warn("Unable to replace " + file + ": " + e.getMessage());
+        }
+    }
+
+    /** Strings are stored as a length followed by UTF-8 bytes; a length of -1 denotes null */
+    private static void putString(DataOutputStream out, String string) throws IOException {
+        if (string==null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = string.getBytes(UTF8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String getString(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length<0)
+            return null;
+        String result = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, UTF8);
+        buffer.position(buffer.position() + length);
+        return result;
+    }
+}
@@ -0,0 +1,135 @@
+package com.micronautics.aws;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** Runs file transfers on a fixed number of threads, with a bounded number of transfers waiting to start.
+ *
+ * Submitting a transfer blocks while <code>workers + queueSize</code> transfers are already running or waiting, so a
+ * directory walk or a bucket listing that produces transfers faster than they complete is slowed down to the speed
+ * of the transfers, instead of accumulating an unbounded backlog of pending work in memory.
+ *
+ * Transfers are submitted through a Batch, which tracks the completion of its own transfers; uploads and downloads
+ * that share the scheduler can therefore each wait for just their own work to finish. */
+public class TransferScheduler {
+    private static final Logger logger = LoggerFactory.getLogger(TransferScheduler.class);
+    private final ThreadPoolExecutor executor;
+    private final Semaphore permits;
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    /** @param workers maximum number of concurrent transfers
+     *  @param queueSize maximum number of transfers waiting for a worker */
+    public TransferScheduler(final String name, int workers, int queueSize) {
+        workers = Math.max(1, workers);
+        permits = new Semaphore(workers + Math.max(0, queueSize));
+        executor = new ThreadPoolExecutor(workers, workers, 60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    private final AtomicInteger count = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable, name + "-" + count.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    public Batch newBatch() { return new Batch(); }
+
+    /** @return number of transfers that are running or waiting to run */
+    public int inFlight() { return executor.getActiveCount() + executor.getQueue().size(); }
+
+    public long completed() { return completed.get(); }
+
+    public long failed() { return failed.get(); }
+
+    /** A group of transfers whose completion can be awaited together */
+    public class Batch {
+        private int pending = 0;
+        private int failures = 0;
+
+        /** Schedules task, blocking while the scheduler is saturated. Exceptions thrown by task are logged and counted. */
+        public void submit(final Callable<?> task) {
+            permits.acquireUninterruptibly();
+            synchronized (this) {
+                pending++;
+            }
+            try {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        boolean succeeded = false;
+                        try {
+                            task.call();
+                            succeeded = true;
+                        } catch (Exception e) {
+                            logger.warn("Transfer failed: " + e.getMessage());
+                        } finally {
+                            finished(succeeded);
+                        }
+                    }
+                });
+            } catch (RuntimeException e) {
+                finished(false);
+                throw e;
+            }
+        }
+
+        /** Runs task on the calling thread, as part of this batch. Exceptions thrown by task are logged and counted. */
+        public void run(Callable<?> task) {
+            try {
+                task.call();
+                completed.incrementAndGet();
+            } catch (Exception e) {
+                logger.warn("Transfer failed: " + e.getMessage());
+                failed.incrementAndGet();
+                synchronized (this) {
+                    failures++;
+                }
+            }
+        }
+
+        private void finished(boolean succeeded) {
+            permits.release();
+            if (succeeded)
+                completed.incrementAndGet();
+            else
+                failed.incrementAndGet();
+            synchronized (this) {
+                if (!succeeded)
+                    failures++;
+                pending--;
+                notifyAll();
+            }
+        }
+
+        /** Block until every transfer submitted to this batch has finished
+         * @return number of transfers that failed */
+        public synchronized int await() {
+            boolean interrupted = false;
+            while (pending>0)
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            if (interrupted)
+                Thread.currentThread().interrupt();
+            return failures;
+        }
+
+        public synchronized int pending() { return pending; }
+    }
+}
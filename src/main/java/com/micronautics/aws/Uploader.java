@@ -1,154 +1,234 @@
 package com.micronautics.aws;
 
-import akka.dispatch.Await;
-import akka.dispatch.Future;
-import akka.dispatch.Futures;
-import akka.dispatch.MessageDispatcher;
-import akka.util.Duration;
+import com.amazonaws.AmazonClientException;
 import com.amazonaws.services.s3.model.PutObjectResult;
-import org.apache.commons.io.DirectoryWalker;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayList;
-import java.util.Collection;
 import java.util.List;
 import java.util.concurrent.Callable;
-import java.util.regex.Pattern;
 
 import static com.micronautics.aws.Model.*;
 import static com.micronautics.aws.Util.compareS3FileAge;
 import static com.micronautics.aws.Util.dtFmt;
 
-/** Uploads on multiple threads if Model.multithreadingEnabled is true */
-public class Uploader extends DirectoryWalker<File> {
+/** Uploads to Model.bucketName with Model.s3, on the threads of Model.transfers if Model.multithreadingEnabled is true.
+ * The tree is walked by a ParallelTreeWalk, on Model.walkWorkers threads if multithreading is enabled. Entries whose
+ * names match Model.ignoredPatterns are skipped before they are examined, so ignored directories are never descended
+ * into. */
+public class Uploader {
     private Logger logger = LoggerFactory.getLogger(getClass());
     boolean overwrite;
-    int treeRootStrLen;
-    MessageDispatcher dispatcher = Main.system().dispatcher();
-    private final ArrayList<Future<PutObjectResult>> futures = new ArrayList<Future<PutObjectResult>>();
+    private final TransferScheduler.Batch uploads = transfers.newBatch();
 
     public Uploader(boolean overwrite) {
-        super();
         this.overwrite = overwrite;
-        s3 = new S3(credentials.accessKey(), credentials.secretKey());
     }
 
     public List<File> upload(File treeRoot) throws IOException {
+        if (pipelineEnabled)
+            return uploadPipelined(treeRoot);
         if (!Model.s3ObjectDataFetched) {
-            Model.allNodes = s3.getAllObjectData(bucketName, ""); // get every object
-            Model.s3ObjectDataFetched = true;
+            if (syncIndex==null || syncIndex.isStale() || fullListingRequested) {
+                Model.catalog = new RemoteCatalog(s3.getListing(bucketName, "")); // get every object
+                Model.s3ObjectDataFetched = true;
+                if (syncIndex!=null)
+                    syncIndex.listed(Model.catalog);
+            } else
+                logger.info("Comparing against the " + syncIndex.size() + " entries in the sync index instead of listing " + bucketName);
         }
-        treeRootStrLen = treeRoot.getCanonicalPath().length();
         ArrayList<File> results = new ArrayList<>();
-        walk(treeRoot, results);
-        if (multithreadingEnabled) {
-            final Future<Iterable<PutObjectResult>> future = Futures.sequence(futures, dispatcher);
-            try { // block until the Futures all complete
-                Await.result(future, Duration.Inf());
-            } catch (Exception ex) {
-                System.err.println(ex.getMessage());
-            }
-        }
+        if (ignore(treeRoot))
+            logger.debug("Uploader ignoring " + treeRoot.getName());
+        else
+            walk(treeRoot);
+        awaitUploads();
+        if (syncIndex!=null)
+            syncIndex.saveIfDirty();
         return results;
     }
 
-    protected boolean ignore(File file) {
-        for (Pattern pattern : Model.ignoredPatterns) {
-            //System.out.println("pattern=" + pattern.toString() + "; file name=" + file.getName());
-            if (pattern.matcher(file.getName()).matches()) {
-                logger.debug("Uploader ignoring " + file.getName());
-                return true;
+    /** Uploads while the bucket is still being listed.
+     * The listing is streamed in key order and merge-joined against a walk of the local tree in the same order, so
+     * the decision for each file is made as soon as the listing has passed its key. Transfers start after the first
+     * page of the listing arrives, and neither the listing nor the tree is held in memory.
+     * The catalog is not populated in this mode. */
+    protected List<File> uploadPipelined(File treeRoot) {
+        ArrayList<File> results = new ArrayList<>();
+        ListingStream remote = new ListingStream(s3.listingClient(), bucketName, null);
+        try {
+            CompactListing.Entry remoteEntry = remote.hasNext() ? remote.next() : null;
+            SortedTreeWalk local = new SortedTreeWalk(treeRoot);
+            while (local.hasNext()) {
+                SortedTreeWalk.LocalFile localFile = local.next();
+                while (remoteEntry!=null && RemoteCatalog.keyOrder.compare(remoteEntry.key, localFile.key)<0)
+                    remoteEntry = remote.hasNext() ? remote.next() : null; // only exists remotely
+                boolean remoteExists = remoteEntry!=null && remoteEntry.key.equals(localFile.key);
+                int comparedAges = !remoteExists ? s3FileDoesNotExist : syncIndex!=null ?
+                        syncIndex.compareAge(localFile.file, localFile.key, remoteEntry.eTag, remoteEntry.lastModified) :
+                        RemoteCatalog.compareAge(localFile.file, remoteEntry.lastModified);
+                if (remoteExists && hashCache!=null)
+                    comparedAges = hashCache.refine(localFile.key, localFile.file, remoteEntry.eTag, comparedAges);
+                if (comparedAges==s3FileSameAgeAsLocal)
+                    recordInSync(localFile.key, localFile.file, remoteEntry);
+                uploadIfNecessary(localFile.file, localFile.key, comparedAges);
             }
+        } finally {
+            remote.close();
         }
-        return false;
+        awaitUploads();
+        if (syncIndex!=null)
+            syncIndex.saveIfDirty();
+        return results;
     }
 
-    @Override protected boolean handleDirectory(File directory, int depth, Collection results) {
-        boolean ignore = ignore(directory);
-        if (ignore)
-            logger.debug("Uploader ignoring " + directory.getName());
-        return !ignore;
+    /** Remember that the local file matches its remote copy, so later runs need not list the bucket to find out */
+    protected void recordInSync(String path, File file, CompactListing.Entry remoteEntry) {
+        if (syncIndex!=null && remoteEntry!=null)
+            syncIndex.put(path, file, remoteEntry.eTag, remoteEntry.lastModified);
     }
 
-    @Override protected void handleFile(File file, int depth, Collection results) {
-        try {
-            String path = canonicalPath(file);
-            int comparedAges = Main.compareS3FileAge(file, path);
-            //System.out.println("overwrite=" + overwrite + "; s3Older=" + s3Older + "; " + file.getAbsolutePath());
-            if (ignore(file)) {
-                logger.debug("Uploader ignoring " + path);
-                return;
-            }
-            if (!overwrite)
-              switch (comparedAges) {
-                  case s3FileDoesNotExist:
-                      logger.info("Uploading " + path + " to " + bucketName + " because it does not exist remotely.");
-                      break;
-
-                  case s3FileIsOlderThanLocal:
-                      logger.info("Uploading '" + path + "' (" + dtFmt(file.lastModified()) + ") to '" + bucketName + "' because the remote copy is older.");
-                      break;
-
-                  case s3FileSameAgeAsLocal:
-                      if (!overwrite) {
-                          logger.debug("Uploader skipping " + path + " because it is the same age as the local copy and overwrite is disabled.");
-                          return;
-                      }
-                      logger.debug("Uploading " + path + " even though it is the same age as the local copy because overwrite is enabled.");
-                      break;
-
-                  case s3FileNewerThanLocal:
-                      logger.debug("Uploader skipping " + path + " because the local copy is older.");
-                      return;
-
-                  case s3FileDoesNotExistLocally:
-                      logger.debug("Uploader cannot upload " + path + " because the local copy does not exist.");
-                      return;
+    /** Block until all uploads started on other threads have completed */
+    protected void awaitUploads() {
+        int failures = uploads.await();
+        if (failures>0)
+            System.err.println(failures + " uploads failed; use the retry command to try them again");
+        if (deadLetters!=null)
+            deadLetters.saveIfDirty();
+    }
+
+    protected boolean ignore(File file) {
+        return Model.ignores().matches(file.getName());
+    }
+
+    /** Compares every file of the tree with its remote copy, and uploads the ones that need it.
+     * Keys are relative to treeRoot. */
+    protected void walk(File treeRoot) {
+        int workers = multithreadingEnabled ? walkWorkers : 1;
+        long files = new ParallelTreeWalk(Model.ignores(), workers).walk(treeRoot.toPath(), new ParallelTreeWalk.Visitor() {
+            @Override
+            public boolean preVisitDirectory(String key, Path directory) { return true; }
+
+            @Override
+            public void visitFile(String key, Path path, BasicFileAttributes attributes) {
+                File file = path.toFile();
+                uploadIfNecessary(file, key, Main.compareS3FileAge(file, key));
             }
-            if (multithreadingEnabled) {
-                final Future<PutObjectResult> future = Futures.future(new UploadOne(path, file), dispatcher);
-                futures.add(future);
-            } else
-                new UploadOne(path, file).call();
-        } catch (IOException e) {
-            System.err.println(e.getMessage());
-        }
+        });
+        logger.debug("Uploader examined " + files + " files");
     }
 
-    private String canonicalPath(File file) throws IOException {
-        String path = file.getCanonicalPath().substring(treeRootStrLen).replace('\\', '/');
-        if (path.startsWith("/") || path.startsWith("\\"))
-            return path.substring(1);
+    protected void uploadIfNecessary(File file, String path, int comparedAges) {
+        if (!overwrite)
+            switch (comparedAges) {
+                case s3FileDoesNotExist:
+                    logger.info("Uploading " + path + " to " + bucketName + " because it does not exist remotely.");
+                    break;
+
+                case s3FileIsOlderThanLocal:
+                    logger.info("Uploading '" + path + "' (" + dtFmt(file.lastModified()) + ") to '" + bucketName + "' because the remote copy is older.");
+                    break;
+
+                case s3FileSameAgeAsLocal:
+                    if (Model.s3ObjectDataFetched)
+                        recordInSync(path, file, Model.catalog.get(path));
+                    else if (syncIndex!=null)
+                        syncIndex.refresh(path, file); // the timestamp may have changed even though the content did not
+                    if (!overwrite) {
+                        logger.debug("Uploader skipping " + path + " because it is the same age as the local copy and overwrite is disabled.");
+                        return;
+                    }
+                    logger.debug("Uploading " + path + " even though it is the same age as the local copy because overwrite is enabled.");
+                    break;
+
+                case s3FileNewerThanLocal:
+                    logger.debug("Uploader skipping " + path + " because the local copy is older.");
+                    return;
+
+                case s3FileDoesNotExistLocally:
+                    logger.debug("Uploader cannot upload " + path + " because the local copy does not exist.");
+                    return;
+            }
+        if (multithreadingEnabled)
+            uploads.submit(new UploadOne(path, file)); // blocks the walk while the scheduler is saturated
         else
-            return path;
+            uploads.run(new UploadOne(path, file));
     }
 }
 
 class UploadOne implements Callable<PutObjectResult> {
     private Logger logger = LoggerFactory.getLogger(getClass());
-    private String bucketName;
+    private MirrorRoot root;
     private String key;
     private File file;
 
     /** @param key backslashes are converted to forward slashes */
     public UploadOne(String key, File file) {
-        this.bucketName = Model.bucketName;
+        this(MirrorRoot.model, key, file);
+    }
+
+    /** @param key backslashes are converted to forward slashes */
+    public UploadOne(MirrorRoot root, String key, File file) {
+        this.root = root;
         this.key = key.replace("\\", "/");
         this.file = file;
     }
 
+    /** Failures are recorded in the root's DeadLetters
+     * @throws AmazonClientException if the file could not be uploaded */
+    @Override
+    public PutObjectResult call() {
+        PutObjectResult result;
+        try {
+            result = root.getS3().uploadFile(root.getBucketName(), key, file, root.getJournalDirectory());
+        } catch (AmazonClientException e) {
+            logger.warn("Unable to upload " + key + ": " + e.getMessage());
+            if (root.getDeadLetters()!=null)
+                root.getDeadLetters().failed(DeadLetters.upload, key, e);
+            throw e;
+        }
+        root.getCatalog().uploaded(key, file, result);
+        if (root.getSyncIndex()!=null)
+            root.getSyncIndex().uploaded(key, file, result);
+        if (root.getDeadLetters()!=null)
+            root.getDeadLetters().succeeded(DeadLetters.upload, key);
+        logger.info(key + " uploaded.");
+        return result;
+    }
+}
+
+/** Copies a renamed file on S3 from its old key, and uploads it if it cannot be copied */
+class CopyOne implements Callable<PutObjectResult> {
+    private Logger logger = LoggerFactory.getLogger(getClass());
+    private MirrorRoot root;
+    private RenameDetector.Rename rename;
+
+    public CopyOne(MirrorRoot root, RenameDetector.Rename rename) {
+        this.root = root;
+        this.rename = rename;
+    }
+
+    /** @throws AmazonClientException if the file could be neither copied nor uploaded */
     @Override
     public PutObjectResult call() {
+        PutObjectResult result;
         try {
-            PutObjectResult result = s3.uploadFile(bucketName, key, file);
-            logger.info(key + " uploaded.");
-            return result;
-        } catch (Exception e) {
-            logger.warn(key + ": " + e.getMessage());
+            result = root.getS3().copyFile(root.getBucketName(), rename.from, rename.to, rename.file);
+        } catch (AmazonClientException e) {
+            logger.info("Unable to copy " + rename + " (" + e.getMessage() + "); uploading it instead");
+            return new UploadOne(root, rename.to, rename.file).call();
         }
-        return new PutObjectResult();
+        root.getCatalog().uploaded(rename.to, rename.file, result);
+        if (root.getSyncIndex()!=null)
+            root.getSyncIndex().uploaded(rename.to, rename.file, result);
+        if (root.getDeadLetters()!=null)
+            root.getDeadLetters().succeeded(DeadLetters.upload, rename.to);
+        logger.info(rename.to + " copied from " + rename.from + ".");
+        return result;
     }
 }
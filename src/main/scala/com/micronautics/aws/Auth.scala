@@ -180,7 +180,7 @@ class Auth(args: Array[String]) {
   }
 
   def listBuckets(accessKey: String, secretKey: String, accountName: String): String = {
-    val s3 = new S3(accessKey, secretKey)
+    val s3 = S3Clients.get(accessKey, secretKey)
     Util.s3Option = Some(s3)
     val buckets = s3.listBuckets()
     if (buckets.length == 0) {
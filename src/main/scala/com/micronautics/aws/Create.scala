@@ -51,7 +51,7 @@ class Create(args: Array[String]) {
 
       case Some(file) =>
         val s3File: S3File = parseS3File(file)
-        s3fileTos3Option(s3File) match {
+        getAuthentication(s3File.accountName).map(S3Clients.get(_)) match {
           case None =>
             if (dieOnFailure) {
               println("No authentication credentials stored in .aws")
@@ -89,7 +89,7 @@ class Create(args: Array[String]) {
             }
 
           case Some(credentials) =>
-            val s3 = new S3(credentials.accessKey, credentials.secretKey)
+            val s3 = S3Clients.get(credentials)
             try {
               doit(s3, accountName, bucketName)
               writeS3(S3File(accountName, bucketName, None))
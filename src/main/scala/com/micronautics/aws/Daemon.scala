@@ -0,0 +1,81 @@
+/* Copyright 2012 Micronautics Research Corporation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License. */
+
+package com.micronautics.aws
+
+import Main._
+import Util._
+import java.io.File
+import java.nio.file.Paths
+import scala.collection.JavaConversions._
+import scala.collection.mutable
+
+/** Mirrors several linked directory trees from one process until Control-C.
+  * Each directory must contain a .s3 file; trees are uploaded to their own buckets with their own ignore rules,
+  * while sharing one directory watcher, one transfer scheduler and one S3 client per AWS account. */
+class Daemon(args: Array[String]) {
+  if (!credentialPath.exists) {
+    println(".aws file not found in %s\nUse 'auth add' subcommand to create".format(credentialPath.path))
+    sys.exit(-1)
+  }
+
+  private val buckets = mutable.Map.empty[String, Set[String]]
+
+  if (args.isEmpty) {
+    println("Error: The daemon subcommand requires the directories to mirror, each of which must contain a .s3 file")
+    help
+  } else {
+    val roots = args.toList.flatMap(dir => mirrorRoot(new File(dir)))
+    if (roots.isEmpty)
+      sys.exit(-1)
+    val watcher = new DirectoryWatcher
+    // watch every tree before listing any bucket, so changes made while the listings run are not missed
+    roots foreach { root => watcher.addRoot(root, Paths.get(root.getTreeRoot.getAbsolutePath)) }
+    roots foreach { root =>
+      if (Model.fullListingRequested || root.getSyncIndex.isStale)
+        root.list()
+      else
+        println("Comparing %s against its sync index instead of listing %s; use -f to list the bucket.".
+          format(root.getTreeRoot, root.getBucketName))
+      watcher.rescan(root) // upload the changes made while the tree was not watched
+      println("Monitoring %s for changes to upload to %s".format(root.getTreeRoot.getCanonicalPath, root.getBucketName))
+    }
+    println("Control-C to stop")
+    watcher.watch()
+  }
+
+  private def mirrorRoot(dir: File): Option[MirrorRoot] = {
+    val s3File = new File(dir, ".s3")
+    if (!s3File.exists) {
+      println("Error: %s is not linked with an AWS S3 bucket; skipping it.".format(dir.getCanonicalPath))
+      return None
+    }
+    val s3FileObject = parseS3File(s3File)
+    getAuthentication(s3FileObject.accountName) match {
+      case None =>
+        println("Error: AWS credentials not found for AWS account '%s'; skipping %s".format(s3FileObject.accountName, dir.getCanonicalPath))
+        None
+
+      case Some(credentials) =>
+        val s3 = S3Clients.get(credentials)
+        val accountBuckets = buckets.getOrElseUpdate(s3FileObject.accountName, s3.listBuckets().toSet)
+        if (!accountBuckets.contains(s3FileObject.bucketName)) {
+          println("Error: AWS account %s does not define bucket %s; skipping %s".
+            format(s3FileObject.accountName, s3FileObject.bucketName, dir.getCanonicalPath))
+          None
+        } else
+          Some(new MirrorRoot(dir, s3FileObject.bucketName, s3, s3FileObject.ignoredPatterns))
+    }
+  }
+}
@@ -35,7 +35,7 @@ class Delete(args: Array[String]) {
           sys.exit(0)
 
         case Some(s3File) =>
-          s3Option(s3File.accountName) match {
+          getAuthentication(s3File.accountName).map(S3Clients.get(_)) match {
             case None =>
               println("AWS credentials did not match for AWS account '%s' and bucket '%s'".format(s3File.accountName, s3File.bucketName))
 
@@ -60,7 +60,7 @@ class Delete(args: Array[String]) {
           println("AWS credentials not found for AWS account '%s'".format(accountName))
 
         case Some(credentials) =>
-          val s3 = new S3(credentials.accessKey, credentials.secretKey)
+          val s3 = S3Clients.get(credentials)
           try {
             s3.deleteBucket(bucketName)
             print("AWS bucket '%s' deleted from account '%s'.".format(bucketName, accountName))
@@ -40,7 +40,7 @@ class Download(args: Array[String]) {
               sys.exit(-1)
 
             case Some(credentials) =>
-              val s3 = new S3(credentials.accessKey, credentials.secretKey)
+              val s3 = S3Clients.get(credentials)
               if (!s3.listBuckets().contains(s3File.bucketName)) {
                 println("Error: AWS account %s does not define bucket %s".format(s3File.accountName, s3File.bucketName))
                 sys.exit(-1)
@@ -48,6 +48,8 @@ class Download(args: Array[String]) {
               S3Model.credentials = credentials
               Model.bucketName = s3File.bucketName
               S3Model.s3 = s3
+              Model.syncIndex = SyncIndex.load(file.getParentFile, s3File.bucketName)
+              Model.deadLetters = DeadLetters.load(file.getParentFile)
               new Downloader(true).download(file.getParentFile)
           }
       }
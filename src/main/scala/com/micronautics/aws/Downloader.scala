@@ -18,101 +18,137 @@ import Downloader._
 import Model._
 import S3Model._
 import Util._
-import akka.dispatch.{ ExecutionContext, Future }
 import com.amazonaws.services.s3.model.S3ObjectSummary
 import java.io.{ IOException, File }
 import java.util.ArrayList
-import org.apache.commons.io.FileUtils
+import java.util.concurrent.Callable
 import org.slf4j.{ LoggerFactory, Logger }
 import scala.collection.JavaConversions._
-import scala.collection.mutable
 import java.nio.file.attribute.{BasicFileAttributeView, FileTime}
 import java.nio.file.Files
 import org.apache.commons.lang.SystemUtils._
 
-/** Downloads on multiple threads if Model.multithreadingEnabled is true */
+/** Downloads on the threads of Model.transfers if Model.multithreadingEnabled is true */
 class Downloader(overwrite: Boolean) {
-  private[aws] val s3 = new S3(credentials.accessKey, credentials.secretKey)
-  private val futures = mutable.ListBuffer.empty[Future[Unit]] // not used at present
-  private implicit val dispatcher: ExecutionContext = Main.system.dispatcher
+  private[aws] val s3 = S3Clients.get(credentials)
+  private val downloads = transfers.newBatch
   private val logger = LoggerFactory.getLogger(getClass)
 
   def download(localDir: File): ArrayList[File] = {
     val results = new ArrayList[File]()
     logger.debug("Downloading to " + localDir)
-    if (!Model.s3ObjectDataFetched) {
-      Model.allNodes = s3.getAllObjectData(bucketName, null) // get every object
-      Model.s3ObjectDataFetched = true
+    if (pipelineEnabled) {
+      // download each object as soon as its page of the listing arrives; neither the catalog nor results are populated
+      val listingStream = new ListingStream(s3.listingClient, bucketName, null)
+      listingStream foreach { entry: CompactListing.Entry => downloadEntry(localDir, entry) }
+    } else {
+      if (!Model.s3ObjectDataFetched) {
+        Model.catalog = new RemoteCatalog(s3.getListing(bucketName, null)) // get every object
+        Model.s3ObjectDataFetched = true
+        if (syncIndex!=null)
+          syncIndex.listed(Model.catalog)
+      }
+      Model.catalog foreach { entry: CompactListing.Entry => results.add(downloadEntry(localDir, entry)) }
     }
-    Model.allNodes foreach { node: S3ObjectSummary =>
-      val outFileName: String = if (node.getKey.startsWith("/") || node.getKey.startsWith("\\"))
-        node.getKey.substring(1) else node.getKey
-      val outFile: File = new File(outFileName)
-      results.add(outFile)
-      try {
-        if (node.getKey.endsWith("/")) {
-          if (!outFile.exists) {
-            logger.debug("Making " + relativeFileName(localDir, outFile))
-            outFile.mkdirs
-          }
-        } else {
-          val file = new File(localDir, outFileName)
-          val overwriteExisting: Boolean = !(file.exists()) || overwrite
-          if (file.getParent!=null && overwriteExisting)
-            file.getParentFile.mkdirs
-          if (!outFileName.endsWith("$folder$")) {
-            compareS3FileAge(file, node) match {
-              case r: Int if r==s3FileDoesNotExist =>
-                logger.debug("Remote copy of '%s' does not exist, so it was not downloaded.".format(file.getAbsolutePath))
+    val failures = downloads.await
+    if (failures>0)
+      println("%d downloads failed; use the retry command to try them again".format(failures))
+    if (syncIndex!=null)
+      syncIndex.saveIfDirty()
+    if (deadLetters!=null)
+      deadLetters.saveIfDirty()
+    results
+  }
 
-              case r: Int if r==s3FileIsOlderThanLocal =>
-                logger.debug("Remote copy of '%s' is older (%s) than the\n  local copy at '%s' (%s), so it was not downloaded.".
-                  format(node.getKey, dtFmt(node.getLastModified), file.getAbsolutePath, dtFmt(file.lastModified)))
+  /** @return local File corresponding to entry */
+  private def downloadEntry(localDir: File, entry: CompactListing.Entry): File = {
+    lazy val node = entry.toSummary(bucketName) // only materialized for objects that are downloaded
+    val outFileName: String = if (entry.key.startsWith("/") || entry.key.startsWith("\\"))
+      entry.key.substring(1) else entry.key
+    val outFile: File = new File(outFileName)
+    try {
+      if (entry.key.endsWith("/")) {
+        if (!outFile.exists) {
+          logger.debug("Making " + relativeFileName(localDir, outFile))
+          outFile.mkdirs
+        }
+      } else {
+        val file = new File(localDir, outFileName)
+        val overwriteExisting: Boolean = !(file.exists()) || overwrite
+        if (file.getParent!=null && overwriteExisting)
+          file.getParentFile.mkdirs
+        if (!outFileName.endsWith("$folder$")) {
+          val comparedAges = if (syncIndex!=null) syncIndex.compareAge(file, entry.key, entry.eTag, entry.lastModified)
+            else RemoteCatalog.compareAge(file, entry.lastModified)
+          // only files whose timestamps differ are hashed
+          val refinedAges = if (hashCache!=null) hashCache.refine(entry.key, file, entry.eTag, comparedAges) else comparedAges
+          if (refinedAges!=comparedAges) {
+            logger.debug("Not downloading '%s' because the local copy has the same content.".format(entry.key))
+            if (syncIndex!=null)
+              syncIndex.put(entry.key, file, entry.eTag, entry.lastModified)
+          } else comparedAges match {
+            case r: Int if r==s3FileDoesNotExist =>
+              logger.debug("Remote copy of '%s' does not exist, so it was not downloaded.".format(file.getAbsolutePath))
 
-              case r: Int if r==s3FileSameAgeAsLocal =>
-                if (overwriteExisting) {
-                  logger.debug("Downloading because the remote copy of %s is the same age as the local copy and overwrite is enabled.".format(file.getAbsolutePath))
-                  if (multithreadingEnabled)
-                    futures += Future(downloadOne(localDir, node, file))
-                  else
-                    downloadOne(localDir, node, file)
-                } else
-                  logger.debug("Remote copy of %s is the same age as the local copy and overwrite is disabled, so it was not downloaded.".format(file.getAbsolutePath))
+            case r: Int if r==s3FileIsOlderThanLocal =>
+              logger.debug("Remote copy of '%s' is older (%s) than the\n  local copy at '%s' (%s), so it was not downloaded.".
+                format(entry.key, dtFmt(entry.lastModified), file.getAbsolutePath, dtFmt(file.lastModified)))
 
-              case r: Int if r==s3FileNewerThanLocal =>
-                logger.debug("Downloading '%s' (%s) to '%s' (%s) because the remote copy is newer.".
-                  format(node.getKey, dtFmt(node.getLastModified), fileNamePrefix(localDir, file), dtFmt(file.lastModified)))
-                if (multithreadingEnabled)
-                  futures += Future(downloadOne(localDir, node, file))
-                else
-                  downloadOne(localDir, node, file)
+            case r: Int if r==s3FileSameAgeAsLocal =>
+              if (overwriteExisting) {
+                logger.debug("Downloading because the remote copy of %s is the same age as the local copy and overwrite is enabled.".format(file.getAbsolutePath))
+                transfer(downloadOne(localDir, node, file))
+              } else {
+                logger.debug("Remote copy of %s is the same age as the local copy and overwrite is disabled, so it was not downloaded.".format(file.getAbsolutePath))
+                if (syncIndex!=null)
+                  syncIndex.put(entry.key, file, entry.eTag, entry.lastModified)
+              }
 
-              case r: Int if r==s3FileDoesNotExistLocally =>
-                logger.debug("Downloading '%s' because '%s' does not exist locally.".format(node.getKey, file.getAbsolutePath))
-                if (multithreadingEnabled)
-                  futures += Future(downloadOne(localDir, node, file))
-                else
-                  downloadOne(localDir, node, file)
-            }
+            case r: Int if r==s3FileNewerThanLocal =>
+              logger.debug("Downloading '%s' (%s) to '%s' (%s) because the remote copy is newer.".
+                format(entry.key, dtFmt(entry.lastModified), fileNamePrefix(localDir, file), dtFmt(file.lastModified)))
+              transfer(downloadOne(localDir, node, file))
+
+            case r: Int if r==s3FileDoesNotExistLocally =>
+              logger.debug("Downloading '%s' because '%s' does not exist locally.".format(entry.key, file.getAbsolutePath))
+              transfer(downloadOne(localDir, node, file))
           }
         }
-      } catch {
-        case ioe: IOException =>
-          println(ioe)
       }
+    } catch {
+      case ioe: IOException =>
+        println(ioe)
     }
-    results
+    outFile
+  }
+
+  /** Runs download on the transfer scheduler if multithreading is enabled, blocking while the scheduler is saturated;
+    * otherwise runs it on this thread. Either way, a failed download is counted. */
+  private def transfer(download: => Unit): Unit = {
+    val task = new Callable[Unit] { def call() = download }
+    if (multithreadingEnabled)
+      downloads.submit(task)
+    else
+      downloads.run(task)
   }
 
+  /** Failures are recorded in Model.deadLetters and rethrown */
   def downloadOne(localDir: File, node: S3ObjectSummary, outFile: File): Unit = {
+    val download = new RangedDownload(s3.s3, bucketName, node.getKey, node.getSize, node.getETag, outFile)
     try {
-      FileUtils.copyInputStreamToFile(s3.downloadFile(bucketName, node.getKey), outFile)
+      download.call()
     } catch {
-      case e =>
-        println(e.getMessage)
-        return
+      case e: Exception =>
+        logger.warn("Unable to download %s: %s".format(node.getKey, e.getMessage))
+        if (deadLetters!=null)
+          deadLetters.failed(DeadLetters.download, node.getKey, e)
+        throw e
     }
     changeFileTime(outFile, node, localDir, logger)
+    if (syncIndex!=null)
+      syncIndex.put(node.getKey, outFile, if (download.wasCompressed) null else HashCache.digestOf(node.getETag), node.getETag, node.getLastModified.getTime)
+    if (deadLetters!=null)
+      deadLetters.succeeded(DeadLetters.download, node.getKey)
   }
 
   def deleteBadKeys: Unit = {
@@ -140,9 +176,6 @@ object Downloader {
     logger.info("Downloaded '%s' (node last modified %s, file last modified %s, file created %s, %d bytes).".
       format(relativeFileName(localDir, file), dtFmt(node.getLastModified), dtFmt(file.lastModified),
       dtFmt(fileAttributeView.readAttributes().creationTime().toMillis), file.length()))
-    if (node.getSize != file.length())
-      logger.error("Error: %s has different length (%d) than remote version (%d).".
-        format(file.getAbsolutePath, node.getSize))
     if (node.getLastModified.getTime != file.lastModified())
       logger.error("Error: %s has last modified date (%s), which differs from remote version (%s).".
         format(file.getAbsolutePath, dtFmt(file.lastModified), dtFmt(node.getLastModified)))
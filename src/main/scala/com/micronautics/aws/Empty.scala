@@ -24,18 +24,75 @@ class Empty(args: Array[String]) {
   }
 
   args.length match {
-    case 0 =>
-    // todo empty bucket specified in .s3 file in this directory or parent; error if no .s3 file
-    // todo error if bucket does not exist
+    case 0 => // empty bucket specified in .s3 file in this directory or parent
+      findS3FileObject match {
+        case None =>
+          println("No .s3 file found in this directory or its parents")
+          sys.exit(0)
 
-    case 1 =>
-    // todo error if bucket does not exist
-    // todo else empty bucket
-    // todo if .s3 file exists in current directory or parent, tell user that they could run sync or upload commands
+        case Some(s3File) =>
+          getAuthentication(s3File.accountName).map(S3Clients.get(_)) match {
+            case None =>
+              println("AWS credentials did not match for AWS account '%s' and bucket '%s'".format(s3File.accountName, s3File.bucketName))
+
+            case Some(s3) =>
+              empty(s3, s3File.accountName, s3File.bucketName)
+          }
+      }
+
+    case 1 => // empty bucketName, using the AWS account of the .s3 file in this directory or parent
+      val bucketName = args(0)
+      findS3FileObject match {
+        case None =>
+          println("No .s3 file found in this directory or its parents, so the AWS account of '%s' is unknown. Use 'empty accountName %s'.".
+            format(bucketName, bucketName))
+
+        case Some(s3File) =>
+          getAuthentication(s3File.accountName).map(S3Clients.get(_)) match {
+            case None =>
+              println("AWS credentials not found for AWS account '%s'".format(s3File.accountName))
+
+            case Some(s3) =>
+              empty(s3, s3File.accountName, bucketName)
+              suggestSync()
+          }
+      }
+
+    case 2 => // empty accountName bucketName
+      val accountName = args(0)
+      val bucketName = args(1)
+      getAuthentication(accountName) match {
+        case None =>
+          println("AWS credentials not found for AWS account '%s'".format(accountName))
+
+        case Some(credentials) =>
+          empty(S3Clients.get(credentials), accountName, bucketName)
+          suggestSync()
+      }
 
     case _ =>
       println("Error: Too many arguments provided for empty")
       help
   }
 
+  private def empty(s3: S3, accountName: String, bucketName: String) {
+    if (!s3.bucketExists(bucketName)) {
+      println("Error: AWS bucket '%s' does not exist in account '%s'".format(bucketName, accountName))
+      sys.exit(-1)
+    }
+    try {
+      val count = s3.emptyBucket(bucketName)
+      println("Deleted %d objects from AWS bucket '%s' in account '%s'.".format(count, bucketName, accountName))
+    } catch {
+      case e =>
+        print("Error emptying '%s' in account '%s'. ".format(bucketName, accountName))
+        println(e.getMessage + ".")
+    }
+  }
+
+  private def suggestSync() {
+    findS3File() foreach { file =>
+      println("%s was found; you could run the sync or upload subcommands to repopulate its bucket.".format(file.getCanonicalPath))
+    }
+  }
 }
@@ -14,17 +14,12 @@
 
 package com.micronautics.aws
 
-import akka.actor.ActorSystem
 import ch.qos.logback.classic.{Level, Logger}
-import com.amazonaws.services.s3.model.S3ObjectSummary
 import java.io.File
 import org.slf4j.LoggerFactory
 import org.slf4j.Logger.ROOT_LOGGER_NAME
-import collection.JavaConversions._
 
 object Main extends App {
-  lazy val system = ActorSystem()
-
   override def main(args: Array[String]) {
     if (args.length==0)
       help
@@ -70,11 +65,32 @@ object Main extends App {
         multithreadingWasSet = true
         process(rest)
 
+      case "-c" :: rest =>
+        Model.hashCache = new HashCache
+        println("Files with different timestamps will be compared by content.")
+        process(rest)
+
+      case "-z" :: rest =>
+        Model.compressUploads = true
+        println("Text assets will be uploaded compressed with gzip.")
+        process(rest)
+
+      case "-f" :: rest =>
+        Model.fullListingRequested = true
+        process(rest)
+
+      case "-p" :: rest =>
+        Model.pipelineEnabled = true
+        println("Pipelined transfers are enabled.")
+        process(rest)
+
       case mandatoryArgs =>
         if (levelWasSet)
           println("Log level is %s.".format(logger.getLevel))
         if (multithreadingWasSet)
           println("Multithreading is %s.".format(if (Model.multithreadingEnabled) "enabled" else "disabled"))
+        Model.metrics.register()
+        Model.metrics.startReporting(Model.metricsInterval)
         commands(mandatoryArgs)
         true
     }
@@ -88,6 +104,9 @@ object Main extends App {
       case "create" :: rest =>
         new Create(rest.toArray)
 
+      case "daemon" :: rest =>
+        new Daemon(rest.toArray)
+
       case "delete" :: rest =>
         new Delete(rest.toArray)
 
@@ -103,6 +122,9 @@ object Main extends App {
       case "link" :: rest =>
         new Link(rest.toArray)
 
+      case "retry" :: rest =>
+        new Retry(rest.toArray)
+
       case "sync" :: rest =>
         new Sync(rest.toArray)
 
@@ -120,10 +142,14 @@ object Main extends App {
       """AwsMirror v0.1.0-SNAPSHOT
         |Usage: aws <option> <action>
         |  Where <option> is one of:
+        |      -c    content: files whose timestamps differ from the remote copy are compared by MD5 before transferring
+        |      -f    full: list the entire bucket even if the sync index (.s3index) is current
         |      -m    multithreading enabled
         |      -M    multithreading disabled
+        |      -p    pipelined: start transferring while the bucket is still being listed
         |      -v    less verbose output
         |      -V    more verbose output
+        |      -z    gzip: upload text assets (HTML, CSS, JavaScript, JSON, XML, SVG and text) compressed
         |  and <action> is one of:
         |    auth   provide authentication for an additional AWS account
         |      add accountName      you will be prompted to add credentials for AWS accountName
@@ -132,16 +158,20 @@ object Main extends App {
         |      modify accountName   modify authentication for specified AWS account name
         |    create [accountName bucketName]
         |        create specified bucket for accountName, or bucket specified in relevent .s3 file, enables web access and uploads a short index.html file
+        |    daemon directory...
+        |      upload each directory to the bucket specified in its .s3 file, then monitor them all in one process and upload changes
         |    delete [accountName bucketName]
         |        delete specified bucket from AWS account, or bucket specified in relevent .s3 file
         |    download, down
         |      download bucket specified in relevent .s3 file to the entire tree
-        |    empty [bucketName]
-        |      empty specified bucket, or bucket specified in relevent .s3 file
+        |    empty [[accountName] bucketName]
+        |      empty specified bucket, or bucket specified in relevent .s3 file; the AWS account
+        |      defaults to the one in the relevent .s3 file
         |    help    print this message and exit
         |    link [accountName bucketName]
         |      If accountName and bucketName are not specified, display contents of .s3 file in current directory or a parent directory.
         |      Otherwise create or modify .s3 file in current directory by setting accountName and bucketName
+        |    retry   retry the uploads, downloads and deletions that failed, as listed in the .s3failed file
         |    sync    sync directory tree to specified bucket; continues monitoring directory tree and uploads changes
         |    upload, up   upload to bucket specified in relevent .s3 file; continues monitoring directory tree and uploads changes
         |    upload, up (file, directory or entire directory tree)   uploads file or directory and exits
@@ -171,18 +201,5 @@ object Main extends App {
      *           0 if same age as local copy,
      *           1 if remote copy is newer,
      *           2 if local copy does not exist */
-  def compareS3FileAge(file: File, path: String): Int = {
-    Model.allNodes.foreach { (node: S3ObjectSummary) =>
-      val key: String = node.getKey
-      try {
-        if (key.compareTo(path) == 0)
-          return Util.compareS3FileAge(file, node)
-      } catch {
-        case e: Exception =>
-          System.out.println(e.getMessage() + ": " + key)
-          return S3Model.s3FileDoesNotExist
-      }
-    }
-    S3Model.s3FileDoesNotExist
-  }
+  def compareS3FileAge(file: File, path: String): Int = MirrorRoot.model.compareAge(file, path)
 }
@@ -0,0 +1,116 @@
+/* Copyright 2012 Micronautics Research Corporation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License. */
+
+package com.micronautics.aws
+
+import Main._
+import Upload._
+import Util._
+import java.io.File
+import scala.collection.JavaConversions._
+
+/** Retries the uploads, downloads and deletions recorded in the .s3failed file of the linked directory tree */
+class Retry(args: Array[String]) {
+  if (!credentialPath.exists) {
+    println(".aws file not found in %s\nUse 'auth add' subcommand to create".format(credentialPath.path))
+    sys.exit(-1)
+  }
+
+  args.length match {
+    case 0 =>
+      val (credentials, s3fileObject, s3File) = retrieveParams
+      val root = s3File.getParentFile
+      Model.bucketName = s3fileObject.bucketName
+      Model.ignoredPatterns = s3fileObject.ignoredPatterns
+      S3Model.credentials = credentials
+      S3Model.s3 = S3Clients.get(credentials)
+      Model.journalDirectory = new File(root, ".s3journal")
+      Model.deadLetters = DeadLetters.load(root)
+      val deadLetters = Model.deadLetters
+      if (deadLetters.isEmpty) {
+        println("Nothing to retry")
+      } else {
+        println("Retrying %d failed operations".format(deadLetters.size))
+        retryUploads(root, deadLetters)
+        retryDownloads(root, deadLetters)
+        retryDeletes(deadLetters)
+        deadLetters.saveIfDirty()
+        if (deadLetters.isEmpty)
+          println("All failed operations succeeded")
+        else
+          println("%d operations failed again; they are listed in %s".format(deadLetters.size, new File(root, DeadLetters.fileName)))
+      }
+
+    case _ =>
+      println("Error: Too many arguments provided for retry")
+      help
+  }
+
+  /** Uploads each file again; files that no longer exist are forgotten */
+  private def retryUploads(root: File, deadLetters: DeadLetters): Unit =
+    for (failure <- deadLetters.failures(DeadLetters.upload)) {
+      val file = new File(root, failure.key)
+      if (file.isFile) {
+        try {
+          new UploadOne(failure.key, file).call()
+        } catch {
+          case e: Exception => // recorded by UploadOne
+        }
+      } else
+        deadLetters.succeeded(DeadLetters.upload, failure.key)
+    }
+
+  /** Downloads each object again; objects that no longer exist are forgotten */
+  private def retryDownloads(root: File, deadLetters: DeadLetters): Unit = {
+    val downloader = new Downloader(true)
+    for (failure <- deadLetters.failures(DeadLetters.download)) {
+      try {
+        val node = S3Model.s3.getOneObjectData(Model.bucketName, failure.key)
+        if (node==null) {
+          deadLetters.succeeded(DeadLetters.download, failure.key)
+        } else {
+          val outFile = new File(root, failure.key)
+          outFile.getParentFile.mkdirs()
+          downloader.downloadOne(root, node, outFile)
+        }
+      } catch {
+        case e: Exception => // recorded by downloadOne, or the listing failed and the failure stays recorded
+      }
+    }
+  }
+
+  /** Deletes each key again; keys that end with a slash are prefixes, and every object below them is deleted */
+  private def retryDeletes(deadLetters: DeadLetters): Unit = {
+    val failures = deadLetters.failures(DeadLetters.delete)
+    if (failures.isEmpty)
+      return
+    val (prefixes, keys) = failures.map(_.key).partition(_.endsWith("/"))
+    val batchDelete = new BatchDelete(S3Model.s3.s3, Model.bucketName)
+    try {
+      prefixes.foreach(batchDelete.deletePrefix(_))
+      batchDelete.delete(keys).await()
+    } catch {
+      case e: Exception =>
+        println("Unable to delete: " + e.getMessage)
+        return
+    }
+    val failed = batchDelete.failures.map(_.key).toSet
+    for (failure <- batchDelete.failures)
+      deadLetters.failed(DeadLetters.delete, failure.key, new Exception(failure.code + " " + failure.message))
+    for (key <- keys if !failed.contains(key))
+      deadLetters.succeeded(DeadLetters.delete, key)
+    if (failed.isEmpty)
+      prefixes.foreach(deadLetters.succeeded(DeadLetters.delete, _))
+  }
+}
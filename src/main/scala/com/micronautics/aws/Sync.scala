@@ -17,11 +17,11 @@ package com.micronautics.aws
 import Main._
 import Upload._
 import Util._
-import akka.dispatch.Future
+import java.io.File
 import org.slf4j.LoggerFactory
 import scala.collection.JavaConversions._
 
-/** Uploads on (at least) one thread, downloads on multiple threads */
+/** Downloads, then uploads; transfers run on multiple threads if multithreading is enabled */
 class Sync(args: Array[String]) {
   private val logger = LoggerFactory.getLogger(getClass)
   if (!credentialPath.exists) {
@@ -39,9 +39,15 @@ class Sync(args: Array[String]) {
       Model.bucketName = s3fileObject.bucketName
       S3Model.credentials = credentials
       Model.ignoredPatterns = s3fileObject.ignoredPatterns
-      S3Model.s3 = s3fileObject.get
-      new Downloader(false).download(s3File.getParentFile)
-      Future(upload(s3File, false))(Main.system.dispatcher)
+      S3Model.s3 = S3Clients.get(credentials)
+      Model.journalDirectory = new File(s3File.getParentFile, ".s3journal")
+      Model.syncIndex = SyncIndex.load(s3File.getParentFile, s3fileObject.bucketName)
+      Model.deadLetters = DeadLetters.load(s3File.getParentFile)
+      if (Model.fullListingRequested || Model.syncIndex.isStale)
+        new Downloader(false).download(s3File.getParentFile)
+      else
+        println("Not checking %s for remote changes because the sync index is current; use -f to list the bucket.".format(s3fileObject.bucketName))
+      upload(s3File, false)
 
     case _ =>
       println("Error: Too many arguments provided for sync")
@@ -39,7 +39,7 @@ object Upload {
             sys.exit(-1)
 
           case Some(credentials) =>
-            val s3 = new S3(credentials.accessKey, credentials.secretKey)
+            val s3 = S3Clients.get(credentials)
             if (!s3.listBuckets().contains(s3FileObject.bucketName)) {
               println("Error: AWS account %s does not define bucket %s".format(s3FileObject.accountName, s3FileObject.bucketName))
               sys.exit(-1)
@@ -74,7 +74,10 @@ class Upload(args: Array[String]) {
       Model.bucketName = s3fileObject.bucketName
       Model.ignoredPatterns = s3fileObject.ignoredPatterns
       S3Model.credentials = credentials
-      S3Model.s3 = s3fileObject.get
+      S3Model.s3 = S3Clients.get(credentials)
+      Model.journalDirectory = new File(s3File.getParentFile, ".s3journal")
+      Model.syncIndex = SyncIndex.load(s3File.getParentFile, s3fileObject.bucketName)
+      Model.deadLetters = DeadLetters.load(s3File.getParentFile)
       upload(s3File)
 
     case 1 => // does not upload continuously after finishing
@@ -82,7 +85,10 @@ class Upload(args: Array[String]) {
       Model.bucketName = s3fileObject.bucketName
       Model.ignoredPatterns = s3fileObject.ignoredPatterns
       S3Model.credentials = credentials
-      S3Model.s3 = s3fileObject.get
+      S3Model.s3 = S3Clients.get(credentials)
+      Model.journalDirectory = new File(s3File.getParentFile, ".s3journal")
+      Model.syncIndex = SyncIndex.load(s3File.getParentFile, s3fileObject.bucketName) // records the ETags of the uploads
+      Model.deadLetters = DeadLetters.load(s3File.getParentFile)
       val s3DirFile = new File(args(0))
       if (s3DirFile.exists()) {
         if (s3DirFile.isDirectory) {
@@ -90,7 +96,13 @@ class Upload(args: Array[String]) {
         } else {
           val s3DirPath = s3DirFile.toPath
           val key = if (s3DirPath.isAbsolute) s3File.toPath.relativize(s3DirFile.toPath).toString else s3DirPath.toString
-          new UploadOne(key, s3DirFile).call()
+          try {
+            new UploadOne(key, s3DirFile).call()
+          } catch {
+            case e: Exception =>
+              println("Unable to upload %s: %s".format(key, e.getMessage))
+          }
+          Model.syncIndex.saveIfDirty()
           println()
         }
       } else {
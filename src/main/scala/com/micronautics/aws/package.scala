@@ -43,6 +43,9 @@ object AWS {
   // todo provide user-friendly means to edit the .s3 file regexes
   /** Regexes; these get saved to .s3 files */
   val defaultIgnores = Seq(".*~", ".*.aws", ".*.git", ".*.s3", ".*.svn", ".*.swp", ".*.tmp", "cvs")
+
+  /** Regexes for the state and temporary files that AwsMirror writes into the mirrored tree; always ignored, and not saved to .s3 files */
+  val stateFileIgnores = Seq("\\.s3index(\\.tmp)?", "\\.s3journal", "\\..+\\.s3part", "\\.s3failed(\\.tmp)?")
   var allCredentials = new AllCredentials()
 }
 
@@ -56,7 +59,7 @@ case class S3File(accountName: String,
                   lastSyncOption: Option[DateTime]=None,
                   ignores: Seq[String]=AWS.defaultIgnores,
                   endpoint: String = ".s3.amazonaws.com") {
-  @JsonIgnore val ignoredPatterns: Seq[Pattern] = ignores.map { x => Pattern.compile(x) }
+  @JsonIgnore val ignoredPatterns: Seq[Pattern] = (ignores ++ AWS.stateFileIgnores).map { x => Pattern.compile(x) }
 
   @JsonIgnore def endpointUrl: String = "https://" + bucketName + "." + endpoint;
 }
@@ -0,0 +1,48 @@
+package com.micronautics.aws
+
+import org.scalatest.WordSpec
+import org.scalatest.matchers.MustMatchers
+import scala.collection.JavaConversions._
+
+class BatchDeleteTest extends WordSpec with MustMatchers {
+  def fakeS3(keys: Seq[String]): FakeS3 = {
+    val fake = new FakeS3
+    keys foreach { key => fake.objects.put(key, key.getBytes("UTF-8")) }
+    fake
+  }
+
+  "BatchDelete" must {
+    "delete a bucket in batches of up to 1000 keys" in {
+      val fake = fakeS3((1 to 2500).map("dir/file%05d".format(_)))
+      val batchDelete = new BatchDelete(fake.client, "bucket").deletePrefix(null).await
+      assert(batchDelete.deleted === 2500L)
+      assert(batchDelete.failures.isEmpty)
+      assert(fake.objects.isEmpty)
+      assert(fake.deleteRequests.get === 3)
+      assert(fake.listRequests.get === 3)
+    }
+
+    "only delete keys under the prefix" in {
+      val fake = fakeS3(Seq("a/1", "a/2", "b/1"))
+      val batchDelete = new BatchDelete(fake.client, "bucket").deletePrefix("a/").await
+      assert(batchDelete.deleted === 2L)
+      assert(fake.objects.keySet.toSet === Set("b/1"))
+    }
+
+    "delete keys exactly as they are listed" in {
+      val fake = fakeS3(Seq("/leading/slash", "plain"))
+      new BatchDelete(fake.client, "bucket").deletePrefix(null).await
+      assert(fake.objects.isEmpty)
+    }
+
+    "report keys that could not be deleted" in {
+      val fake = fakeS3((1 to 1500).map("file%04d".format(_)))
+      fake.failDelete = key => key.endsWith("7")
+      val batchDelete = new BatchDelete(fake.client, "bucket").deletePrefix(null).await
+      assert(batchDelete.deleted === 1350L)
+      assert(batchDelete.failures.size === 150)
+      assert(batchDelete.failures.forall(failure => failure.key.endsWith("7") && failure.code == "AccessDenied"))
+      assert(fake.objects.size === 150)
+    }
+  }
+}
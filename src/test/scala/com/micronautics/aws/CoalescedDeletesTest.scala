@@ -0,0 +1,33 @@
+package com.micronautics.aws
+
+import org.scalatest.WordSpec
+import org.scalatest.matchers.MustMatchers
+import scala.collection.JavaConversions._
+
+class CoalescedDeletesTest extends WordSpec with MustMatchers {
+  "CoalescedDeletes" must {
+    "absorb the files of a deleted directory, whichever is seen first" in {
+      val deletes = new CoalescedDeletes
+      deletes.addKey("site/a/1.html")
+      deletes.addDirectory("site/a")
+      deletes.addKey("site/a/2.html")
+      deletes.addKey("site/ab.html")
+      assert(deletes.prefixes.toList === List("site/a/"))
+      assert(deletes.keys.toList === List("site/ab.html"))
+      assert(deletes.covers("site/a/3.html"))
+      assert(!deletes.covers("site/abc.html"))
+    }
+
+    "absorb subdirectories into their deleted parent" in {
+      val deletes = new CoalescedDeletes
+      deletes.addDirectory("site/a/b")
+      deletes.addDirectory("site/a/c")
+      deletes.addDirectory("site/ab")
+      assert(deletes.prefixes.toList === List("site/a/b/", "site/a/c/", "site/ab/"))
+      deletes.addDirectory("site/a")
+      deletes.addDirectory("site/a/d")
+      assert(deletes.prefixes.toList === List("site/a/", "site/ab/"))
+      assert(deletes.size === 2)
+    }
+  }
+}
@@ -0,0 +1,128 @@
+package com.micronautics.aws
+
+import com.amazonaws.services.s3.model.S3ObjectSummary
+import java.util.Date
+import org.scalatest.WordSpec
+import org.scalatest.matchers.MustMatchers
+import scala.collection.JavaConversions._
+
+class CompactListingTest extends WordSpec with MustMatchers {
+  val eTag = "0123456789abcdef0123456789abcdef"
+
+  "CompactListing" must {
+    "find keys that were added" in {
+      val listing = new CompactListing(16)
+      for (i <- 0 until 10000)
+        listing.put("dir%d/file%d.html".format(i % 7, i), i, i * 1000L, eTag)
+      assert(listing.size === 10000)
+      val index = listing.indexOf("dir2/file1234.html")
+      assert(index >= 0, "Key was found")
+      assert(listing.key(index) === "dir2/file1234.html")
+      assert(listing.size(index) === 1234L)
+      assert(listing.lastModified(index) === 1234000L)
+      assert(listing.indexOf("dir4/file1234.html") === -1, "Key in another directory was not found")
+      assert(listing.indexOf("nodir/file1234.html") === -1, "Key in unknown directory was not found")
+    }
+
+    "replace and remove entries" in {
+      val listing = new CompactListing()
+      listing.put("index.html", 1, 1000L, eTag)
+      listing.put("index.html", 2, 2000L, eTag)
+      assert(listing.size === 1)
+      assert(listing.size(listing.indexOf("index.html")) === 2L)
+      assert(listing.remove("index.html"), "Key was removed")
+      assert(!listing.remove("index.html"), "Key was already removed")
+      assert(!listing.contains("index.html"))
+      assert(listing.size === 0)
+      assert(listing.iterator.hasNext === false)
+    }
+
+    "preserve ETags" in {
+      val listing = new CompactListing()
+      listing.put("a", 0, 0, "\"" + eTag + "\"")
+      listing.put("b", 0, 0, eTag + "-12")
+      listing.put("c", 0, 0, "notAnMd5")
+      listing.put("d", 0, 0, null)
+      assert(listing.eTag(listing.indexOf("a")) === eTag, "Quotes are removed")
+      assert(listing.eTag(listing.indexOf("b")) === eTag + "-12", "Multipart ETag")
+      assert(listing.eTag(listing.indexOf("c")) === "notAnMd5", "Unusual ETag")
+      assert(listing.eTag(listing.indexOf("d")) === null, "Missing ETag")
+    }
+
+    "iterate in insertion order" in {
+      val listing = new CompactListing()
+      val keys = List("a/b.html", "a/c.html", "b.html", "d/e/f.css")
+      keys foreach { key => listing.put(key, 1, 1000L, eTag) }
+      listing.remove("a/c.html")
+      assert(listing.iterator.toList.map(_.key) === List("a/b.html", "b.html", "d/e/f.css"))
+    }
+
+    "reuse the space of removed entries" in {
+      val listing = new CompactListing(16)
+      def keys(round: Int) = (0 until 100).map(i => "round%d/dir%d/file%d.html".format(round, i % 3, i))
+      for (round <- 0 until 200) {
+        keys(round).zipWithIndex foreach { case (key, i) => listing.put(key, i, round * 1000L, eTag) }
+        if (round>0)
+          keys(round - 1) foreach { key => assert(listing.remove(key)) }
+      }
+      assert(listing.size === 100)
+      assert(listing.indexLimit <= 200, "Indexes of removed entries were reused")
+      keys(199).zipWithIndex foreach { case (key, i) =>
+        val index = listing.indexOf(key)
+        assert(listing.key(index) === key, "Names survived compaction")
+        assert(listing.size(index) === i.toLong)
+      }
+      assert(listing.indexesUnder("round199/dir1/").size === 33)
+      assert(listing.indexesUnder("round198/").isEmpty)
+      assert(listing.iterator.toList.map(_.key).sorted === keys(199).sorted)
+    }
+
+    "find the entries below a prefix" in {
+      val listing = new CompactListing()
+      val keys = List("a/b.html", "a/c.html", "a/cd/e.html", "ab/f.html", "b.html", "d/e/f.css", "d/g.css")
+      keys foreach { key => listing.put(key, 1, 1000L, eTag) }
+      listing.remove("a/c.html")
+      def under(prefix: String) = listing.indexesUnder(prefix).map(listing.key(_)).toList.sorted
+      assert(under("a/") === List("a/b.html", "a/cd/e.html"))
+      assert(under("a/c") === List("a/cd/e.html"), "Prefix within file names")
+      assert(under("a") === List("a/b.html", "a/cd/e.html", "ab/f.html"))
+      assert(under("d/") === List("d/e/f.css", "d/g.css"))
+      assert(under("") === keys.filterNot(_ == "a/c.html").sorted)
+      assert(under("x/") === Nil)
+    }
+  }
+
+  "RemoteCatalog" must {
+    "normalize keys" in {
+      val node = new S3ObjectSummary()
+      node.setKey("/blah//ick.html")
+      node.setSize(42)
+      node.setLastModified(new Date(5000L))
+      node.setETag(eTag)
+      val catalog = new RemoteCatalog(java.util.Arrays.asList(node))
+      assert(catalog.contains("blah/ick.html"))
+      assert(catalog.contains("blah\\ick.html"))
+      assert(catalog.get("/blah/ick.html").size === 42L)
+      catalog.remove("blah/ick.html")
+      assert(catalog.size === 0)
+    }
+
+    "find and remove the objects below a prefix" in {
+      val catalog = new RemoteCatalog()
+      List("site/a.html", "site/css/b.css", "sitemap.xml", "other/c.html") foreach { catalog.put(_, 1, 0L, eTag) }
+      assert(catalog.keysUnder("site/").toList.sorted === List("site/a.html", "site/css/b.css"))
+      catalog.removePrefix("site/")
+      assert(catalog.size === 2)
+      assert(catalog.contains("sitemap.xml"))
+      assert(catalog.keysUnder("site/").isEmpty)
+    }
+
+    "find the objects directly within a directory" in {
+      val catalog = new RemoteCatalog()
+      List("a.html", "site/a.html", "site/css/b.css", "site/z.html", "site.txt") foreach { catalog.put(_, 1, 0L, eTag) }
+      assert(catalog.keysIn("site/").toList.sorted === List("site/a.html", "site/z.html"))
+      assert(catalog.keysIn("").toList.sorted === List("a.html", "site.txt"))
+      assert(catalog.keysIn("other/").isEmpty)
+    }
+  }
+}
@@ -0,0 +1,68 @@
+package com.micronautics.aws
+
+import java.io.File
+import org.apache.commons.io.FileUtils
+import org.scalatest.WordSpec
+import org.scalatest.matchers.MustMatchers
+import TempFiles._
+
+class CompressionTest extends WordSpec with MustMatchers {
+  val html = ("<html><body>" + ("<p>Lorem ipsum dolor sit amet</p>" * 2000) + "</body></html>").getBytes("UTF-8")
+
+  "Compression" must {
+    "only apply to text assets, and only when enabled" in {
+      val saved = Model.compressUploads
+      try {
+        Model.compressUploads = false
+        assert(!Compression.applies("index.html"))
+        Model.compressUploads = true
+        assert(Compression.applies("index.html"))
+        assert(Compression.applies("css/site.css"))
+        assert(Compression.applies("data.json"))
+        assert(!Compression.applies("photo.jpg"))
+        assert(!Compression.applies("archive.zip"))
+        assert(Compression.applies("README.TXT"))
+        for (key <- Seq("movie.mp4", "backup.tar", "backup.tar.gz", "photo.jpeg", "fonts/site.woff", "setup.exe", "unknown.xyz", "Makefile", "dir.html/data"))
+          assert(!Compression.applies(key), key + " is not compressed")
+      } finally {
+        Model.compressUploads = saved
+      }
+    }
+
+    "compress repeatably, and decompress to the original content" in {
+      withTempDir("compression") { root =>
+        val file = new File(root, "index.html")
+        FileUtils.writeByteArrayToFile(file, html)
+        val compressed = Compression.compress(file)
+        try {
+          assert(compressed.length < html.length / 10)
+          assert(Compression.md5(file) === HashCache.compute(compressed), "The ETag of the compressed object can be computed")
+          assert(Compression.md5(file) === Compression.md5(file))
+          val decompressed = new File(root, "decompressed.html")
+          Compression.decompress(compressed, decompressed)
+          assert(FileUtils.readFileToByteArray(decompressed).sameElements(html))
+        } finally {
+          compressed.delete()
+        }
+      }
+    }
+
+    "decompress objects stored with a gzip Content-Encoding when they are downloaded" in {
+      withTempDir("compression") { root =>
+        val file = new File(root, "source.html")
+        FileUtils.writeByteArrayToFile(file, html)
+        val compressed = Compression.compress(file)
+        val fakeS3 = new FakeS3
+        fakeS3.objects.put("index.html", FileUtils.readFileToByteArray(compressed))
+        fakeS3.contentEncodings.put("index.html", Compression.encoding)
+        compressed.delete()
+        val outFile = new File(root, "index.html")
+        val download = new RangedDownload(fakeS3.client, "bucket", "index.html", fakeS3.objects.get("index.html").length, fakeS3.eTag("index.html"), outFile)
+        download.call()
+        assert(download.wasCompressed)
+        assert(FileUtils.readFileToByteArray(outFile).sameElements(html))
+        assert(root.list.toSet === Set("source.html", "index.html"), "Temporary files were removed")
+      }
+    }
+  }
+}
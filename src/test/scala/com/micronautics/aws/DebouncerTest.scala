@@ -0,0 +1,71 @@
+package com.micronautics.aws
+
+import java.util.concurrent.CopyOnWriteArrayList
+import org.scalatest.WordSpec
+import org.scalatest.matchers.MustMatchers
+import scala.collection.JavaConversions._
+
+class DebouncerTest extends WordSpec with MustMatchers {
+  class Recorder extends Debouncer.Handler[String] {
+    val groups = new CopyOnWriteArrayList[List[String]]()
+    def settled(activities: java.util.List[Debouncer.Activity[String]]) { groups.add(activities.map(_.getPath).toList) }
+    def paths: List[String] = groups.toList.flatten
+  }
+
+  def eventually(timeout: Long)(condition: => Boolean): Boolean = {
+    val end = System.currentTimeMillis + timeout
+    while (!condition && System.currentTimeMillis < end)
+      Thread.sleep(10)
+    condition
+  }
+
+  "Debouncer" must {
+    "settle each path once its events stop, in the order they stop" in {
+      val recorder = new Recorder
+      val debouncer = new Debouncer[String]("test", 100, 0, recorder)
+      debouncer.touch("busy")
+      debouncer.touch("quiet")
+      while (!recorder.paths.contains("quiet")) { // keep busy from settling until quiet has
+        debouncer.touch("busy")
+        Thread.sleep(10)
+      }
+      assert(eventually(2000)(recorder.paths.size == 2))
+      assert(recorder.groups.toList === List(List("quiet"), List("busy")))
+      assert(debouncer.size === 0)
+      debouncer.stop()
+    }
+
+    "keep one activity per path, however many events it receives" in {
+      val recorder = new Recorder
+      val debouncer = new Debouncer[String]("test", 100, 0, recorder)
+      for (i <- 1 to 100000)
+        debouncer.touch("file" + (i % 10))
+      assert(debouncer.size <= 10)
+      assert(eventually(2000)(debouncer.size == 0))
+      assert(recorder.paths.toSet === (0 to 9).map("file" + _).toSet)
+      debouncer.stop()
+    }
+
+    "deliver paths that settle together as one group" in {
+      val recorder = new Recorder
+      val debouncer = new Debouncer[String]("test", 100, 300, recorder)
+      for (i <- 1 to 5)
+        debouncer.touch("file" + i)
+      assert(eventually(2000)(recorder.paths.size == 5))
+      assert(recorder.groups.size === 1)
+      assert(recorder.paths.toSet === (1 to 5).map("file" + _).toSet)
+      debouncer.stop()
+    }
+
+    "settle a path again after new events" in {
+      val recorder = new Recorder
+      val debouncer = new Debouncer[String]("test", 50, 0, recorder)
+      debouncer.touch("file")
+      assert(eventually(2000)(recorder.paths.size == 1))
+      debouncer.touch("file")
+      assert(eventually(2000)(recorder.paths.size == 2))
+      assert(recorder.groups.toList === List(List("file"), List("file")))
+      debouncer.stop()
+    }
+  }
+}
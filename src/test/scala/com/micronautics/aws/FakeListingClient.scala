@@ -0,0 +1,83 @@
+package com.micronautics.aws
+
+import com.amazonaws.services.s3.model.{ListObjectsRequest, ObjectListing, S3ObjectSummary}
+import java.util.Date
+import java.util.concurrent.atomic.AtomicInteger
+
+/** In-process stand-in for the S3 list operation, so listings can be tested and benchmarked without AWS.
+  * Prefix, delimiter, marker and maxKeys are honored the way S3 honors them.
+  * @param pageSize maximum number of keys and common prefixes returned per request unless maxKeys is smaller
+  * @param latency milliseconds to sleep per request, to simulate the round trip to S3 */
+class FakeListingClient(keys: Seq[String], pageSize: Int = 1000, latency: Long = 0L) extends ListingClient {
+  private val sorted: Array[String] = keys.toArray.sorted
+  val requestCount = new AtomicInteger
+
+  def listObjects(request: ListObjectsRequest): ObjectListing = {
+    requestCount.incrementAndGet
+    if (latency > 0)
+      Thread.sleep(latency)
+    val prefix = Option(request.getPrefix).getOrElse("")
+    val delimiter = Option(request.getDelimiter)
+    val maxKeys = Option(request.getMaxKeys).map(m => math.min(m.intValue, pageSize)).getOrElse(pageSize)
+    val marker = Option(request.getMarker)
+
+    val listing = new ObjectListing
+    listing.setBucketName(request.getBucketName)
+    listing.setPrefix(request.getPrefix)
+    listing.setDelimiter(request.getDelimiter)
+    listing.setMarker(request.getMarker)
+    listing.setMaxKeys(maxKeys)
+
+    var i = marker match {
+      case None => firstIndexNotBefore(prefix)
+      case Some(m) =>
+        var j = firstIndexNotBefore(m)
+        while (j < sorted.length && (sorted(j) == m || (delimiter.exists(m.endsWith(_)) && sorted(j).startsWith(m))))
+          j += 1
+        j
+    }
+    var count = 0
+    var last: String = null
+    while (i < sorted.length && sorted(i).startsWith(prefix) && count < maxKeys) {
+      val key = sorted(i)
+      val delimiterIndex = delimiter.map(d => key.indexOf(d, prefix.length)).getOrElse(-1)
+      if (delimiterIndex >= 0) {
+        val commonPrefix = key.substring(0, delimiterIndex + delimiter.get.length)
+        listing.getCommonPrefixes.add(commonPrefix)
+        while (i < sorted.length && sorted(i).startsWith(commonPrefix))
+          i += 1
+        last = commonPrefix
+      } else {
+        listing.getObjectSummaries.add(summary(request.getBucketName, key))
+        i += 1
+        last = key
+      }
+      count += 1
+    }
+    val truncated = i < sorted.length && sorted(i).startsWith(prefix)
+    listing.setTruncated(truncated)
+    if (truncated && delimiter.isDefined)
+      listing.setNextMarker(last)
+    listing
+  }
+
+  private def firstIndexNotBefore(key: String): Int = {
+    var low = 0
+    var high = sorted.length
+    while (low < high) {
+      val mid = (low + high) >>> 1
+      if (sorted(mid) < key) low = mid + 1 else high = mid
+    }
+    low
+  }
+
+  private def summary(bucketName: String, key: String): S3ObjectSummary = {
+    val node = new S3ObjectSummary
+    node.setBucketName(bucketName)
+    node.setKey(key)
+    node.setSize(key.length)
+    node.setLastModified(new Date(1346800736000L))
+    node.setETag("%032x".format(key.hashCode & 0xffffffffL))
+    node
+  }
+}
@@ -0,0 +1,142 @@
+package com.micronautics.aws
+
+import com.amazonaws.AmazonServiceException
+import com.amazonaws.services.s3.AmazonS3
+import com.amazonaws.services.s3.model._
+import com.amazonaws.util.BinaryUtils
+import java.io.ByteArrayInputStream
+import java.lang.reflect.{InvocationHandler, Method, Proxy}
+import java.security.MessageDigest
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicInteger
+import org.apache.commons.io.IOUtils
+import scala.collection.JavaConversions._
+
+/** In-memory stand-in for the parts of AmazonS3 that AwsMirror uses; unsupported methods throw.
+ * @param failPart returns true for part numbers whose upload should fail
+ * @param failDelete returns true for keys whose deletion should fail, with deleteErrorCode */
+class FakeS3(var failPart: Int => Boolean = _ => false, var failDelete: String => Boolean = _ => false) extends InvocationHandler {
+  val objects = new ConcurrentHashMap[String, Array[Byte]]()
+  /** Content-Encoding of stored objects that have one */
+  val contentEncodings = new ConcurrentHashMap[String, String]()
+  val uploads = new ConcurrentHashMap[String, ConcurrentHashMap[Int, Array[Byte]]]()
+  val partRequests = new AtomicInteger()
+  val aborted = new AtomicInteger()
+  val getRequests = new AtomicInteger()
+  val listRequests = new AtomicInteger()
+  val deleteRequests = new AtomicInteger()
+  @volatile var corruptDownloads = false
+  @volatile var deleteErrorCode = "AccessDenied"
+  private val uploadIds = new AtomicInteger()
+
+  val client: AmazonS3 = Proxy.newProxyInstance(getClass.getClassLoader, Array(classOf[AmazonS3]), this).asInstanceOf[AmazonS3]
+
+  def md5(bytes: Array[Byte]): Array[Byte] = MessageDigest.getInstance("MD5").digest(bytes)
+
+  def hex(bytes: Array[Byte]): String = bytes.map("%02x".format(_)).mkString
+
+  /** @return ETag of a stored object, which is the quoted MD5 digest of its content */
+  def eTag(key: String): String = "\"" + hex(md5(objects.get(key))) + "\""
+
+  def invoke(proxy: AnyRef, method: Method, args: Array[AnyRef]): AnyRef = (method.getName, if (args==null) Nil else args.toList) match {
+    case ("initiateMultipartUpload", List(request: InitiateMultipartUploadRequest)) =>
+      val uploadId = "upload" + uploadIds.incrementAndGet
+      uploads.put(uploadId, new ConcurrentHashMap[Int, Array[Byte]]())
+      val result = new InitiateMultipartUploadResult
+      result.setUploadId(uploadId)
+      result
+
+    case ("uploadPart", List(request: UploadPartRequest)) =>
+      partRequests.incrementAndGet
+      val parts = uploads.get(request.getUploadId)
+      if (parts==null)
+        throw noSuchUpload
+      if (failPart(request.getPartNumber))
+        throw new AmazonServiceException("Injected failure of part " + request.getPartNumber)
+      val bytes = IOUtils.toByteArray(request.getInputStream)
+      assert(bytes.length==request.getPartSize, "Part size is correct")
+      assert(BinaryUtils.toBase64(md5(bytes))==request.getMd5Digest, "Part digest is correct")
+      parts.put(request.getPartNumber, bytes)
+      val result = new UploadPartResult
+      result.setPartNumber(request.getPartNumber)
+      result.setETag(hex(md5(bytes)))
+      result
+
+    case ("completeMultipartUpload", List(request: CompleteMultipartUploadRequest)) =>
+      val parts = uploads.remove(request.getUploadId)
+      if (parts==null)
+        throw noSuchUpload
+      val numbers = request.getPartETags.map(_.getPartNumber)
+      assert(numbers==(1 to numbers.size), "Parts are complete and in order")
+      val bytes = numbers.flatMap(parts.get(_)).toArray
+      objects.put(request.getKey, bytes)
+      val result = new CompleteMultipartUploadResult
+      result.setETag(hex(md5(numbers.flatMap(n => md5(parts.get(n))).toArray)) + "-" + numbers.size)
+      result
+
+    case ("getObject", List(request: GetObjectRequest)) =>
+      getRequests.incrementAndGet
+      val bytes = objects.get(request.getKey)
+      if (bytes==null)
+        throw new AmazonServiceException("No such key " + request.getKey)
+      if (!request.getMatchingETagConstraints.isEmpty &&
+          !request.getMatchingETagConstraints.map(_.replace("\"", "")).contains(hex(md5(bytes))))
+        null
+      else {
+        val range = Option(request.getRange).map(r => bytes.slice(r(0).toInt, r(1).toInt + 1)).getOrElse(bytes)
+        val content = if (corruptDownloads) range.map(b => (b ^ 1).toByte) else range
+        val s3Object = new S3Object
+        s3Object.setKey(request.getKey)
+        s3Object.setObjectContent(new ByteArrayInputStream(content))
+        s3Object.getObjectMetadata.setContentEncoding(contentEncodings.get(request.getKey))
+        s3Object
+      }
+
+    case ("listObjects", List(request: ListObjectsRequest)) =>
+      listRequests.incrementAndGet
+      val prefix = Option(request.getPrefix).getOrElse("")
+      val marker = Option(request.getMarker).getOrElse("")
+      val maxKeys = Option(request.getMaxKeys).map(_.intValue).getOrElse(1000)
+      val keys = objects.keySet.toList.filter(key => key.startsWith(prefix) && key > marker).sorted
+      val listing = new ObjectListing
+      listing.setBucketName(request.getBucketName)
+      listing.setTruncated(keys.size > maxKeys)
+      keys.take(maxKeys) foreach { key =>
+        val summary = new S3ObjectSummary
+        summary.setKey(key)
+        summary.setSize(objects.get(key).length)
+        listing.getObjectSummaries.add(summary)
+      }
+      listing
+
+    case ("deleteObjects", List(request: DeleteObjectsRequest)) =>
+      deleteRequests.incrementAndGet
+      assert(request.getKeys.size <= 1000, "At most 1000 keys are deleted per request")
+      val (failed, deleted) = request.getKeys.map(_.getKey).partition(failDelete)
+      deleted foreach { objects.remove(_) }
+      if (!failed.isEmpty)
+        throw new MultiObjectDeleteException(failed map { key =>
+          val error = new MultiObjectDeleteException.DeleteError
+          error.setKey(key)
+          error.setCode(deleteErrorCode)
+          error.setMessage(deleteErrorCode)
+          error
+        }, Nil)
+      new DeleteObjectsResult(Nil)
+
+    case ("abortMultipartUpload", List(request: AbortMultipartUploadRequest)) =>
+      aborted.incrementAndGet
+      uploads.remove(request.getUploadId)
+      null
+
+    case (name, _) =>
+      throw new UnsupportedOperationException(name)
+  }
+
+  private def noSuchUpload = {
+    val e = new AmazonServiceException("The specified upload does not exist")
+    e.setErrorCode("NoSuchUpload")
+    e.setStatusCode(404)
+    e
+  }
+}
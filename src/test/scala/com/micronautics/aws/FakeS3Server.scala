@@ -0,0 +1,545 @@
+package com.micronautics.aws
+
+import java.io._
+import java.net.{InetAddress, ServerSocket, Socket, SocketException, URLDecoder}
+import java.security.MessageDigest
+import java.text.SimpleDateFormat
+import java.util.concurrent.atomic.{AtomicInteger, AtomicLong}
+import java.util.concurrent.{ConcurrentHashMap, ConcurrentSkipListMap, Executors, ThreadFactory, ThreadLocalRandom}
+import java.util.{Date, Locale, TimeZone}
+import javax.xml.parsers.DocumentBuilderFactory
+import org.w3c.dom.Element
+import scala.collection.JavaConversions._
+
+object FakeS3Server {
+  /** An object as it is stored by the server */
+  case class Stored(bytes: Array[Byte], eTag: String, lastModified: Long, contentType: String, contentEncoding: String)
+
+  /** A multipart upload that has been initiated and neither completed nor aborted */
+  case class Upload(bucket: String, key: String, contentType: String, contentEncoding: String) {
+    val parts = new ConcurrentSkipListMap[Int, Stored]()
+  }
+
+  val namespace = "http://s3.amazonaws.com/doc/2006-03-01/"
+
+  val reasons = Map(200 -> "OK", 204 -> "No Content", 206 -> "Partial Content", 400 -> "Bad Request", 404 -> "Not Found",
+    409 -> "Conflict", 412 -> "Precondition Failed", 500 -> "Internal Server Error", 501 -> "Not Implemented", 503 -> "Slow Down")
+
+  def md5(bytes: Array[Byte]): Array[Byte] = MessageDigest.getInstance("MD5").digest(bytes)
+
+  def hex(bytes: Array[Byte]): String = bytes.map("%02x".format(_)).mkString
+
+  def escape(text: String): String =
+    text.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;").replace("\"", "&quot;").replace("'", "&apos;")
+
+  def iso8601(millis: Long): String = format("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", millis)
+
+  def rfc822(millis: Long): String = format("EEE, dd MMM yyyy HH:mm:ss 'GMT'", millis)
+
+  private def format(pattern: String, millis: Long): String = {
+    val dateFormat = new SimpleDateFormat(pattern, Locale.US)
+    dateFormat.setTimeZone(TimeZone.getTimeZone("GMT"))
+    dateFormat.format(new Date(millis))
+  }
+}
+
+/** An in-process, in-memory S3-compatible server, so that S3 and the transfers built on it can be exercised without
+  * an AWS account or a network. Point clients at it by setting Model.endpoint to endpoint before they are created;
+  * the endpoint is an IP address, so the AWS SDK addresses buckets in the path of each request.
+  *
+  * Buckets, listings with prefixes, markers and delimiters, puts, gets with ranges and ETag constraints, heads,
+  * deletes, multi-object deletes, copies and multipart uploads are supported. Requests are not authenticated.
+  *
+  * Every request waits latencyMillis before it is handled, request and response bodies share one link of
+  * bytesPerSecond, and a fraction throttleRate of requests are answered with 503 SlowDown, as S3 does when its
+  * request rate is exceeded. The requests of each operation are counted.
+  * @param port the port to listen on; by default, any free port */
+class FakeS3Server(port: Int = 0) {
+  import FakeS3Server._
+
+  /** Added to the handling time of every request */
+  @volatile var latencyMillis = 0L
+  /** Bandwidth shared by every request and response body, in bytes per second; zero means unlimited */
+  @volatile var bytesPerSecond = 0L
+  /** Fraction of requests that are throttled, between 0 and 1 */
+  @volatile var throttleRate = 0.0
+
+  val buckets = new ConcurrentHashMap[String, ConcurrentSkipListMap[String, Stored]]()
+  val uploads = new ConcurrentHashMap[String, Upload]()
+  /** Number of requests received for each operation, named as in the S3 API, including those that were throttled */
+  val requests = new ConcurrentHashMap[String, AtomicLong]()
+  val throttled = new AtomicLong()
+  val bytesReceived = new AtomicLong()
+  val bytesSent = new AtomicLong()
+  private val uploadIds = new AtomicInteger()
+  private val link = new Object
+  private var linkFreeAt = System.nanoTime
+
+  private val executor = Executors.newCachedThreadPool(new ThreadFactory {
+    private val threads = new AtomicInteger()
+    def newThread(runnable: Runnable) = {
+      val thread = new Thread(runnable, "fakeS3-" + threads.incrementAndGet)
+      thread.setDaemon(true)
+      thread
+    }
+  })
+  private val serverSocket = new ServerSocket(port, 100, InetAddress.getByName("127.0.0.1"))
+  private val connections = new ConcurrentHashMap[Socket, Socket]()
+  executor.execute(new Runnable { def run() { accept() } })
+
+  /** Value for Model.endpoint */
+  def endpoint: String = "http://127.0.0.1:" + serverSocket.getLocalPort
+
+  def stop() {
+    serverSocket.close()
+    connections.keySet foreach { _.close() }
+    executor.shutdownNow()
+  }
+
+  /** @return objects of bucket, which is created if it does not exist */
+  def bucket(name: String): ConcurrentSkipListMap[String, Stored] = {
+    val created = new ConcurrentSkipListMap[String, Stored]()
+    val existing = buckets.putIfAbsent(name, created)
+    if (existing==null) created else existing
+  }
+
+  /** Stores an object without sending a request */
+  def put(bucketName: String, key: String, bytes: Array[Byte]) {
+    bucket(bucketName).put(key, stored(bytes, S3.contentType(key), null))
+  }
+
+  /** @return number of requests received for operation */
+  def count(operation: String): Long = {
+    val counter = requests.get(operation)
+    if (counter==null) 0L else counter.get
+  }
+
+  def totalRequests: Long = requests.values.map(_.get).sum
+
+  /** Zeroes every counter */
+  def resetCounts() {
+    requests.clear()
+    throttled.set(0)
+    bytesReceived.set(0)
+    bytesSent.set(0)
+  }
+
+  private def stored(bytes: Array[Byte], contentType: String, contentEncoding: String): Stored =
+    Stored(bytes, "\"" + hex(md5(bytes)) + "\"", System.currentTimeMillis, contentType, contentEncoding)
+
+  /** A request, with its bucket name and key decoded from the path, and the headers of its response
+    * @param headers request headers, with names in lower case */
+  private class Request(val method: String, val target: String, headers: Map[String, String], in: InputStream, val out: OutputStream) {
+    private val path = target.split("\\?", 2)
+    private val slash = path(0).indexOf('/', 1)
+    val bucketName = decode(if (slash<0) path(0).substring(1) else path(0).substring(1, slash))
+    val key = if (slash<0) "" else decode(path(0).substring(slash + 1))
+    val query: Map[String, String] = path.drop(1).toList.flatMap(_.split("&")).map { parameter =>
+      val equals = parameter.indexOf('=')
+      if (equals<0) (decode(parameter), "") else (decode(parameter.substring(0, equals)), decode(parameter.substring(equals + 1)))
+    }.toMap
+    val responseHeaders = new java.util.LinkedHashMap[String, String]()
+
+    def header(name: String): String = headers.getOrElse(name.toLowerCase, null)
+
+    def keepAlive: Boolean = header("Connection")!="close"
+
+    /** The client sends the whole body before it reads the response, so the body is read even if it is not needed */
+    lazy val body: Array[Byte] = {
+      if (header("Expect")=="100-continue") {
+        out.write("HTTP/1.1 100 Continue\r\n\r\n".getBytes("ISO-8859-1"))
+        out.flush()
+      }
+      if (header("Transfer-Encoding")=="chunked") {
+        val chunks = new ByteArrayOutputStream
+        var size = java.lang.Long.parseLong(readLine(in).split(";")(0).trim, 16)
+        while (size>0) {
+          chunks.write(read(in, size))
+          readLine(in)
+          size = java.lang.Long.parseLong(readLine(in).split(";")(0).trim, 16)
+        }
+        while (Option(readLine(in)).exists(!_.isEmpty)) { } // trailers
+        chunks.toByteArray
+      } else
+        read(in, Option(header("Content-Length")).map(_.toLong).getOrElse(0L))
+    }
+
+    private def decode(text: String) = URLDecoder.decode(text.replace("+", "%2B"), "UTF-8")
+
+    /** The name of the S3 API operation that this request invokes */
+    lazy val operation: String = (method, bucketName.isEmpty, key.isEmpty) match {
+      case ("GET", true, _) => "ListBuckets"
+      case ("GET", false, true) if query.contains("location") => "GetBucketLocation"
+      case ("GET", false, true) if query.contains("website") => "GetBucketWebsite"
+      case ("GET", false, true) => "ListObjects"
+      case ("PUT", false, true) if query.contains("website") || query.contains("policy") => "PutBucketConfiguration"
+      case ("PUT", false, true) => "CreateBucket"
+      case ("HEAD", false, true) => "HeadBucket"
+      case ("DELETE", false, true) => "DeleteBucket"
+      case ("POST", false, true) if query.contains("delete") => "DeleteObjects"
+      case ("GET", false, false) => "GetObject"
+      case ("HEAD", false, false) => "HeadObject"
+      case ("PUT", false, false) if query.contains("uploadId") => "UploadPart"
+      case ("PUT", false, false) if header("x-amz-copy-source")!=null => "CopyObject"
+      case ("PUT", false, false) => "PutObject"
+      case ("DELETE", false, false) if query.contains("uploadId") => "AbortMultipartUpload"
+      case ("DELETE", false, false) => "DeleteObject"
+      case ("POST", false, false) if query.contains("uploads") => "CreateMultipartUpload"
+      case ("POST", false, false) if query.contains("uploadId") => "CompleteMultipartUpload"
+      case _ => "Unsupported"
+    }
+  }
+
+  private def accept() {
+    try {
+      while (true) {
+        val socket = serverSocket.accept()
+        connections.put(socket, socket)
+        executor.execute(new Runnable { def run() { serve(socket) } })
+      }
+    } catch {
+      case e: SocketException => // the server was stopped
+    }
+  }
+
+  /** Handles the requests sent on a connection, which is kept open until the client closes it */
+  private def serve(socket: Socket) {
+    try {
+      val in = new BufferedInputStream(socket.getInputStream)
+      val out = new BufferedOutputStream(socket.getOutputStream)
+      var request = readRequest(in, out)
+      while (request!=null) {
+        handle(request)
+        request = if (request.keepAlive) readRequest(in, out) else null
+      }
+    } catch {
+      case e: IOException => // the connection was closed
+    } finally {
+      connections.remove(socket)
+      socket.close()
+    }
+  }
+
+  /** @return the next request on a connection, or null if the client closed it */
+  private def readRequest(in: InputStream, out: OutputStream): Request = {
+    val requestLine = readLine(in)
+    if (requestLine==null || requestLine.isEmpty)
+      return null
+    val Array(method, target, _*) = requestLine.split(" ")
+    val headers = Iterator.continually(readLine(in)).takeWhile(line => line!=null && !line.isEmpty).map { line =>
+      val colon = line.indexOf(':')
+      (line.substring(0, colon).trim.toLowerCase, line.substring(colon + 1).trim)
+    }.toMap
+    new Request(method, target, headers, in, out)
+  }
+
+  private def readLine(in: InputStream): String = {
+    val line = new StringBuilder
+    var c = in.read()
+    while (c>=0 && c!='\n') {
+      if (c!='\r')
+        line.append(c.toChar)
+      c = in.read()
+    }
+    if (c<0 && line.isEmpty) null else line.toString
+  }
+
+  private def handle(request: Request) {
+    try {
+      val counter = requests.get(request.operation)
+      (if (counter!=null) counter else { requests.putIfAbsent(request.operation, new AtomicLong()); requests.get(request.operation) }).incrementAndGet
+      if (latencyMillis>0)
+        Thread.sleep(latencyMillis)
+      request.body
+      if (throttleRate>0 && ThreadLocalRandom.current.nextDouble < throttleRate) {
+        throttled.incrementAndGet
+        error(request, 503, "SlowDown", "Please reduce your request rate.")
+      } else
+        respond(request)
+    } catch {
+      case e: IOException => throw e
+      case e: Exception => error(request, 500, "InternalError", e.toString)
+    }
+  }
+
+  private def respond(request: Request) {
+    lazy val objects = buckets.get(request.bucketName)
+    if (!request.bucketName.isEmpty && !Set("CreateBucket", "Unsupported")(request.operation) && objects==null) {
+      error(request, 404, "NoSuchBucket", "The specified bucket does not exist")
+      return
+    }
+    request.operation match {
+      case "ListBuckets" =>
+        xml(request, 200, "<ListAllMyBucketsResult xmlns=\"" + namespace + "\"><Owner><ID>fake</ID><DisplayName>fake</DisplayName></Owner><Buckets>" +
+          buckets.keySet.toList.sorted.map { name =>
+            "<Bucket><Name>" + escape(name) + "</Name><CreationDate>" + iso8601(0) + "</CreationDate></Bucket>"
+          }.mkString + "</Buckets></ListAllMyBucketsResult>")
+
+      case "CreateBucket" =>
+        bucket(request.bucketName)
+        send(request, 200, Array.empty)
+
+      case "DeleteBucket" =>
+        if (!objects.isEmpty)
+          error(request, 409, "BucketNotEmpty", "The bucket you tried to delete is not empty")
+        else {
+          buckets.remove(request.bucketName)
+          send(request, 204, null)
+        }
+
+      case "HeadBucket" | "PutBucketConfiguration" =>
+        send(request, 200, Array.empty)
+
+      case "GetBucketLocation" =>
+        xml(request, 200, "<LocationConstraint xmlns=\"" + namespace + "\"/>")
+
+      case "GetBucketWebsite" =>
+        error(request, 404, "NoSuchWebsiteConfiguration", "The specified bucket does not have a website configuration")
+
+      case "ListObjects" =>
+        xml(request, 200, listing(request.bucketName, objects, request.query))
+
+      case "DeleteObjects" =>
+        val delete = parse(request.body)
+        val quiet = text(delete, "Quiet")=="true"
+        val keys = elements(delete, "Object").map(text(_, "Key"))
+        keys foreach { objects.remove(_) }
+        xml(request, 200, "<DeleteResult xmlns=\"" + namespace + "\">" +
+          (if (quiet) "" else keys.map("<Deleted><Key>" + escape(_) + "</Key></Deleted>").mkString) + "</DeleteResult>")
+
+      case "PutObject" =>
+        val value = stored(request.body, request.header("Content-Type"), request.header("Content-Encoding"))
+        objects.put(request.key, value)
+        request.responseHeaders.put("ETag", value.eTag)
+        send(request, 200, Array.empty)
+
+      case "CopyObject" =>
+        val source = URLDecoder.decode(request.header("x-amz-copy-source").replace("+", "%2B"), "UTF-8").stripPrefix("/")
+        val slash = source.indexOf('/')
+        val sourceBucket = buckets.get(source.substring(0, slash))
+        val original = if (sourceBucket==null) null else sourceBucket.get(source.substring(slash + 1))
+        if (original==null)
+          error(request, 404, "NoSuchKey", "The specified key does not exist.")
+        else {
+          val copy = if (request.header("x-amz-metadata-directive")=="REPLACE")
+              stored(original.bytes, request.header("Content-Type"), request.header("Content-Encoding"))
+            else
+              stored(original.bytes, original.contentType, original.contentEncoding)
+          objects.put(request.key, copy)
+          xml(request, 200, "<CopyObjectResult xmlns=\"" + namespace + "\"><LastModified>" + iso8601(copy.lastModified) +
+            "</LastModified><ETag>" + escape(copy.eTag) + "</ETag></CopyObjectResult>")
+        }
+
+      case "GetObject" | "HeadObject" =>
+        val value = objects.get(request.key)
+        val ifMatch = request.header("If-Match")
+        if (value==null)
+          error(request, 404, "NoSuchKey", "The specified key does not exist.")
+        else if (ifMatch!=null && ifMatch.replace("\"", "")!=value.eTag.replace("\"", ""))
+          error(request, 412, "PreconditionFailed", "At least one of the preconditions you specified did not hold.")
+        else {
+          val headers = request.responseHeaders
+          headers.put("ETag", value.eTag)
+          headers.put("Last-Modified", rfc822(value.lastModified))
+          headers.put("Accept-Ranges", "bytes")
+          if (value.contentType!=null)
+            headers.put("Content-Type", value.contentType)
+          if (value.contentEncoding!=null)
+            headers.put("Content-Encoding", value.contentEncoding)
+          val range = request.header("Range")
+          if (request.operation=="HeadObject") {
+            headers.put("Content-Length", value.bytes.length.toString)
+            send(request, 200, null)
+          } else if (range==null)
+            send(request, 200, value.bytes)
+          else {
+            val Array(first, last) = range.stripPrefix("bytes=").split("-", 2)
+            val start = first.toInt
+            val end = if (last.isEmpty) value.bytes.length - 1 else math.min(last.toInt, value.bytes.length - 1)
+            headers.put("Content-Range", "bytes %d-%d/%d".format(start, end, value.bytes.length))
+            send(request, 206, value.bytes.slice(start, end + 1))
+          }
+        }
+
+      case "DeleteObject" =>
+        objects.remove(request.key)
+        send(request, 204, null)
+
+      case "CreateMultipartUpload" =>
+        val uploadId = "upload" + uploadIds.incrementAndGet
+        uploads.put(uploadId, Upload(request.bucketName, request.key, request.header("Content-Type"), request.header("Content-Encoding")))
+        xml(request, 200, "<InitiateMultipartUploadResult xmlns=\"" + namespace + "\"><Bucket>" + escape(request.bucketName) +
+          "</Bucket><Key>" + escape(request.key) + "</Key><UploadId>" + uploadId + "</UploadId></InitiateMultipartUploadResult>")
+
+      case "UploadPart" =>
+        val upload = uploads.get(request.query("uploadId"))
+        if (upload==null)
+          error(request, 404, "NoSuchUpload", "The specified upload does not exist.")
+        else {
+          val part = stored(request.body, null, null)
+          upload.parts.put(request.query("partNumber").toInt, part)
+          request.responseHeaders.put("ETag", part.eTag)
+          send(request, 200, Array.empty)
+        }
+
+      case "CompleteMultipartUpload" =>
+        val upload = uploads.get(request.query("uploadId"))
+        if (upload==null)
+          error(request, 404, "NoSuchUpload", "The specified upload does not exist.")
+        else {
+          val partNumbers = elements(parse(request.body), "Part").map(text(_, "PartNumber").toInt)
+          if (partNumbers.exists(!upload.parts.containsKey(_)))
+            error(request, 400, "InvalidPart", "One or more of the specified parts could not be found.")
+          else {
+            uploads.remove(request.query("uploadId"))
+            val parts = partNumbers.map(upload.parts.get(_))
+            val content = new ByteArrayOutputStream
+            val digests = new ByteArrayOutputStream
+            parts foreach { part =>
+              content.write(part.bytes)
+              digests.write(md5(part.bytes))
+            }
+            val eTag = "\"" + hex(md5(digests.toByteArray)) + "-" + parts.size + "\""
+            objects.put(upload.key, Stored(content.toByteArray, eTag, System.currentTimeMillis, upload.contentType, upload.contentEncoding))
+            xml(request, 200, "<CompleteMultipartUploadResult xmlns=\"" + namespace + "\"><Location>" + endpoint + "/" +
+              escape(request.bucketName) + "/" + escape(upload.key) + "</Location><Bucket>" + escape(request.bucketName) +
+              "</Bucket><Key>" + escape(upload.key) + "</Key><ETag>" + escape(eTag) + "</ETag></CompleteMultipartUploadResult>")
+          }
+        }
+
+      case "AbortMultipartUpload" =>
+        uploads.remove(request.query("uploadId"))
+        send(request, 204, null)
+
+      case _ =>
+        error(request, 501, "NotImplemented", request.method + " " + request.target + " is not supported")
+    }
+  }
+
+  /** A page of a listing, which is at most max-keys keys and common prefixes that follow the marker */
+  private def listing(bucketName: String, objects: ConcurrentSkipListMap[String, Stored], query: Map[String, String]): String = {
+    val prefix = query.getOrElse("prefix", "")
+    val marker = query.getOrElse("marker", "")
+    val delimiter = query.getOrElse("delimiter", "")
+    val maxKeys = query.get("max-keys").map(_.toInt).getOrElse(1000)
+    val contents = new StringBuilder
+    val commonPrefixes = new StringBuilder
+    var count = 0
+    var truncated = false
+    var lastCommonPrefix: String = null
+    var nextMarker: String = null
+    val iterator = (if (prefix>marker) objects.tailMap(prefix, true) else objects.tailMap(marker, false)).entrySet.iterator
+    var done = false
+    while (!done && iterator.hasNext) {
+      val entry = iterator.next()
+      val key = entry.getKey
+      if (!key.startsWith(prefix))
+        done = true // keys are sorted, so no later key starts with prefix
+      else {
+        val index = if (delimiter.isEmpty) -1 else key.indexOf(delimiter, prefix.length)
+        val commonPrefix = if (index<0) null else key.substring(0, index + delimiter.length)
+        if (commonPrefix==null || (commonPrefix!=lastCommonPrefix && commonPrefix>marker)) {
+          if (count==maxKeys) {
+            truncated = true
+            done = true
+          } else {
+            count += 1
+            if (commonPrefix==null) {
+              val value = entry.getValue
+              contents.append("<Contents><Key>").append(escape(key)).append("</Key><LastModified>").append(iso8601(value.lastModified)).
+                append("</LastModified><ETag>").append(escape(value.eTag)).append("</ETag><Size>").append(value.bytes.length).
+                append("</Size><Owner><ID>fake</ID><DisplayName>fake</DisplayName></Owner><StorageClass>STANDARD</StorageClass></Contents>")
+              nextMarker = key
+            } else {
+              commonPrefixes.append("<CommonPrefixes><Prefix>").append(escape(commonPrefix)).append("</Prefix></CommonPrefixes>")
+              lastCommonPrefix = commonPrefix
+              nextMarker = commonPrefix
+            }
+          }
+        }
+      }
+    }
+    "<ListBucketResult xmlns=\"" + namespace + "\"><Name>" + escape(bucketName) + "</Name><Prefix>" + escape(prefix) +
+      "</Prefix><Marker>" + escape(marker) + "</Marker>" +
+      (if (truncated && !delimiter.isEmpty) "<NextMarker>" + escape(nextMarker) + "</NextMarker>" else "") +
+      "<MaxKeys>" + maxKeys + "</MaxKeys>" + (if (delimiter.isEmpty) "" else "<Delimiter>" + escape(delimiter) + "</Delimiter>") +
+      "<IsTruncated>" + truncated + "</IsTruncated>" + contents + commonPrefixes + "</ListBucketResult>"
+  }
+
+  private def parse(bytes: Array[Byte]): Element =
+    DocumentBuilderFactory.newInstance.newDocumentBuilder.parse(new ByteArrayInputStream(bytes)).getDocumentElement
+
+  private def elements(parent: Element, name: String): List[Element] = {
+    val nodes = parent.getElementsByTagName(name)
+    (0 until nodes.getLength).map(nodes.item(_).asInstanceOf[Element]).toList
+  }
+
+  private def text(parent: Element, name: String): String = elements(parent, name).headOption.map(_.getTextContent).orNull
+
+  /** Reads a request body of length bytes at the bandwidth of the link */
+  private def read(in: InputStream, length: Long): Array[Byte] = {
+    val out = new ByteArrayOutputStream(length.toInt)
+    val buffer = new Array[Byte](64 * 1024)
+    var remaining = length
+    while (remaining>0) {
+      val count = in.read(buffer, 0, math.min(buffer.length, remaining).toInt)
+      if (count<0)
+        throw new EOFException("The client closed the connection before sending the request body")
+      pace(count)
+      bytesReceived.addAndGet(count)
+      out.write(buffer, 0, count)
+      remaining -= count
+    }
+    out.toByteArray
+  }
+
+  /** Sends a response, whose body is sent at the bandwidth of the link.
+    * Header names are sent as given; the AWS SDK does not match them without regard to case.
+    * @param bytes the body, or null if the response has none */
+  private def send(request: Request, status: Int, bytes: Array[Byte]) {
+    val headers = request.responseHeaders
+    headers.put("x-amz-request-id", "fake" + Thread.currentThread.getId)
+    headers.put("Date", rfc822(System.currentTimeMillis))
+    if (!headers.containsKey("Content-Length"))
+      headers.put("Content-Length", (if (bytes==null) 0 else bytes.length).toString)
+    val head = new StringBuilder("HTTP/1.1 ").append(status).append(' ').append(reasons.getOrElse(status, "Unknown")).append("\r\n")
+    headers foreach { case (name, value) => head.append(name).append(": ").append(value).append("\r\n") }
+    val out = request.out
+    out.write(head.append("\r\n").toString.getBytes("ISO-8859-1"))
+    if (bytes!=null && request.method!="HEAD") {
+      var offset = 0
+      while (offset<bytes.length) {
+        val count = math.min(64 * 1024, bytes.length - offset)
+        pace(count)
+        out.write(bytes, offset, count)
+        bytesSent.addAndGet(count)
+        offset += count
+      }
+    }
+    out.flush()
+  }
+
+  private def xml(request: Request, status: Int, document: String) {
+    request.responseHeaders.put("Content-Type", "application/xml")
+    send(request, status, ("<?xml version=\"1.0\" encoding=\"UTF-8\"?>" + document).getBytes("UTF-8"))
+  }
+
+  private def error(request: Request, status: Int, code: String, message: String) {
+    request.responseHeaders.clear()
+    xml(request, status, "<Error><Code>" + code + "</Code><Message>" + escape(message) + "</Message><RequestId>fake</RequestId></Error>")
+  }
+
+  /** Waits until bytes can be carried by the link, which transfers bytesPerSecond for every request together */
+  private def pace(bytes: Int) {
+    val rate = bytesPerSecond
+    if (rate>0) {
+      val wait = link.synchronized {
+        val now = System.nanoTime
+        linkFreeAt = math.max(now, linkFreeAt) + bytes * 1000000000L / rate
+        linkFreeAt - now
+      }
+      if (wait>0)
+        Thread.sleep(wait / 1000000L, (wait % 1000000L).toInt)
+    }
+  }
+}
@@ -0,0 +1,115 @@
+package com.micronautics.aws
+
+import com.amazonaws.services.s3.model.ListObjectsRequest
+import java.io.File
+import org.apache.commons.io.{FileUtils, IOUtils}
+import org.scalatest.WordSpec
+import org.scalatest.matchers.MustMatchers
+import scala.collection.JavaConversions._
+import TempFiles._
+
+class FakeS3ServerTest extends WordSpec with MustMatchers {
+  val mb = 1024 * 1024
+  val bucketName = "bucket"
+
+  /** Runs test with an S3 that sends its requests to a new server with an empty bucket */
+  def withServer(test: (FakeS3Server, S3, File) => Unit): Unit = withTempDir("fakeS3") { root =>
+    val server = new FakeS3Server
+    val savedEndpoint = Model.endpoint
+    Model.endpoint = server.endpoint
+    val s3 = new S3("accessKey", "secretKey")
+    Model.endpoint = savedEndpoint
+    try {
+      s3.createBucket(bucketName)
+      test(server, s3, root)
+    } finally {
+      s3.s3.shutdown()
+      server.stop()
+    }
+  }
+
+  "FakeS3Server" must {
+    "store, list, fetch and delete objects sent by the AWS SDK" in {
+      withServer { (server, s3, root) =>
+        assert(s3.bucketExists(bucketName))
+        (1 to 25) foreach { i => s3.uploadString(bucketName, "dir%d/file %02d.txt".format(i % 3, i), "contents " + i) }
+        s3.uploadString(bucketName, "top+level.txt", "top")
+        assert(server.count("PutObject") === 26L)
+
+        val listing = new ParallelLister(s3.listingClient, 2).list(bucketName, null)
+        assert(listing.size === 26)
+        assert(listing.map(_.key).toList === server.bucket(bucketName).keySet.toList)
+        val pages = Iterator.iterate(s3.s3.listObjects(new ListObjectsRequest(bucketName, "", null, "/", 2))) { page =>
+          s3.s3.listObjects(new ListObjectsRequest(bucketName, "", ParallelLister.nextMarker(page), "/", 2))
+        }
+        val (truncated, last) = pages.span(_.isTruncated)
+        val delimited = (truncated.toList :+ last.next).flatMap(page => page.getCommonPrefixes ++ page.getObjectSummaries.map(_.getKey))
+        assert(delimited === List("dir0/", "dir1/", "dir2/", "top+level.txt"))
+        assert(IOUtils.toString(s3.downloadFile(bucketName, "dir1/file 10.txt"), "UTF-8") === "contents 10")
+        assert(IOUtils.toString(s3.downloadFile(bucketName, "top+level.txt"), "UTF-8") === "top")
+        assert(s3.s3.getObjectMetadata(bucketName, "dir1/file 10.txt").getContentLength === 11L)
+
+        s3.deleteObject(bucketName, "top+level.txt")
+        val batchDelete = new BatchDelete(s3.s3, bucketName).deletePrefix("dir2/").await
+        assert(batchDelete.deleted === 8L)
+        assert(server.count("DeleteObjects") >= 1L)
+        assert(server.bucket(bucketName).size === 17)
+      }
+    }
+
+    "copy objects, and upload and download them in parts" in {
+      withServer { (server, s3, root) =>
+        val saved = (Model.multipartThreshold, Model.partSize, Model.rangedThreshold, Model.rangeSize, Model.journalDirectory)
+        Model.multipartThreshold = 6L * mb
+        Model.partSize = 5L * mb
+        Model.rangedThreshold = 2L * mb
+        Model.rangeSize = 2L * mb
+        Model.journalDirectory = new File(root, ".s3journal")
+        try {
+          val bytes = Array.tabulate[Byte](11 * mb + 7)(i => (i * 31).toByte)
+          val file = writeFile(root, "big.bin", bytes)
+          val eTag = s3.uploadFile(bucketName, "big.bin", file).getETag
+          assert(server.count("UploadPart") === 3L)
+          assert(eTag === HashCache.multipartETag(file, MultipartUpload.partSize(file.length)))
+
+          val copyETag = s3.copyFile(bucketName, "big.bin", "moved/big.bin", file).getETag
+          assert(server.count("CopyObject") === 1L)
+          assert(copyETag === HashCache.compute(file), "Copies are not multipart objects")
+
+          val outFile = new File(root, "downloaded.bin")
+          new RangedDownload(s3.s3, bucketName, "moved/big.bin", bytes.length, copyETag, outFile).call()
+          assert(server.count("GetObject") === 6L)
+          assert(FileUtils.readFileToByteArray(outFile).sameElements(bytes))
+        } finally {
+          Model.multipartThreshold = saved._1
+          Model.partSize = saved._2
+          Model.rangedThreshold = saved._3
+          Model.rangeSize = saved._4
+          Model.journalDirectory = saved._5
+        }
+      }
+    }
+
+    "throttle requests, which are retried" in {
+      withServer { (server, s3, root) =>
+        server.throttleRate = 0.3
+        (1 to 30) foreach { i => s3.uploadString(bucketName, "file" + i, "contents " + i) }
+        assert(server.bucket(bucketName).size === 30)
+        assert(server.throttled.get > 0L)
+        assert(server.count("PutObject") === 30L + server.throttled.get)
+      }
+    }
+
+    "limit bandwidth and add latency" in {
+      withServer { (server, s3, root) =>
+        server.latencyMillis = 50
+        server.bytesPerSecond = 4L * mb
+        val start = System.currentTimeMillis
+        s3.uploadFile(bucketName, "file.bin", writeFile(root, "file.bin", new Array[Byte](mb)))
+        val elapsed = System.currentTimeMillis - start
+        assert(elapsed >= 250L, "1 MB at 4 MB/s takes 250 ms, plus latency; took " + elapsed + " ms")
+        assert(server.bytesReceived.get >= mb.toLong)
+      }
+    }
+  }
+}
@@ -0,0 +1,64 @@
+package com.micronautics.aws
+
+import java.io.File
+import java.security.MessageDigest
+import org.apache.commons.io.FileUtils
+import org.scalatest.WordSpec
+import org.scalatest.matchers.MustMatchers
+import TempFiles._
+
+class HashCacheTest extends WordSpec with MustMatchers {
+  def hex(bytes: Array[Byte]): String = bytes.map("%02x".format(_)).mkString
+
+  "HashCache" must {
+    "extract digests from simple ETags only" in {
+      assert(HashCache.digestOf("\"D41D8CD98F00B204E9800998ECF8427E\"") === "d41d8cd98f00b204e9800998ecf8427e")
+      assert(HashCache.digestOf("\"d41d8cd98f00b204e9800998ecf8427e-3\"") === null)
+      assert(HashCache.digestOf(null) === null)
+    }
+
+    "hash small files and mapped large files" in {
+      withTempDir("hashCache") { root =>
+        val small = new File(root, "small.txt")
+        FileUtils.writeStringToFile(small, "", "UTF-8")
+        assert(HashCache.compute(small) === "d41d8cd98f00b204e9800998ecf8427e")
+
+        val bytes = Array.tabulate[Byte](3 * 1024 * 1024 + 17)(i => (i * 31).toByte)
+        val large = new File(root, "large.bin")
+        FileUtils.writeByteArrayToFile(large, bytes)
+        assert(HashCache.compute(large) === hex(MessageDigest.getInstance("MD5").digest(bytes)))
+      }
+    }
+
+    "only hash a file again after its size or last-modified time changes" in {
+      withTempDir("hashCache") { root =>
+        val file = new File(root, "a.txt")
+        FileUtils.writeStringToFile(file, "aaaa", "UTF-8")
+        file.setLastModified(1350000000000L)
+        val hashCache = new HashCache
+        val md5 = hashCache.md5("a.txt", file)
+
+        FileUtils.writeStringToFile(file, "bbbb", "UTF-8")
+        file.setLastModified(1350000000000L)
+        assert(hashCache.md5("a.txt", file) === md5, "Cached digest is used while the stat is unchanged")
+
+        file.setLastModified(1360000000000L)
+        assert(hashCache.md5("a.txt", file) !== md5, "Digest is recomputed after the stat changes")
+      }
+    }
+
+    "treat files with the remote content as the same age" in {
+      withTempDir("hashCache") { root =>
+        val file = new File(root, "a.txt")
+        FileUtils.writeStringToFile(file, "", "UTF-8")
+        val hashCache = new HashCache
+        val eTag = "\"d41d8cd98f00b204e9800998ecf8427e\""
+        assert(hashCache.refine("a.txt", file, eTag, S3Model.s3FileIsOlderThanLocal) === S3Model.s3FileSameAgeAsLocal)
+        assert(hashCache.refine("a.txt", file, eTag, S3Model.s3FileNewerThanLocal) === S3Model.s3FileSameAgeAsLocal)
+        assert(hashCache.refine("a.txt", file, "\"00000000000000000000000000000000\"", S3Model.s3FileIsOlderThanLocal) ===
+          S3Model.s3FileIsOlderThanLocal)
+        assert(hashCache.refine("a.txt", file, eTag, S3Model.s3FileDoesNotExist) === S3Model.s3FileDoesNotExist)
+      }
+    }
+  }
+}
@@ -0,0 +1,28 @@
+package com.micronautics.aws
+
+import java.util.regex.Pattern
+import org.scalatest.WordSpec
+import org.scalatest.matchers.MustMatchers
+import scala.collection.JavaConversions._
+
+class IgnoreMatcherTest extends WordSpec with MustMatchers {
+  val regexes = Seq(".*~", ".*.aws", ".*.git", ".*.s3", ".*.svn", ".*.swp", ".*.tmp", "cvs", // the default ignores
+    "\\.s3index(\\.tmp)?", "\\.s3journal", "\\..+\\.s3part", "build", "target.*", "[Tt]humbs\\.db", "a.c")
+  val patterns: java.util.List[Pattern] = regexes.map(Pattern.compile(_))
+  val matcher = new IgnoreMatcher(patterns)
+
+  "IgnoreMatcher" must {
+    "agree with the patterns it was compiled from" in {
+      val names = Seq("x~", "~", "index.html", "a.aws", "aws", ".git", "x.git", "xgit", "cvs", "cvsx", "xcvs",
+        ".s3", "a.s3x", ".s3index", ".s3index.tmp", ".s3journal", ".page.html.s3part", ".s3part", "build", "builds",
+        "target", "target2", "Thumbs.db", "thumbs.db", "abc", "a.c", "ac", "abbc", "a\nb~", "line .tmp", "\uD83D\uDE00~")
+      for (name <- names)
+        assert(matcher.matches(name) === patterns.exists(_.matcher(name).matches), name)
+    }
+
+    "be reused while the pattern list is unchanged" in {
+      assert(IgnoreMatcher.of(patterns) eq IgnoreMatcher.of(patterns))
+      assert(!new IgnoreMatcher(new java.util.ArrayList[Pattern]).matches("anything"))
+    }
+  }
+}
@@ -0,0 +1,59 @@
+package com.micronautics.aws
+
+import com.amazonaws.services.s3.model.{Owner, S3ObjectSummary}
+import java.util.{Date, LinkedList}
+
+/** Compares the heap needed to hold a bucket listing as a LinkedList of S3ObjectSummary, as S3.getAllObjectData()
+  * returns it, with the heap needed by a CompactListing of the same keys.
+  * The number of synthetic keys defaults to one million. Run with a large heap, for example:
+  * {{{sbt -J-Xmx3G "test:run-main com.micronautics.aws.ListingMemoryBenchmark 1000000"}}} */
+object ListingMemoryBenchmark {
+  def main(args: Array[String]) {
+    val count = if (args.length > 0) args(0).toInt else 1000000
+    println("Measuring heap used by %,d synthetic keys".format(count))
+
+    val before = usedMemory
+    val list = new LinkedList[S3ObjectSummary]
+    for (i <- 0 until count)
+      list.add(summary(i))
+    val listBytes = usedMemory - before
+    println("LinkedList[S3ObjectSummary]: %,d bytes (%,d bytes per key)".format(listBytes, listBytes / count))
+
+    val before2 = usedMemory
+    val listing = new CompactListing()
+    for (i <- 0 until count) {
+      val node = summary(i)
+      listing.put(node.getKey, node.getSize, node.getLastModified.getTime, node.getETag)
+    }
+    val listingBytes = usedMemory - before2
+    println("CompactListing: %,d bytes (%,d bytes per key)".format(listingBytes, listingBytes / count))
+    println("CompactListing uses %.1f%% of the memory required by LinkedList[S3ObjectSummary]".
+      format(listingBytes * 100.0 / listBytes))
+
+    // keep both structures reachable until both measurements are complete
+    assert(list.size == listing.size)
+  }
+
+  /** Mimics the objects created by the AWS SDK's listing parser, which allocates new strings for every field.
+    * Keys are spread over directories of 50 objects each. */
+  def summary(i: Int): S3ObjectSummary = {
+    val node = new S3ObjectSummary
+    node.setBucketName("www.example.com")
+    node.setKey("assets/section%03d/page%05d/image%07d.jpg".format(i / 5000 % 100, i / 50, i))
+    node.setSize(i * 37L)
+    node.setLastModified(new Date(1346800736000L + i * 1000L))
+    node.setETag("%016x%016x".format(i * 0x9E3779B97F4A7C15L, i.toLong))
+    node.setStorageClass(new String("STANDARD"))
+    node.setOwner(new Owner(new String("3be599c1fa2d0ef24de229ad27adb107f736a79727ef8753fba31ff7db10e2ee"), new String("mslinn")))
+    node
+  }
+
+  def usedMemory: Long = {
+    val runtime = Runtime.getRuntime
+    for (i <- 1 to 5) {
+      System.gc()
+      Thread.sleep(200)
+    }
+    runtime.totalMemory - runtime.freeMemory
+  }
+}
@@ -0,0 +1,159 @@
+package com.micronautics.aws
+
+import java.io.File
+import java.nio.file.{Files, Paths}
+import java.util.Random
+import java.util.regex.Pattern
+import org.apache.commons.io.FileUtils
+import scala.collection.JavaConversions._
+
+/** Measures the throughput of uploading a tree, downloading a bucket and uploading the files written to a watched tree,
+  * against a FakeS3Server instead of AWS, and reports files/s, bytes/s and the requests of each operation.
+  *
+  * Arguments are the scenarios to run, which are upload, download and watch (all three by default), and settings of
+  * the form name=value:
+  *  - files: number of files, by default 1000, spread over directories of 100 files
+  *  - sizeKB: size of each file, by default 16
+  *  - latencyMillis: added to every request, by default 20
+  *  - bandwidthMB: MB/s shared by all requests, by default 0, which is unlimited
+  *  - throttleRate: fraction of requests answered with 503 SlowDown, by default 0
+  *  - debounceMillis: how long the watcher waits for a file to settle, by default 500
+  *
+  * The transfer settings are read from the awsmirror.* system properties, as usual. For example:
+  * {{{sbt -Dawsmirror.transferWorkers=32 "test:run-main com.micronautics.aws.LoadTest upload files=5000 throttleRate=0.01"}}} */
+object LoadTest {
+  val bucketName = "loadtest"
+  val mb = 1024 * 1024
+
+  def main(args: Array[String]) {
+    val settings = args.filter(_.contains("=")).map { arg =>
+      val Array(name, value) = arg.split("=", 2)
+      (name, value)
+    }.toMap
+    def setting(name: String, default: String) = settings.getOrElse(name, default)
+    val scenarios = args.filterNot(_.contains("=")) match {
+      case Array() => Array("upload", "download", "watch")
+      case names => names
+    }
+    val files = setting("files", "1000").toInt
+    val size = setting("sizeKB", "16").toInt * 1024
+
+    val server = new FakeS3Server
+    server.latencyMillis = setting("latencyMillis", "20").toLong
+    server.bytesPerSecond = (setting("bandwidthMB", "0").toDouble * mb).toLong
+    server.throttleRate = setting("throttleRate", "0").toDouble
+    Model.endpoint = server.endpoint
+    Model.debounceTime = setting("debounceMillis", "500").toLong
+    Model.debounceGroupingTime = Model.debounceTime / 5L
+    Model.bucketName = bucketName
+    Model.multithreadingEnabled = true
+    S3Model.credentials = Credentials("loadtest", "accessKey", "secretKey")
+    S3Model.s3 = S3Clients.get(S3Model.credentials)
+    server.bucket(bucketName)
+    val root = Files.createTempDirectory("loadtest").toFile
+    Model.journalDirectory = new File(root, ".s3journal")
+    println("%,d files of %,d bytes; %d ms latency, %s, %.1f%% of requests throttled; %d transfer workers".format(
+      files, size, server.latencyMillis, if (server.bytesPerSecond==0) "unlimited bandwidth" else "%.1f MB/s".format(server.bytesPerSecond.toDouble / mb),
+      server.throttleRate * 100, Model.transferWorkers))
+    try {
+      scenarios foreach {
+        case "upload" => upload(server, new File(root, "upload"), files, size)
+        case "download" => download(server, new File(root, "download"), files, size)
+        case "watch" => watch(server, new File(root, "watch"), files, size)
+        case other => println("Unknown scenario " + other)
+      }
+    } finally {
+      S3Clients.shutdown()
+      server.stop()
+      FileUtils.deleteDirectory(root)
+    }
+  }
+
+  /** Uploads a tree to an empty bucket */
+  def upload(server: FakeS3Server, dir: File, files: Int, size: Int) {
+    writeTree(dir, files, size)
+    server.bucket(bucketName).clear()
+    Model.catalog = new RemoteCatalog()
+    Model.s3ObjectDataFetched = false
+    measure("upload", server, files, files.toLong * size) {
+      new Uploader(true).upload(dir)
+    }
+    check("upload", server.bucket(bucketName).size, files)
+  }
+
+  /** Downloads a bucket to an empty directory */
+  def download(server: FakeS3Server, dir: File, files: Int, size: Int) {
+    val objects = server.bucket(bucketName)
+    if (objects.size!=files) {
+      objects.clear()
+      val random = new Random(files)
+      for (i <- 0 until files)
+        server.put(bucketName, key(i), content(random, size))
+    }
+    dir.mkdirs()
+    Model.catalog = new RemoteCatalog()
+    Model.s3ObjectDataFetched = false
+    measure("download", server, files, files.toLong * size) {
+      new Downloader(true).download(dir)
+    }
+    check("download", FileUtils.listFiles(dir, null, true).size, files)
+  }
+
+  /** Writes files to a watched tree, and waits until every file has been uploaded */
+  def watch(server: FakeS3Server, dir: File, files: Int, size: Int) {
+    dir.mkdirs()
+    server.bucket(bucketName).clear()
+    val mirrorRoot = new MirrorRoot(dir, bucketName, S3Model.s3, AWS.stateFileIgnores.map(Pattern.compile(_)))
+    mirrorRoot.list()
+    val watcher = new DirectoryWatcher
+    watcher.addRoot(mirrorRoot, Paths.get(dir.getAbsolutePath))
+    val watching = new Thread(new Runnable { def run() { watcher.watch() } }, "loadTestWatcher")
+    watching.setDaemon(true)
+    watching.start()
+    try {
+      measure("watch", server, files, files.toLong * size) {
+        writeTree(dir, files, size)
+        val deadline = System.currentTimeMillis + Model.debounceTime + 600000L
+        while (server.bucket(bucketName).size<files && System.currentTimeMillis<deadline)
+          Thread.sleep(10)
+      }
+      println("  Includes the debounce time of %,d ms".format(Model.debounceTime))
+      check("watch", server.bucket(bucketName).size, files)
+    } finally {
+      watching.interrupt()
+    }
+  }
+
+  /** Runs scenario, then reports its throughput and the requests it sent */
+  def measure(scenario: String, server: FakeS3Server, files: Int, bytes: Long)(run: => Unit) {
+    server.resetCounts()
+    val start = System.nanoTime
+    run
+    val seconds = (System.nanoTime - start) / 1e9
+    println("\n%s: %,d files, %,d bytes in %.2f s: %.1f files/s, %.2f MB/s".format( // after the progress of the transfers
+      scenario, files, bytes, seconds, files / seconds, bytes / seconds / mb))
+    println("  %,d requests (%s), %,d throttled".format(server.totalRequests,
+      server.requests.toList.sortBy(_._1).map { case (operation, count) => operation + " " + count.get }.mkString(", "),
+      server.throttled.get))
+  }
+
+  def check(scenario: String, actual: Int, expected: Int) {
+    if (actual!=expected)
+      println("  Warning: %s left %,d of %,d files".format(scenario, actual, expected))
+  }
+
+  def key(i: Int): String = "dir%04d/file%07d.bin".format(i / 100, i)
+
+  /** Random bytes, so that every file has a different ETag */
+  def content(random: Random, size: Int): Array[Byte] = {
+    val bytes = new Array[Byte](size)
+    random.nextBytes(bytes)
+    bytes
+  }
+
+  def writeTree(dir: File, files: Int, size: Int) {
+    val random = new Random(files)
+    for (i <- 0 until files)
+      FileUtils.writeByteArrayToFile(new File(dir, key(i)), content(random, size))
+  }
+}
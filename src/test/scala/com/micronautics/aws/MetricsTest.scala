@@ -0,0 +1,94 @@
+package com.micronautics.aws
+
+import java.lang.management.ManagementFactory
+import java.nio.file.Files
+import javax.management.ObjectName
+import org.apache.commons.io.FileUtils
+import org.scalatest.WordSpec
+import org.scalatest.matchers.MustMatchers
+
+class MetricsTest extends WordSpec with MustMatchers {
+  "Metrics.Histogram" must {
+    "estimate quantiles to within one bucket" in {
+      val histogram = new Metrics.Histogram
+      (1 to 10000) foreach { i => histogram.record(i) }
+      assert(histogram.count === 10000L)
+      assert(histogram.max === 10000L)
+      assert(histogram.mean === 5000L)
+      for (q <- Seq(0.1, 0.5, 0.9, 0.99)) {
+        val exact = q * 10000
+        val estimate = histogram.quantile(q)
+        assert(estimate >= exact && estimate <= exact * 1.125, "quantile " + q + " was " + estimate)
+      }
+      assert(histogram.quantile(1.0) === 10000L)
+    }
+
+    "hold every value in its fixed buckets" in {
+      val histogram = new Metrics.Histogram
+      Seq(0L, 7L, 8L, 1000000007L, Long.MaxValue, -5L) foreach { histogram.record(_) }
+      assert(histogram.count === 6L)
+      assert(histogram.quantile(0.01) === 0L)
+      assert(histogram.quantile(1.0) === Long.MaxValue)
+      for (value <- Seq(0L, 7L, 8L, 15L, 16L, 1000000007L, Long.MaxValue))
+        assert(Metrics.Histogram.highestValue(Metrics.Histogram.index(value)) >= value)
+    }
+  }
+
+  "Metrics" must {
+    "time the requests of each S3 operation and count transfers" in {
+      val server = new FakeS3Server
+      val root = Files.createTempDirectory("metrics").toFile
+      val savedMetrics = Model.metrics
+      val savedEndpoint = Model.endpoint
+      Model.metrics = new Metrics
+      Model.endpoint = server.endpoint
+      val s3 = new S3("accessKey", "secretKey")
+      Model.endpoint = savedEndpoint
+      try {
+        server.latencyMillis = 20
+        server.bucket("bucket")
+        val file = new java.io.File(root, "file.txt")
+        FileUtils.writeStringToFile(file, "contents")
+        (1 to 3) foreach { i => s3.uploadFile("bucket", "file" + i + ".txt", file) }
+        s3.getListing("bucket", null)
+        s3.deleteObject("bucket", "file1.txt")
+        val metrics = Model.metrics
+        assert(metrics.getRequests.get("PutObject") === 3L)
+        assert(metrics.getRequests.get("ListObjects") === 1L)
+        assert(metrics.getRequests.get("DeleteObject") === 1L)
+        assert(metrics.getRequestLatencyMedianMillis.get("PutObject") >= 20L)
+        assert(metrics.getFilesUploaded === 3L)
+        assert(metrics.getBytesUploaded === 3L * file.length)
+        assert(metrics.getFilesDeleted === 1L)
+        assert(metrics.getSummary.contains("PutObject 3"))
+        assert(!metrics.getSummary.contains("failed"))
+        metrics.deleteFailed(2)
+        assert(metrics.getDeleteFailures === 2L)
+        assert(metrics.getSummary.contains("deleted 1 (2 failed)"))
+      } finally {
+        Model.metrics = savedMetrics
+        s3.s3.shutdown()
+        server.stop()
+        FileUtils.deleteDirectory(root)
+      }
+    }
+
+    "record how long changes waited to settle, and publish the metrics through JMX" in {
+      val metrics = new Metrics
+      metrics.settled(System.currentTimeMillis - 5000, 300, false)
+      metrics.settled(System.currentTimeMillis - 6000, 0, true)
+      assert(metrics.getDebounceLagMedianMillis >= 5000L)
+      assert(metrics.modificationSpans.max === 300L)
+      assert(metrics.deletionSpans.count === 1L)
+      metrics.register()
+      val server = ManagementFactory.getPlatformMBeanServer
+      val name = new ObjectName(Metrics.objectName)
+      try {
+        assert(server.getAttribute(name, "DebounceLagMedianMillis").asInstanceOf[Long] >= 5000L)
+        assert(server.getAttribute(name, "Summary").asInstanceOf[String].contains("debounce lag"))
+      } finally {
+        server.unregisterMBean(name)
+      }
+    }
+  }
+}
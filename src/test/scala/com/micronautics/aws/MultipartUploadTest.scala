@@ -0,0 +1,108 @@
+package com.micronautics.aws
+
+import com.amazonaws.AmazonServiceException
+import com.amazonaws.services.s3.model.ObjectMetadata
+import java.io.File
+import org.apache.commons.io.FileUtils
+import org.scalatest.WordSpec
+import org.scalatest.matchers.MustMatchers
+import TempFiles._
+
+class MultipartUploadTest extends WordSpec with MustMatchers {
+  val mb = 1024 * 1024
+  val bytes = Array.tabulate[Byte](12 * mb + 123)(i => (i * 7 + i / 4096).toByte) // 3 parts of 5 MB
+
+  def withFile(test: File => Unit): Unit = {
+    withTempDir("multipart") { root =>
+      val savedJournalDirectory = Model.journalDirectory
+      val savedPartSize = Model.partSize
+      Model.journalDirectory = new File(root, ".s3journal")
+      Model.partSize = 5L * mb
+      try {
+        test(writeFile(root, "big.bin", bytes))
+      } finally {
+        Model.journalDirectory = savedJournalDirectory
+        Model.partSize = savedPartSize
+      }
+    }
+  }
+
+  "MultipartUpload" must {
+    "upload a file in parts" in {
+      withFile { file =>
+        val fakeS3 = new FakeS3
+        val result = new MultipartUpload(fakeS3.client, "bucket", "big.bin", file, new ObjectMetadata).call()
+        assert(result.getETag.endsWith("-3"), "Multipart ETag has the part count")
+        assert(fakeS3.partRequests.get === 3)
+        assert(fakeS3.objects.get("big.bin").sameElements(bytes), "Parts were reassembled in order")
+        assert(Model.journalDirectory.list.isEmpty, "Journal was deleted")
+      }
+    }
+
+    "resume an interrupted upload from its journal" in {
+      withFile { file =>
+        val fakeS3 = new FakeS3(_ == 2)
+        intercept[AmazonServiceException] {
+          new MultipartUpload(fakeS3.client, "bucket", "big.bin", file, new ObjectMetadata).call()
+        }
+        assert(Model.journalDirectory.list.length === 1, "Journal was kept")
+        val attempted = fakeS3.partRequests.get
+
+        fakeS3.failPart = _ => false
+        new MultipartUpload(fakeS3.client, "bucket", "big.bin", file, new ObjectMetadata).call()
+        assert(fakeS3.partRequests.get - attempted === 1, "Only the failed part was uploaded again")
+        assert(fakeS3.objects.get("big.bin").sameElements(bytes))
+        assert(fakeS3.aborted.get === 0)
+      }
+    }
+
+    "resume an interrupted compressed upload from a new compressed copy of the unchanged file" in {
+      withFile { file =>
+        val random = new Array[Byte](bytes.length) // incompressible, so the compressed copy still has 3 parts
+        new java.util.Random(7).nextBytes(random)
+        FileUtils.writeByteArrayToFile(file, random)
+        val fakeS3 = new FakeS3(_ == 2)
+        val firstCopy = Compression.compress(file)
+        intercept[AmazonServiceException] {
+          new MultipartUpload(fakeS3.client, "bucket", "big.bin", firstCopy, file, new ObjectMetadata, Model.journalDirectory).call()
+        }
+        val attempted = fakeS3.partRequests.get
+        val secondCopy = Compression.compress(file)
+        fakeS3.failPart = _ => false
+        new MultipartUpload(fakeS3.client, "bucket", "big.bin", secondCopy, file, new ObjectMetadata, Model.journalDirectory).call()
+        assert(fakeS3.partRequests.get - attempted === 1, "Only the failed part was uploaded again")
+        assert(fakeS3.objects.get("big.bin").sameElements(FileUtils.readFileToByteArray(secondCopy)))
+        assert(fakeS3.aborted.get === 0)
+        firstCopy.delete()
+        secondCopy.delete()
+      }
+    }
+
+    "start over if the file changed after it was partially uploaded" in {
+      withFile { file =>
+        val fakeS3 = new FakeS3(_ == 3)
+        intercept[AmazonServiceException] {
+          new MultipartUpload(fakeS3.client, "bucket", "big.bin", file, new ObjectMetadata).call()
+        }
+        file.setLastModified(file.lastModified - 60000L)
+        fakeS3.failPart = _ => false
+        new MultipartUpload(fakeS3.client, "bucket", "big.bin", file, new ObjectMetadata).call()
+        assert(fakeS3.aborted.get === 1, "Previous upload was aborted")
+        assert(fakeS3.objects.get("big.bin").sameElements(bytes))
+      }
+    }
+
+    "start over if the journaled upload no longer exists" in {
+      withFile { file =>
+        val fakeS3 = new FakeS3(_ == 1)
+        intercept[AmazonServiceException] {
+          new MultipartUpload(fakeS3.client, "bucket", "big.bin", file, new ObjectMetadata).call()
+        }
+        fakeS3.uploads.clear()
+        fakeS3.failPart = _ => false
+        new MultipartUpload(fakeS3.client, "bucket", "big.bin", file, new ObjectMetadata).call()
+        assert(fakeS3.objects.get("big.bin").sameElements(bytes))
+      }
+    }
+  }
+}
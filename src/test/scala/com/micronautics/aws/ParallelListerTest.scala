@@ -0,0 +1,39 @@
+package com.micronautics.aws
+
+import org.scalatest.WordSpec
+import org.scalatest.matchers.MustMatchers
+import scala.collection.JavaConversions._
+
+class ParallelListerTest extends WordSpec with MustMatchers {
+  val keys: Seq[String] =
+    (for (dir <- 0 until 12; sub <- 0 until 5; file <- 0 until 40) yield "dir%02d/sub%d/file%03d.html".format(dir, sub, file)) ++
+    Seq("a.html", "dir03-notes.txt", "dir05", "index.html", "zz/top.css")
+
+  "ParallelLister" must {
+    "list every key in order when listing sequentially" in {
+      val client = new FakeListingClient(keys, pageSize = 100)
+      val listing = new ParallelLister(client, 1).list("bucket", null)
+      assert(listing.iterator.toList.map(_.key) === keys.sorted.toList)
+      assert(client.requestCount.get === (keys.size + 99) / 100, "One request per page")
+    }
+
+    "merge partitions listed concurrently in key order" in {
+      val client = new FakeListingClient(keys, pageSize = 7)
+      val listing = new ParallelLister(client, 4).list("bucket", "")
+      assert(listing.size === keys.size)
+      assert(listing.iterator.toList.map(_.key) === keys.sorted.toList)
+    }
+
+    "honor prefixes" in {
+      val client = new FakeListingClient(keys, pageSize = 10)
+      val listing = new ParallelLister(client, 3).list("bucket", "/dir07/")
+      assert(listing.iterator.toList.map(_.key) === keys.filter(_.startsWith("dir07/")).sorted.toList)
+    }
+
+    "handle buckets without partitions" in {
+      val flat = Seq("b.html", "a.html", "c.html")
+      val listing = new ParallelLister(new FakeListingClient(flat, pageSize = 2), 4).list("bucket", null)
+      assert(listing.iterator.toList.map(_.key) === flat.sorted.toList)
+    }
+  }
+}
@@ -0,0 +1,55 @@
+package com.micronautics.aws
+
+import java.io.File
+import java.nio.file.{Files, Path}
+import java.nio.file.attribute.BasicFileAttributes
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.regex.Pattern
+import org.apache.commons.io.FileUtils
+import org.scalatest.{BeforeAndAfterAll, WordSpec}
+import org.scalatest.matchers.MustMatchers
+import scala.collection.JavaConversions._
+
+class ParallelTreeWalkTest extends WordSpec with MustMatchers with BeforeAndAfterAll {
+  val treeRoot: File = Files.createTempDirectory("awsMirror").toFile
+  val localKeys = (for (i <- 0 until 20; j <- 0 until 10) yield "d%02d/e%d/f.html".format(i, j)) ++
+    List("index.html", "index.html~", "target/classes/a.class", "d00/.git/config")
+  val ignores = new IgnoreMatcher(List(".*~", ".*.git", "target").map(Pattern.compile(_)))
+
+  override def beforeAll() {
+    localKeys foreach { key => FileUtils.writeStringToFile(new File(treeRoot, key), key) }
+  }
+
+  override def afterAll() {
+    FileUtils.deleteDirectory(treeRoot)
+  }
+
+  class Recorder extends ParallelTreeWalk.Visitor {
+    val directories = new ConcurrentLinkedQueue[String]()
+    val files = new ConcurrentLinkedQueue[String]()
+
+    def preVisitDirectory(key: String, directory: Path) = { directories.add(key); !key.endsWith("e9") }
+
+    def visitFile(key: String, file: Path, attributes: BasicFileAttributes) {
+      assert(attributes.size === key.length)
+      files.add(key)
+    }
+  }
+
+  "ParallelTreeWalk" must {
+    "visit every file that is not ignored, with keys relative to the root" in {
+      val recorder = new Recorder
+      val count = new ParallelTreeWalk(ignores, 4).walk(treeRoot.toPath, recorder)
+      val expected = localKeys.filter(key => key.startsWith("d") && !key.contains(".git") && !key.contains("/e9/")) :+ "index.html"
+      assert(recorder.files.toList.sorted === expected.sorted)
+      assert(count === expected.size)
+    }
+
+    "not descend into ignored or skipped directories" in {
+      val recorder = new Recorder
+      new ParallelTreeWalk(ignores, 1).walk(treeRoot.toPath, recorder)
+      assert(recorder.directories.size === 20 + 20 * 10)
+      assert(!recorder.directories.exists(key => key.startsWith("target") || key.endsWith(".git")))
+    }
+  }
+}
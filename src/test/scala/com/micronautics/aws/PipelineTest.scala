@@ -0,0 +1,50 @@
+package com.micronautics.aws
+
+import com.amazonaws.services.s3.model.{ListObjectsRequest, ObjectListing}
+import java.io.File
+import java.nio.file.Files
+import org.apache.commons.io.FileUtils
+import org.scalatest.{BeforeAndAfterAll, WordSpec}
+import org.scalatest.matchers.MustMatchers
+import scala.collection.JavaConversions._
+
+class PipelineTest extends WordSpec with MustMatchers with BeforeAndAfterAll {
+  val treeRoot: File = Files.createTempDirectory("awsMirror").toFile
+  val localKeys = List("a-b.html", "a/b.html", "a/c/d.html", "a0.html", "b.html", "index.html")
+
+  override def beforeAll() {
+    localKeys foreach { key => FileUtils.writeStringToFile(new File(treeRoot, key), key) }
+  }
+
+  override def afterAll() {
+    FileUtils.deleteDirectory(treeRoot)
+  }
+
+  "SortedTreeWalk" must {
+    "return files in the order that S3 lists their keys" in {
+      val keys = new SortedTreeWalk(treeRoot).toList.map(_.key)
+      assert(keys === localKeys.sortWith(RemoteCatalog.keyOrder.compare(_, _) < 0))
+      assert(keys === List("a-b.html", "a/b.html", "a/c/d.html", "a0.html", "b.html", "index.html"))
+    }
+  }
+
+  "ListingStream" must {
+    "stream every key in order" in {
+      val remoteKeys = (0 until 2500).map("file%05d.html".format(_))
+      val stream = new ListingStream(new FakeListingClient(remoteKeys, pageSize = 300), "bucket", null)
+      assert(stream.toList.map(_.key) === remoteKeys.toList)
+    }
+
+    "rethrow listing failures after the entries that were received" in {
+      val client = new ListingClient {
+        val delegate = new FakeListingClient(Seq("a", "b", "c"), pageSize = 2)
+        def listObjects(request: ListObjectsRequest): ObjectListing =
+          if (request.getMarker == null) delegate.listObjects(request) else throw new RuntimeException("SlowDown")
+      }
+      val stream = new ListingStream(client, "bucket", null)
+      assert(stream.next.key === "a")
+      assert(stream.next.key === "b")
+      intercept[RuntimeException] { stream.hasNext }
+    }
+  }
+}
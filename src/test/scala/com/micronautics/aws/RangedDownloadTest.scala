@@ -0,0 +1,88 @@
+package com.micronautics.aws
+
+import com.amazonaws.AmazonClientException
+import java.io.File
+import org.apache.commons.io.FileUtils
+import org.scalatest.WordSpec
+import org.scalatest.matchers.MustMatchers
+import TempFiles._
+
+class RangedDownloadTest extends WordSpec with MustMatchers {
+  val mb = 1024 * 1024
+  val bytes = Array.tabulate[Byte](5 * mb + 321)(i => (i * 13 + i / 1000).toByte)
+
+  def withDir(test: File => Unit): Unit = {
+    val savedThreshold = Model.rangedThreshold
+    val savedRangeSize = Model.rangeSize
+    Model.rangedThreshold = 2L * mb
+    Model.rangeSize = 1L * mb
+    try {
+      withTempDir("rangedDownload")(test)
+    } finally {
+      Model.rangedThreshold = savedThreshold
+      Model.rangeSize = savedRangeSize
+    }
+  }
+
+  "RangedDownload" must {
+    "download large objects as concurrent ranges" in {
+      withDir { root =>
+        val fakeS3 = new FakeS3
+        fakeS3.objects.put("big.bin", bytes)
+        val outFile = new File(root, "big.bin")
+        new RangedDownload(fakeS3.client, "bucket", "/big.bin", bytes.length, fakeS3.eTag("big.bin"), outFile).call()
+        assert(fakeS3.getRequests.get === 6, "One request per range")
+        assert(FileUtils.readFileToByteArray(outFile).sameElements(bytes))
+        assert(!RangedDownload.tempFile(outFile).exists, "Temporary file was renamed")
+      }
+    }
+
+    "download small objects with one request" in {
+      withDir { root =>
+        val fakeS3 = new FakeS3
+        fakeS3.objects.put("small.txt", "small".getBytes("UTF-8"))
+        val outFile = new File(root, "small.txt")
+        new RangedDownload(fakeS3.client, "bucket", "small.txt", 5, fakeS3.eTag("small.txt"), outFile).call()
+        assert(fakeS3.getRequests.get === 1)
+        assert(FileUtils.readFileToString(outFile, "UTF-8") === "small")
+      }
+    }
+
+    "leave the local copy untouched if the download fails verification" in {
+      withDir { root =>
+        val fakeS3 = new FakeS3
+        fakeS3.objects.put("big.bin", bytes)
+        fakeS3.corruptDownloads = true
+        val outFile = new File(root, "big.bin")
+        FileUtils.writeStringToFile(outFile, "previous", "UTF-8")
+        intercept[AmazonClientException] {
+          new RangedDownload(fakeS3.client, "bucket", "big.bin", bytes.length, fakeS3.eTag("big.bin"), outFile).call()
+        }
+        assert(FileUtils.readFileToString(outFile, "UTF-8") === "previous")
+        assert(!RangedDownload.tempFile(outFile).exists, "Temporary file was deleted")
+      }
+    }
+
+    "refuse to combine ranges of a changed object" in {
+      withDir { root =>
+        val fakeS3 = new FakeS3
+        fakeS3.objects.put("big.bin", bytes)
+        val staleETag = "\"00000000000000000000000000000000\""
+        intercept[AmazonClientException] {
+          new RangedDownload(fakeS3.client, "bucket", "big.bin", bytes.length, staleETag, new File(root, "big.bin")).call()
+        }
+        assert(!new File(root, "big.bin").exists)
+      }
+    }
+
+    "reject objects whose size differs from the listing" in {
+      withDir { root =>
+        val fakeS3 = new FakeS3
+        fakeS3.objects.put("small.txt", "small".getBytes("UTF-8"))
+        intercept[AmazonClientException] {
+          new RangedDownload(fakeS3.client, "bucket", "small.txt", 4, null, new File(root, "small.txt")).call()
+        }
+      }
+    }
+  }
+}
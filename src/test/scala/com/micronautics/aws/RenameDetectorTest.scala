@@ -0,0 +1,57 @@
+package com.micronautics.aws
+
+import com.amazonaws.services.s3.model.ObjectMetadata
+import java.io.File
+import org.scalatest.WordSpec
+import org.scalatest.matchers.MustMatchers
+import TempFiles._
+
+class RenameDetectorTest extends WordSpec with MustMatchers {
+  val mb = 1024 * 1024
+
+  "RenameDetector" must {
+    "pair a created file with a deleted key of the same content" in {
+      withTempDir("renames") { root =>
+        val file = writeFile(root, "new/name.txt", "contents".getBytes("UTF-8"))
+        val renames = new RenameDetector(null)
+        renames.deleted("old/other.txt", file.length, "\"0123456789abcdef0123456789abcdef\"")
+        renames.deleted("old/name.txt", file.length, "\"" + HashCache.compute(file) + "\"")
+        val rename = renames.created("new/name.txt", file)
+        assert(rename.from === "old/name.txt")
+        assert(rename.to === "new/name.txt")
+        assert(renames.created("copy/name.txt", file) === null, "A deleted key is paired once")
+      }
+    }
+
+    "not pair files of a different size or content" in {
+      withTempDir("renames") { root =>
+        val file = writeFile(root, "a.txt", "contents".getBytes("UTF-8"))
+        val renames = new RenameDetector(null)
+        renames.deleted("b.txt", file.length + 1, HashCache.compute(file))
+        renames.deleted("c.txt", file.length, "0123456789abcdef0123456789abcdef")
+        renames.deleted("d.txt", file.length, null)
+        assert(renames.created("a.txt", file) === null)
+      }
+    }
+
+    "pair objects that were uploaded in parts by their multipart ETag" in {
+      withTempDir("renames") { root =>
+        val savedPartSize = Model.partSize
+        val savedJournalDirectory = Model.journalDirectory
+        Model.partSize = 5L * mb
+        Model.journalDirectory = new File(root, ".s3journal")
+        try {
+          val file = writeFile(root, "big.bin", Array.tabulate[Byte](11 * mb + 7)(i => (i * 13).toByte))
+          val eTag = new MultipartUpload(new FakeS3().client, "bucket", "big.bin", file, new ObjectMetadata).call().getETag
+          assert(HashCache.multipartETag(file, MultipartUpload.partSize(file.length)) === eTag)
+          val renames = new RenameDetector(null)
+          renames.deleted("old.bin", file.length, eTag)
+          assert(renames.created("big.bin", file).from === "old.bin")
+        } finally {
+          Model.partSize = savedPartSize
+          Model.journalDirectory = savedJournalDirectory
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,115 @@
+package com.micronautics.aws
+
+import com.amazonaws.AmazonServiceException
+import java.nio.file.Files
+import java.util.concurrent.Callable
+import java.util.concurrent.atomic.AtomicInteger
+import org.apache.commons.io.FileUtils
+import org.scalatest.WordSpec
+import org.scalatest.matchers.MustMatchers
+import scala.collection.JavaConversions._
+
+class RetryPolicyTest extends WordSpec with MustMatchers {
+  def serviceException(status: Int, code: String): AmazonServiceException = {
+    val e = new AmazonServiceException(code)
+    e.setStatusCode(status)
+    e.setErrorCode(code)
+    e
+  }
+
+  /** @return request that fails with failure the given number of times, then returns "done" */
+  def failing(times: Int, failure: => Exception, attempts: AtomicInteger): Callable[String] = new Callable[String] {
+    def call() = {
+      if (attempts.incrementAndGet <= times)
+        throw failure
+      "done"
+    }
+  }
+
+  "RetryPolicy" must {
+    "retry throttled requests until they succeed" in {
+      val limit = new AdaptiveLimit(8, 0)
+      val attempts = new AtomicInteger
+      val result = new RetryPolicy(4, 1, 5, limit).call("test", failing(2, serviceException(503, "SlowDown"), attempts))
+      assert(result === "done")
+      assert(attempts.get === 3)
+      assert(limit.throttledCount === 2L)
+      assert(limit.inFlight === 0)
+    }
+
+    "not retry requests that cannot succeed" in {
+      val attempts = new AtomicInteger
+      val thrown = intercept[AmazonServiceException] {
+        new RetryPolicy(4, 1, 5, null).call("test", failing(10, serviceException(403, "AccessDenied"), attempts))
+      }
+      assert(thrown.getErrorCode === "AccessDenied")
+      assert(attempts.get === 1)
+    }
+
+    "give up after the maximum number of attempts" in {
+      val attempts = new AtomicInteger
+      intercept[AmazonServiceException] {
+        new RetryPolicy(3, 1, 5, null).call("test", failing(10, serviceException(500, "InternalError"), attempts))
+      }
+      assert(attempts.get === 3)
+    }
+
+    "wait at most the capped exponential delay" in {
+      val policy = new RetryPolicy(10, 100, 1000, null)
+      for (attempt <- 1 to 10; i <- 1 to 100) {
+        val delay = policy.delay(attempt)
+        assert(delay >= 0 && delay <= math.min(1000, 100L << (attempt - 1)))
+      }
+    }
+  }
+
+  "AdaptiveLimit" must {
+    "halve the limit when throttled and raise it again as requests succeed" in {
+      val limit = new AdaptiveLimit(16, 0)
+      limit.acquire()
+      limit.throttled()
+      assert(limit.limit === 8)
+      for (i <- 1 to 200) {
+        limit.acquire()
+        limit.succeeded()
+      }
+      assert(limit.limit === 16)
+    }
+  }
+
+  "DeadLetters" must {
+    "remember failures until they succeed" in {
+      val root = Files.createTempDirectory("deadLetters").toFile
+      try {
+        val deadLetters = DeadLetters.load(root)
+        deadLetters.failed(DeadLetters.upload, "dir/file\twith tab", new Exception("line\nbreak"))
+        deadLetters.failed(DeadLetters.delete, "gone/", new Exception("SlowDown"))
+        val loaded = DeadLetters.load(root)
+        assert(loaded.size === 2)
+        assert(loaded.failures(DeadLetters.upload).map(failure => (failure.key, failure.reason)) === Seq(("dir/file\twith tab", "line\nbreak")))
+        loaded.succeeded(DeadLetters.upload, "dir/file\twith tab")
+        loaded.succeeded(DeadLetters.delete, "gone/")
+        loaded.saveIfDirty()
+        assert(!new java.io.File(root, DeadLetters.fileName).exists)
+      } finally {
+        FileUtils.deleteDirectory(root)
+      }
+    }
+  }
+
+  "BatchDelete" must {
+    "resend keys whose deletion was throttled" in {
+      val fake = new FakeS3
+      (1 to 20) foreach { i => fake.objects.put("file" + i, Array[Byte](1)) }
+      val throttledOnce = new java.util.concurrent.ConcurrentHashMap[String, String]
+      Seq("file3", "file13") foreach { key => throttledOnce.put(key, key) }
+      fake.deleteErrorCode = "SlowDown"
+      fake.failDelete = key => throttledOnce.remove(key)!=null
+      val batchDelete = new BatchDelete(fake.client, "bucket").deletePrefix(null).await
+      assert(batchDelete.failures.isEmpty)
+      assert(batchDelete.deleted === 20L)
+      assert(fake.objects.isEmpty)
+      assert(fake.deleteRequests.get === 2)
+    }
+  }
+}
@@ -0,0 +1,33 @@
+package com.micronautics.aws
+
+import org.scalatest.WordSpec
+import org.scalatest.matchers.MustMatchers
+
+class S3ClientsTest extends WordSpec with MustMatchers {
+  "S3Clients" must {
+    "share one client per access key" in {
+      val s3 = S3Clients.get("accessKey", "secretKey")
+      assert(S3Clients.get("accessKey", "secretKey") eq s3)
+      assert(!(S3Clients.get("otherAccessKey", "secretKey") eq s3))
+      S3Clients.shutdown()
+      assert(!(S3Clients.get("accessKey", "secretKey") eq s3))
+      S3Clients.shutdown()
+    }
+
+    "replace the client of an access key whose secret key was rotated" in {
+      val s3 = S3Clients.get("accessKey", "secretKey")
+      val rotated = S3Clients.get("accessKey", "rotatedSecretKey")
+      assert(!(rotated eq s3))
+      assert(rotated.awsCredentials.getAWSSecretKey === "rotatedSecretKey")
+      assert(S3Clients.get("accessKey", "rotatedSecretKey") eq rotated)
+      S3Clients.shutdown()
+    }
+
+    "size the connection pool for the transfer concurrency" in {
+      val configuration = S3Clients.configuration()
+      assert(configuration.getMaxConnections === Model.maxConnections)
+      assert(Model.maxConnections >= Model.transferWorkers + Model.listingWorkers)
+      assert(configuration.getSocketTimeout === Model.socketTimeout)
+    }
+  }
+}
@@ -0,0 +1,140 @@
+package com.micronautics.aws
+
+import java.io.File
+import org.apache.commons.io.FileUtils
+import org.scalatest.WordSpec
+import org.scalatest.matchers.MustMatchers
+import scala.collection.JavaConversions._
+import TempFiles._
+
+class SyncIndexTest extends WordSpec with MustMatchers {
+  val eTag = "\"0123456789abcdef0123456789abcdef\""
+
+  /** Writes contents with a fixed last-modified time, so that comparisons see only the changes a test makes */
+  def writeFile(root: File, name: String, contents: String): File = {
+    val file = TempFiles.writeFile(root, name, contents)
+    file.setLastModified(1350000000000L)
+    file
+  }
+
+  "SyncIndex" must {
+    "be stale until the bucket has been listed" in {
+      withTempDir("syncIndex") { root =>
+        val syncIndex = SyncIndex.load(root, "bucket")
+        assert(syncIndex.isStale, "Missing index is stale")
+        syncIndex.listed(new RemoteCatalog())
+        assert(!syncIndex.isStale, "Freshly listed index is current")
+      }
+    }
+
+    "compare files by size and last-modified time" in {
+      withTempDir("syncIndex") { root =>
+        val file = writeFile(root, "blah/ick.html", "ick")
+        val syncIndex = SyncIndex.load(root, "bucket")
+        assert(syncIndex.compareAge(file, "blah/ick.html") === S3Model.s3FileDoesNotExist)
+        syncIndex.put("blah/ick.html", file, eTag, file.lastModified)
+        assert(syncIndex.compareAge(file, "/blah/ick.html") === S3Model.s3FileSameAgeAsLocal)
+        file.setLastModified(1360000000000L)
+        assert(syncIndex.compareAge(file, "blah/ick.html") === S3Model.s3FileIsOlderThanLocal)
+        assert(syncIndex.compareAge(new File(root, "nope.html"), "nope.html") === S3Model.s3FileDoesNotExistLocally)
+      }
+    }
+
+    "compare with the remote copy without relying on the time S3 assigned to the upload" in {
+      withTempDir("syncIndex") { root =>
+        val file = writeFile(root, "a.txt", "a")
+        val syncIndex = SyncIndex.load(root, "bucket")
+        val uploadedAt = file.lastModified + 60000L
+        assert(syncIndex.compareAge(file, "a.txt", eTag, uploadedAt) === S3Model.s3FileNewerThanLocal, "Unknown files are compared by timestamp")
+        syncIndex.put("a.txt", file, eTag, uploadedAt)
+        assert(syncIndex.compareAge(file, "a.txt", eTag.replace("\"", ""), uploadedAt) === S3Model.s3FileSameAgeAsLocal)
+        file.setLastModified(1340000000000L)
+        assert(syncIndex.compareAge(file, "a.txt", eTag, uploadedAt) === S3Model.s3FileIsOlderThanLocal, "Local copy changed")
+        val otherETag = "\"fedcba9876543210fedcba9876543210\""
+        assert(syncIndex.compareAge(file, "a.txt", otherETag, uploadedAt) === S3Model.s3FileNewerThanLocal, "Remote copy changed")
+      }
+    }
+
+    "survive being saved and loaded" in {
+      withTempDir("syncIndex") { root =>
+        val file = writeFile(root, "dir/f\u00fcr.txt", "contents")
+        val syncIndex = SyncIndex.load(root, "bucket")
+        syncIndex.listed(new RemoteCatalog())
+        syncIndex.put("dir/f\u00fcr.txt", file, eTag, 1234000L)
+        syncIndex.save()
+        assert(new File(root, SyncIndex.fileName).exists)
+        assert(!new File(root, SyncIndex.fileName + ".tmp").exists, "Temporary file was renamed")
+
+        val loaded = SyncIndex.load(root, "bucket")
+        assert(!loaded.isStale)
+        assert(loaded.size === 1)
+        val entry = loaded.get("dir/f\u00fcr.txt")
+        assert(entry.size === file.length)
+        assert(entry.lastModified === file.lastModified)
+        assert(entry.eTag === eTag)
+        assert(entry.remoteLastModified === 1234000L)
+        assert(entry.md5 === null)
+      }
+    }
+
+    "discard indexes for other buckets and unreadable indexes" in {
+      withTempDir("syncIndex") { root =>
+        val syncIndex = SyncIndex.load(root, "bucket")
+        syncIndex.listed(new RemoteCatalog())
+        syncIndex.put("a.txt", writeFile(root, "a.txt", "a"), eTag, 0L)
+        syncIndex.save()
+        val other = SyncIndex.load(root, "otherBucket")
+        assert(other.isStale)
+        assert(other.size === 0)
+
+        FileUtils.writeStringToFile(new File(root, SyncIndex.fileName), "garbage", "UTF-8")
+        val corrupt = SyncIndex.load(root, "bucket")
+        assert(corrupt.isStale)
+        assert(corrupt.size === 0)
+      }
+    }
+
+    "forget objects that a full listing did not return" in {
+      withTempDir("syncIndex") { root =>
+        val syncIndex = SyncIndex.load(root, "bucket")
+        syncIndex.put("kept.txt", writeFile(root, "kept.txt", "k"), eTag, 0L)
+        syncIndex.put("gone.txt", writeFile(root, "gone.txt", "g"), eTag, 0L)
+        val catalog = new RemoteCatalog()
+        catalog.put("kept.txt", 1, 0L, eTag)
+        syncIndex.listed(catalog)
+        assert(syncIndex.get("kept.txt") !== null)
+        assert(syncIndex.get("gone.txt") === null)
+      }
+    }
+
+    "find and forget the entries below a prefix" in {
+      withTempDir("syncIndex") { root =>
+        val syncIndex = SyncIndex.load(root, "bucket")
+        List("site/a.html", "site/css/b.css", "sitemap.xml", "other/c.html") foreach { key =>
+          syncIndex.put(key, writeFile(root, key, key), eTag, 0L)
+        }
+        assert(syncIndex.keysUnder("site/").toList === List("site/a.html", "site/css/b.css"))
+        syncIndex.removePrefix("site/")
+        assert(syncIndex.size === 2)
+        assert(syncIndex.get("sitemap.xml") !== null)
+        assert(syncIndex.keysUnder("site/").isEmpty)
+      }
+    }
+
+    "find the entries directly within a directory" in {
+      withTempDir("syncIndex") { root =>
+        val syncIndex = SyncIndex.load(root, "bucket")
+        List("a.html", "site/a.html", "site/css/b.css", "site/css/deep/c.css", "site/z.html", "site.txt") foreach { key =>
+          syncIndex.put(key, writeFile(root, key, key), eTag, 0L)
+        }
+        assert(syncIndex.keysIn("site/").toList === List("site/a.html", "site/z.html"))
+        assert(syncIndex.keysIn("").toList === List("a.html", "site.txt"))
+        assert(syncIndex.keysIn("site/css/deep/").toList === List("site/css/deep/c.css"))
+        assert(syncIndex.keysIn("other/").isEmpty)
+        val directories = new java.util.TreeSet[String](List("a", "a/b", "a/b/c", "a/b/c/d", "a/e", "ab"))
+        assert(SyncIndex.childrenOf(directories, "a/").toList === List("a/b", "a/e"))
+        assert(SyncIndex.childrenOf(directories, "").toList === List("a", "ab"))
+      }
+    }
+  }
+}
@@ -0,0 +1,28 @@
+package com.micronautics.aws
+
+import java.io.File
+import java.nio.file.Files
+import org.apache.commons.io.FileUtils
+
+/** Temporary directories for suites that read and write local files */
+object TempFiles {
+  /** Runs test with a new temporary directory, which is deleted with its contents afterwards */
+  def withTempDir(prefix: String)(test: File => Unit): Unit = {
+    val root = Files.createTempDirectory(prefix).toFile
+    try {
+      test(root)
+    } finally {
+      FileUtils.deleteDirectory(root)
+    }
+  }
+
+  /** Writes bytes to the file at relative path name below root, creating its parent directories */
+  def writeFile(root: File, name: String, bytes: Array[Byte]): File = {
+    val file = new File(root, name)
+    FileUtils.writeByteArrayToFile(file, bytes)
+    file
+  }
+
+  /** Writes contents as UTF-8 to the file at relative path name below root */
+  def writeFile(root: File, name: String, contents: String): File = writeFile(root, name, contents.getBytes("UTF-8"))
+}
@@ -0,0 +1,67 @@
+package com.micronautics.aws
+
+import java.util.concurrent.{Callable, CountDownLatch, TimeUnit}
+import java.util.concurrent.atomic.AtomicInteger
+import org.scalatest.WordSpec
+import org.scalatest.matchers.MustMatchers
+
+class TransferSchedulerTest extends WordSpec with MustMatchers {
+  def task(body: => Unit): Callable[Unit] = new Callable[Unit] { def call() = body }
+
+  "TransferScheduler" must {
+    "wait for every transfer in a batch" in {
+      val scheduler = new TransferScheduler("test", 4, 10)
+      val batch = scheduler.newBatch
+      val count = new AtomicInteger
+      for (i <- 1 to 100)
+        batch.submit(task { Thread.sleep(1); count.incrementAndGet })
+      assert(batch.await === 0)
+      assert(count.get === 100)
+      assert(scheduler.completed === 100L)
+    }
+
+    "count failed transfers" in {
+      val scheduler = new TransferScheduler("test", 2, 2)
+      val batch = scheduler.newBatch
+      for (i <- 1 to 5)
+        batch.submit(task { if (i % 2 == 0) throw new RuntimeException("failure " + i) })
+      assert(batch.await === 2)
+      assert(scheduler.failed === 2L)
+    }
+
+    "block producers while it is saturated" in {
+      val scheduler = new TransferScheduler("test", 2, 3)
+      val batch = scheduler.newBatch
+      val release = new CountDownLatch(1)
+      val submitted = new AtomicInteger
+      val producer = new Thread(new Runnable {
+        def run() {
+          for (i <- 1 to 10) {
+            batch.submit(task { release.await() })
+            submitted.incrementAndGet
+          }
+        }
+      })
+      producer.start()
+      Thread.sleep(200)
+      assert(submitted.get === 5, "Only workers + queueSize transfers were accepted")
+      release.countDown()
+      producer.join(TimeUnit.SECONDS.toMillis(10))
+      assert(submitted.get === 10)
+      assert(batch.await === 0)
+    }
+
+    "track batches independently" in {
+      val scheduler = new TransferScheduler("test", 2, 10)
+      val slow = scheduler.newBatch
+      val fast = scheduler.newBatch
+      val release = new CountDownLatch(1)
+      slow.submit(task { release.await() })
+      fast.submit(task { })
+      assert(fast.await === 0)
+      assert(slow.pending === 1)
+      release.countDown()
+      assert(slow.await === 0)
+    }
+  }
+}